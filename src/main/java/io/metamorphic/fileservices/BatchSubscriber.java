@@ -0,0 +1,34 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Receives the batches of a {@link ColumnBatchPublisher}. The methods
+ * mirror those of a reactive streams Subscriber, and are called one at a
+ * time, though not always on the same thread.
+ */
+public interface BatchSubscriber {
+
+    /**
+     * Called once, before any other method. No batches are read until the
+     * subscriber requests them.
+     *
+     * @param subscription used to request batches or cancel
+     */
+    void onSubscribe(BatchSubscription subscription);
+
+    /**
+     * @param batch the next batch, to be released to the publisher when it
+     *              has been consumed
+     */
+    void onNext(ColumnBatch batch);
+
+    /**
+     * Called at most once if reading fails or a request is invalid. No
+     * other method is called afterwards.
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called at most once after the last batch.
+     */
+    void onComplete();
+}
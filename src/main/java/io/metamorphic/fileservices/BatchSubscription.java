@@ -0,0 +1,22 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Links a {@link BatchSubscriber} to a {@link ColumnBatchPublisher}. The
+ * methods mirror those of a reactive streams Subscription, and may be
+ * called from any thread.
+ */
+public interface BatchSubscription {
+
+    /**
+     * Adds to the number of batches the subscriber is ready to receive.
+     *
+     * @param n number of batches, which must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stops reading and closes the file. Batches may still be delivered
+     * while the cancellation takes effect.
+     */
+    void cancel();
+}
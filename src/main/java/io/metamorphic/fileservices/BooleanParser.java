@@ -23,4 +23,33 @@ public class BooleanParser implements ITypeParser<Boolean> {
         }
         return null;
     }
+
+    /**
+     * Parses a value held in a character buffer without creating a String.
+     *
+     * @return 1 for true, 0 for false, -1 if the value is not a boolean
+     */
+    static int parse(char[] buf, int start, int end) {
+        while (start < end && Character.isWhitespace(buf[start])) start++;
+        while (end > start && Character.isWhitespace(buf[end - 1])) end--;
+        if (matchesAny(affirmatives, buf, start, end)) return 1;
+        if (matchesAny(negatives, buf, start, end)) return 0;
+        return -1;
+    }
+
+    private static boolean matchesAny(String[] words, char[] buf, int start, int end) {
+        int len = end - start;
+        for (String word : words) {
+            if (word.length() != len) continue;
+            boolean match = true;
+            for (int i = 0; i < len; i++) {
+                if (Character.toLowerCase(buf[start + i]) != word.charAt(i)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match) return true;
+        }
+        return false;
+    }
 }
@@ -0,0 +1,61 @@
+package io.metamorphic.fileservices;
+
+import java.util.Arrays;
+
+/**
+ * BOOLEAN column held as packed bits, one bit per row.
+ */
+public class BooleanVector extends ColumnVector {
+
+    private final long[] bits;
+
+    BooleanVector(int capacity) {
+        super(capacity);
+        bits = new long[(capacity + 63) >>> 6];
+    }
+
+    @Override
+    public DataTypes getType() {
+        return DataTypes.BOOLEAN;
+    }
+
+    @Override
+    void append(char[] buf, int start, int end) {
+        if (isBlank(buf, start, end)) {
+            appendNull();
+            return;
+        }
+        int value = BooleanParser.parse(buf, start, end);
+        if (value < 0) {
+            appendConversionError(buf, start, end);
+            return;
+        }
+        if (value == 1) {
+            bits[size >>> 6] |= 1L << size;
+        }
+        setValid(size);
+        size += 1;
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        Arrays.fill(bits, 0L);
+    }
+
+    public boolean getBoolean(int row) {
+        return (bits[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * @return words of packed values, one bit per row
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : getBoolean(row);
+    }
+}
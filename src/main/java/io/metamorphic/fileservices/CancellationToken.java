@@ -0,0 +1,18 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Lets another thread ask a long-running operation, such as a budgeted
+ * sniff, to stop at its next checkpoint.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,49 @@
+package io.metamorphic.fileservices;
+
+import java.io.Reader;
+
+/**
+ * Reads a range of a CharSequence, e.g. a chunk of a larger input, without
+ * copying it into a String first.
+ */
+class CharSequenceReader extends Reader {
+
+    private final CharSequence seq;
+    private final int end;
+    private int pos;
+
+    CharSequenceReader(CharSequence seq) {
+        this(seq, 0, seq.length());
+    }
+
+    CharSequenceReader(CharSequence seq, int start, int end) {
+        this.seq = seq;
+        this.pos = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() {
+        return (pos < end) ? seq.charAt(pos++) : -1;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) return 0;
+        if (pos >= end) return -1;
+        int n = Math.min(len, end - pos);
+        if (seq instanceof String) {
+            ((String) seq).getChars(pos, pos + n, cbuf, off);
+        } else {
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = seq.charAt(pos + i);
+            }
+        }
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,65 @@
+package io.metamorphic.fileservices;
+
+/**
+ * A batch of records held as typed column vectors.
+ */
+public class ColumnBatch {
+
+    private final String[] header;
+    private final ColumnVector[] columns;
+    private long firstRecord;
+    private int rowCount;
+
+    ColumnBatch(String[] header, ColumnVector[] columns, long firstRecord) {
+        this.header = header;
+        this.columns = columns;
+        this.firstRecord = firstRecord;
+    }
+
+    /**
+     * @return column names, or null if the file has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public ColumnVector getColumn(int i) {
+        return columns[i];
+    }
+
+    public ColumnVector[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * @return zero-based ordinal of the first record in the batch, not
+     *         counting the header
+     */
+    public long getFirstRecord() {
+        return firstRecord;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    void setRowCount(int rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * Empties the batch so that it can hold the records from the given
+     * ordinal.
+     */
+    void reset(long firstRecord) {
+        for (ColumnVector column : columns) {
+            column.reset();
+        }
+        this.firstRecord = firstRecord;
+        this.rowCount = 0;
+    }
+}
@@ -0,0 +1,307 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the records of a delimited file as batches of typed column
+ * vectors to a single subscriber, reading only as many batches as have
+ * been requested.
+ *
+ * Batches are read by tasks run on a shared Executor, so no thread is
+ * held per file: a task reads while there is demand and then returns, and
+ * a later request or release runs another. Batches are taken from a pool
+ * of poolSize batches, which the subscriber returns with
+ * {@link #release(ColumnBatch)} once a batch has been consumed. When every
+ * batch in the pool is outstanding, reading pauses until one is released,
+ * so memory is bounded by the pool whatever the demand. A pool size of 0
+ * reads a new batch each time, and releasing isn't needed.
+ */
+public class ColumnBatchPublisher {
+
+    private static final Log log = LogFactory.getLog(ColumnBatchPublisher.class);
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private final File file;
+    private final Charset charset;
+    private final FileParameters params;
+    private final TypesContainer types;
+    private final Executor executor;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private int batchSize = ColumnarReader.DEFAULT_BATCH_SIZE;
+    private int poolSize = DEFAULT_POOL_SIZE;
+    private ITypeParser<ParsedDate> dateParser;
+
+    private volatile Subscription subscription;
+
+    /**
+     * @param file delimited file
+     * @param charset encoding of the file
+     * @param params sniffed file parameters
+     * @param types inferred column types
+     * @param executor runs the tasks that read batches and signal the subscriber
+     */
+    public ColumnBatchPublisher(File file, Charset charset, FileParameters params, TypesContainer types,
+                                Executor executor) {
+        this.file = file;
+        this.charset = charset;
+        this.params = params;
+        this.types = types;
+        this.executor = executor;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize maximum number of rows in each batch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @param poolSize maximum number of batches outstanding, or 0 not to
+     *                 recycle batches
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = Math.max(0, poolSize);
+    }
+
+    public ITypeParser<ParsedDate> getDateParser() {
+        return dateParser;
+    }
+
+    /**
+     * @param dateParser parser of TIMESTAMP columns without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     */
+    public void setDateParser(ITypeParser<ParsedDate> dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * Subscribes to the batches of the file. Only one subscriber is
+     * accepted; any other receives an error.
+     *
+     * @param subscriber BatchSubscriber
+     */
+    public void subscribe(BatchSubscriber subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new BatchSubscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher of " + file + " already has a subscriber"));
+            return;
+        }
+        Subscription s = new Subscription(subscriber, poolSize);
+        subscription = s;
+        // onSubscribe is called by the first task, so that it is never
+        // concurrent with onNext
+        executor.execute(s);
+    }
+
+    /**
+     * Returns a consumed batch to the pool. The batch mustn't be used
+     * afterwards.
+     *
+     * @param batch ColumnBatch received by the subscriber
+     */
+    public void release(ColumnBatch batch) {
+        Subscription s = subscription;
+        if (s != null && batch != null) {
+            s.release(batch);
+        }
+    }
+
+    private class Subscription implements BatchSubscription, Runnable {
+
+        private final BatchSubscriber subscriber;
+        private final int poolSize;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        // number of calls to drain still to be handled; starts at 1 so that
+        // requests made within onSubscribe wait for the first task
+        private final AtomicInteger wip = new AtomicInteger(1);
+
+        private final Queue<ColumnBatch> pool = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // only used by the task holding wip
+        private boolean started;
+        private boolean done;
+        private int allocated;
+        private ColumnarReader reader;
+
+        Subscription(BatchSubscriber subscriber, int poolSize) {
+            this.subscriber = subscriber;
+            this.poolSize = poolSize;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " batches; must be positive");
+                schedule();
+                return;
+            }
+            for (;;) {
+                long r = requested.get();
+                if (r == Long.MAX_VALUE) return;
+                long u = r + n;
+                if (u < 0) u = Long.MAX_VALUE;
+                if (requested.compareAndSet(r, u)) break;
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        void release(ColumnBatch batch) {
+            if (poolSize == 0 || cancelled) return;
+            pool.offer(batch);
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (!started) {
+                started = true;
+                try {
+                    subscriber.onSubscribe(this);
+                } catch (RuntimeException e) {
+                    log.warn("Subscriber failed in onSubscribe; cancelling", e);
+                    cancelled = true;
+                }
+            }
+            int missed = 1;
+            for (;;) {
+                if (!done) {
+                    drain();
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) break;
+            }
+        }
+
+        /**
+         * Reads and delivers batches while there is demand and a free
+         * batch in the pool.
+         */
+        private void drain() {
+            if (cancelled) {
+                finish();
+                return;
+            }
+            Throwable error = invalidRequest;
+            if (error != null) {
+                finish();
+                subscriber.onError(error);
+                return;
+            }
+            long r = requested.get();
+            long emitted = 0;
+            while (emitted != r && !cancelled) {
+                ColumnBatch reuse = null;
+                if (poolSize > 0) {
+                    reuse = pool.poll();
+                    if (reuse == null) {
+                        if (allocated == poolSize) break;
+                        allocated += 1;
+                    }
+                }
+                ColumnBatch batch;
+                try {
+                    if (reader == null) {
+                        reader = new ColumnarReader(new InputStreamReader(new FileInputStream(file), charset),
+                                params, types, batchSize);
+                        reader.setDateParser(dateParser);
+                    }
+                    batch = reader.next(reuse);
+                } catch (IOException | RuntimeException e) {
+                    finish();
+                    subscriber.onError(e);
+                    return;
+                }
+                if (batch == null) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Published " + reader.getRecordCount() + " records of " + file);
+                    }
+                    finish();
+                    subscriber.onComplete();
+                    return;
+                }
+                try {
+                    subscriber.onNext(batch);
+                } catch (RuntimeException e) {
+                    log.warn("Subscriber failed in onNext; cancelling", e);
+                    cancelled = true;
+                    finish();
+                    return;
+                }
+                emitted += 1;
+            }
+            if (cancelled) {
+                finish();
+            } else if (emitted != 0 && r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        private void finish() {
+            done = true;
+            pool.clear();
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.warn("Could not close " + file, e);
+                }
+                reader = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package io.metamorphic.fileservices;
+
+import java.util.List;
+
+/**
+ * Recognises the values of a single column, accumulating the column type.
+ *
+ * Most columns are homogeneous, so the recognizer that matched the
+ * previous value is tried first, and the general cascade is only run on
+ * a miss. Once a column has widened to STRING, values are no longer
+ * classified apart from the length check for TEXT.
+ *
+ * The format of a DATE column is decided by a vote across the column's
+ * dates and then locked (see {@link DateRecognizer}). If the sampled
+ * dates do not all match the locked format, the column is a STRING.
+ *
+ * An optional {@link ValueMemo} remembers the classification of repeated
+ * values, so that a repeated value gets the type it got when first seen.
+ * Dates are only remembered once the column's format is locked, so that
+ * every date still votes on the format.
+ *
+ * A ColumnRecognizer holds per-column state and is not thread-safe.
+ */
+public class ColumnRecognizer {
+
+    static final int MAX_STRING_LENGTH = 128;
+
+    private final TypeRecognizer<?>[] cascade;
+
+    private final DateRecognizer dateRecognizer;
+
+    // recognizer that matched the previous value
+    private TypeRecognizer<?> speculated;
+
+    // recognizer that matched the current value
+    private TypeRecognizer<?> matched;
+
+    // info of a remembered value, used in place of matched
+    private Object[] rememberedInfo;
+
+    private ValueMemo<Recognized> memo;
+
+    private TypeInfo columnType;
+
+    public ColumnRecognizer(List<TypeRecognizer<?>> cascade) {
+        this.cascade = cascade.toArray(new TypeRecognizer<?>[cascade.size()]);
+        DateRecognizer dateRecognizer = null;
+        for (TypeRecognizer<?> recognizer : cascade) {
+            if (recognizer instanceof DateRecognizer) {
+                dateRecognizer = (DateRecognizer) recognizer;
+            }
+        }
+        this.dateRecognizer = dateRecognizer;
+    }
+
+    public ValueMemo<Recognized> getMemo() {
+        return memo;
+    }
+
+    /**
+     * @param memo remembers the classification of repeated values, or null
+     */
+    public void setMemo(ValueMemo<Recognized> memo) {
+        this.memo = memo;
+    }
+
+    /**
+     * Classifies a single value without changing the column type.
+     *
+     * @param value cell value
+     * @return ValueTypes
+     */
+    public ValueTypes recognize(String value) {
+        matched = null;
+        rememberedInfo = null;
+        if (value == null) return ValueTypes.NONE;
+        String v = value.trim();
+        if (v.isEmpty()) return ValueTypes.NONE;
+        if (memo == null) {
+            return classify(v);
+        }
+        Recognized recognized = memo.get(v);
+        if (recognized != null) {
+            rememberedInfo = recognized.info;
+            return recognized.type;
+        }
+        ValueTypes type = classify(v);
+        if (type != ValueTypes.DATE || (dateRecognizer != null && dateRecognizer.isLocked())) {
+            memo.put(v, new Recognized(type, info()));
+        }
+        return type;
+    }
+
+    private ValueTypes classify(String v) {
+        if (speculated != null) {
+            ValueTypes type = speculated.recognize(v);
+            if (type != null) {
+                matched = speculated;
+                return type;
+            }
+        }
+        for (TypeRecognizer<?> recognizer : cascade) {
+            if (recognizer == speculated) continue;
+            ValueTypes type = recognizer.recognize(v);
+            if (type != null) {
+                speculated = recognizer;
+                matched = recognizer;
+                return type;
+            }
+        }
+        return (v.length() > MAX_STRING_LENGTH) ? ValueTypes.TEXT : ValueTypes.STRING;
+    }
+
+    /**
+     * Classifies a single value, including any extra information such as
+     * the date format, without changing the column type.
+     *
+     * @param value cell value
+     * @return TypeInfo
+     */
+    public TypeInfo deduce(String value) {
+        ValueTypes type = recognize(value);
+        return new TypeInfo(type, info());
+    }
+
+    /**
+     * @return extra information about the current value, or null
+     */
+    private Object[] info() {
+        if (rememberedInfo != null) return rememberedInfo;
+        return (matched == null) ? null : matched.getInfo();
+    }
+
+    /**
+     * Classifies a value and widens the column type if necessary.
+     *
+     * @param value cell value
+     * @return the column type after accepting the value
+     */
+    public TypeInfo accept(String value) {
+        if (columnType != null) {
+            ValueTypes current = columnType.getType();
+            if (current == ValueTypes.TEXT) {
+                return columnType;
+            }
+            if (current == ValueTypes.STRING) {
+                if (value != null && value.trim().length() > MAX_STRING_LENGTH) {
+                    columnType = new TypeInfo(ValueTypes.TEXT);
+                }
+                return columnType;
+            }
+        }
+        ValueTypes type = recognize(value);
+        if (columnType == null || FileServiceImpl.rank(type) > FileServiceImpl.rank(columnType.getType())) {
+            columnType = new TypeInfo(type, info());
+        }
+        if (columnType.getType() == ValueTypes.DATE) {
+            updateDateFormat(false);
+        }
+        return columnType;
+    }
+
+    /**
+     * Locks the format of a DATE column, voting on the dates seen so far.
+     *
+     * @return the column type, null if no values have been accepted
+     */
+    public TypeInfo lockDateFormat() {
+        if (columnType != null && columnType.getType() == ValueTypes.DATE) {
+            updateDateFormat(true);
+        }
+        return columnType;
+    }
+
+    private void updateDateFormat(boolean lock) {
+        if (dateRecognizer == null) return;
+        if (lock) {
+            dateRecognizer.lock();
+        }
+        if (dateRecognizer.isLocked()) {
+            if (dateRecognizer.isConforming()) {
+                columnType.setValue("format", dateRecognizer.getFormat());
+            } else {
+                columnType = new TypeInfo(ValueTypes.STRING);
+            }
+        }
+    }
+
+    /**
+     * Locks the date format if the column is a DATE.
+     *
+     * @return the accumulated column type, NONE if no values have been accepted
+     */
+    public TypeInfo getColumnType() {
+        TypeInfo type = lockDateFormat();
+        return (type == null) ? new TypeInfo(ValueTypes.NONE) : type;
+    }
+
+    /**
+     * Gets the accumulated column type without locking the date format,
+     * for reporting the type of a column that is still being read. The
+     * format of a DATE column is the one the dates sampled so far vote
+     * for, and may change as more dates are accepted. If no format matches
+     * every sampled date, the column is a STRING, as it would be once the
+     * format is locked.
+     *
+     * @return the accumulated column type, NONE if no values have been accepted
+     */
+    public TypeInfo peekColumnType() {
+        if (columnType == null) return new TypeInfo(ValueTypes.NONE);
+        if (columnType.getType() != ValueTypes.DATE || dateRecognizer == null || dateRecognizer.isLocked()) {
+            return columnType;
+        }
+        String format = dateRecognizer.voteFormat();
+        if (format == null) return new TypeInfo(ValueTypes.STRING);
+        return new TypeInfo(ValueTypes.DATE, "format", format);
+    }
+
+    /**
+     * The remembered classification of a value.
+     */
+    public static final class Recognized {
+
+        final ValueTypes type;
+        final Object[] info;
+
+        Recognized(ValueTypes type, Object[] info) {
+            this.type = type;
+            this.info = info;
+        }
+
+        public ValueTypes getType() {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.metamorphic.fileservices;
+
+import java.util.Arrays;
+
+/**
+ * A column of typed values for a batch of records, with a validity bitmap
+ * marking the rows that hold a value. Empty values, and values that can't
+ * be converted to the column's type, are null. If rejects are kept, the
+ * text of each value that couldn't be converted is kept as well.
+ */
+public abstract class ColumnVector {
+
+    protected final int capacity;
+
+    // bit set for each row that holds a value
+    private final long[] validity;
+
+    protected int size;
+
+    private int conversionErrors;
+
+    // text of the values that couldn't be converted, if kept
+    private String[] rejects;
+
+    protected ColumnVector(int capacity) {
+        this.capacity = capacity;
+        this.validity = new long[(capacity + 63) >>> 6];
+    }
+
+    /**
+     * @param sqlType type of the column
+     * @param typeInfo inferred type, holding the date format of a TIMESTAMP column
+     * @param capacity maximum number of rows
+     * @return an empty vector for the column
+     */
+    public static ColumnVector create(DataTypes sqlType, TypeInfo typeInfo, int capacity) {
+        return create(sqlType, typeInfo, capacity, null);
+    }
+
+    /**
+     * @param sqlType type of the column
+     * @param typeInfo inferred type, holding the date format of a TIMESTAMP column
+     * @param capacity maximum number of rows
+     * @param dateParser parser of a TIMESTAMP column without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     * @return an empty vector for the column
+     */
+    public static ColumnVector create(DataTypes sqlType, TypeInfo typeInfo, int capacity,
+                                      ITypeParser<ParsedDate> dateParser) {
+        switch (sqlType) {
+            case INTEGER:
+                return new IntegerVector(capacity);
+            case NUMERIC:
+                return new DoubleVector(capacity);
+            case TIMESTAMP:
+                Object format = (typeInfo == null) ? null : typeInfo.getValue("format");
+                return new TimestampVector(capacity, (format == null) ? null : format.toString(), dateParser);
+            case BOOLEAN:
+                return new BooleanVector(capacity);
+            default:
+                return new StringVector(sqlType, capacity);
+        }
+    }
+
+    public abstract DataTypes getType();
+
+    /**
+     * Converts and appends a value held in a character buffer.
+     */
+    abstract void append(char[] buf, int start, int end);
+
+    void appendNull() {
+        size += 1;
+    }
+
+    void appendConversionError(char[] buf, int start, int end) {
+        if (rejects != null) {
+            rejects[size] = new String(buf, start, end - start);
+        }
+        conversionErrors += 1;
+        size += 1;
+    }
+
+    /**
+     * Keeps the text of values that can't be converted, for
+     * {@link #getRejectedText(int)}.
+     */
+    void keepRejects() {
+        if (rejects == null) {
+            rejects = new String[capacity];
+        }
+    }
+
+    boolean isKeepingRejects() {
+        return rejects != null;
+    }
+
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Empties the vector so that it can hold another batch.
+     */
+    void reset() {
+        Arrays.fill(validity, 0L);
+        if (rejects != null) {
+            Arrays.fill(rejects, 0, size, null);
+        }
+        size = 0;
+        conversionErrors = 0;
+    }
+
+    void setValid(int row) {
+        validity[row >>> 6] |= 1L << row;
+    }
+
+    public boolean isNull(int row) {
+        return (validity[row >>> 6] & (1L << row)) == 0;
+    }
+
+    /**
+     * @return number of rows in the vector
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return words of the validity bitmap, one bit per row
+     */
+    public long[] getValidity() {
+        return validity;
+    }
+
+    /**
+     * @return number of non-empty values that could not be converted
+     */
+    public int getConversionErrors() {
+        return conversionErrors;
+    }
+
+    /**
+     * @return the text of the value in the given row if it couldn't be
+     *         converted and rejects are kept, otherwise null
+     */
+    public String getRejectedText(int row) {
+        return (rejects == null) ? null : rejects[row];
+    }
+
+    /**
+     * @return the value in the given row as an Object, or null
+     */
+    public abstract Object getObject(int row);
+
+    static boolean isBlank(char[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(buf[i])) return false;
+        }
+        return true;
+    }
+}
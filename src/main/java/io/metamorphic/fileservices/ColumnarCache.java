@@ -0,0 +1,349 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A sidecar cache of a delimited file in a binary columnar format, so that
+ * repeat readers can skip parsing the text. The cache is self-describing:
+ * its footer holds the FileParameters, the header and the column types.
+ *
+ * Layout, little-endian, with each section aligned to 8 bytes:
+ * <pre>
+ * "MFC1" version:int
+ * row group*        column chunk per column
+ * footer            JSON
+ * footerLength:int "MFC1"
+ * </pre>
+ * A column chunk holds the validity bitmap as longs followed by the values:
+ * ints or longs for INTEGER, doubles for NUMERIC, epoch millis for
+ * TIMESTAMP, packed bits for BOOLEAN, and for strings, an int code per row,
+ * the entry offsets and the UTF-16 characters of the entries.
+ *
+ * Column chunks are read with FileChannel.map, and only for the selected
+ * columns.
+ *
+ * A ColumnarCache may be shared by threads reading different row groups.
+ */
+public class ColumnarCache implements Closeable {
+
+    private static final Log log = LogFactory.getLog(ColumnarCache.class);
+
+    static final byte[] MAGIC = new byte[] { 'M', 'F', 'C', '1' };
+
+    static final int VERSION = 1;
+
+    static final String SUFFIX = ".mfc";
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private final FileParameters params;
+    private final String[] header;
+    private final TypesContainer types;
+    private final long rowCount;
+    private final List<Map<String, Object>> rowGroups;
+    private final Map<String, Object> source;
+
+    /**
+     * Opens a cache file, reading its footer.
+     *
+     * @param file cache file
+     * @throws IOException if the file is not a columnar cache
+     */
+    @SuppressWarnings("unchecked")
+    public ColumnarCache(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        try {
+            channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 16 || !hasMagic(0) || !hasMagic(size - 4)) {
+                throw new IOException(file + " is not a columnar cache");
+            }
+            ByteBuffer tail = read(size - 8, 4);
+            int footerLength = tail.getInt();
+            if (footerLength <= 0 || footerLength > size - 16) {
+                throw new IOException("Corrupt columnar cache footer in " + file);
+            }
+            ByteBuffer head = read(4, 4);
+            if (head.getInt() != VERSION) {
+                throw new IOException("Unsupported columnar cache version in " + file);
+            }
+            ByteBuffer f = read(size - 8 - footerLength, footerLength);
+            byte[] bytes = new byte[footerLength];
+            f.get(bytes);
+            Map<String, Object> footer = new ObjectMapper().readValue(bytes, Map.class);
+            params = FileParameters.fromMap((Map<String, Object>) footer.get("parameters"));
+            List<Map<String, Object>> columns = (List<Map<String, Object>>) footer.get("columns");
+            int n = columns.size();
+            TypeInfo[] typeInfos = new TypeInfo[n];
+            DataTypes[] sqlTypes = new DataTypes[n];
+            String[] names = new String[n];
+            boolean named = false;
+            for (int i = 0; i < n; i++) {
+                Map<String, Object> column = columns.get(i);
+                names[i] = (String) column.get("name");
+                named |= (names[i] != null);
+                sqlTypes[i] = DataTypes.valueOf((String) column.get("sqlType"));
+                String type = (String) column.get("type");
+                typeInfos[i] = new TypeInfo((type == null) ? ValueTypes.NONE : ValueTypes.valueOf(type));
+                if (column.get("format") != null) {
+                    typeInfos[i].setValue("format", column.get("format"));
+                }
+            }
+            header = named ? names : null;
+            types = new TypesContainer(typeInfos, sqlTypes);
+            rowCount = ((Number) footer.get("rowCount")).longValue();
+            rowGroups = (List<Map<String, Object>>) footer.get("rowGroups");
+            source = (Map<String, Object>) footer.get("source");
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param source delimited file
+     * @return the sidecar cache file for the source file
+     */
+    public static File sidecarFile(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /**
+     * Parses a delimited file into typed columns and writes its sidecar
+     * cache.
+     *
+     * @param source delimited file
+     * @param charset encoding of the source file
+     * @param params sniffed file parameters
+     * @param header column names, e.g. from FileService.getHeader
+     * @param types inferred column types
+     * @param batchSize number of rows in each row group
+     * @return the cache file
+     * @throws IOException
+     */
+    public static File create(File source, Charset charset, FileParameters params, String[] header,
+                              TypesContainer types, int batchSize) throws IOException {
+        return create(source, charset, params, header, types, batchSize, null);
+    }
+
+    /**
+     * @param dateParser parser of TIMESTAMP columns without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     * @see #create(File, Charset, FileParameters, String[], TypesContainer, int)
+     */
+    public static File create(File source, Charset charset, FileParameters params, String[] header,
+                              TypesContainer types, int batchSize, ITypeParser<ParsedDate> dateParser)
+            throws IOException {
+        File file = sidecarFile(source);
+        Reader in = new InputStreamReader(new FileInputStream(source), charset);
+        try (ColumnarReader reader = new ColumnarReader(in, params, types, batchSize);
+             ColumnarCacheWriter writer = new ColumnarCacheWriter(file, params, header, types)) {
+            reader.setDateParser(dateParser);
+            writer.setSource(source);
+            ColumnBatch batch;
+            while ((batch = reader.next()) != null) {
+                writer.write(batch);
+            }
+        } catch (IOException | RuntimeException e) {
+            // don't leave an incomplete cache
+            if (!file.delete()) {
+                log.warn("Could not delete incomplete columnar cache " + file);
+            }
+            throw e;
+        }
+        return file;
+    }
+
+    /**
+     * Opens the sidecar cache of a delimited file if it exists and the
+     * source file has not changed since it was written.
+     *
+     * @param source delimited file
+     * @return ColumnarCache, or null if there is no current cache
+     */
+    public static ColumnarCache openIfCurrent(File source) {
+        File file = sidecarFile(source);
+        if (!file.exists()) return null;
+        try {
+            ColumnarCache cache = new ColumnarCache(file);
+            if (cache.isCurrent(source)) {
+                return cache;
+            }
+            cache.close();
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable columnar cache " + file + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @param source delimited file
+     * @return true if the cache was written from the source file as it is now
+     */
+    public boolean isCurrent(File source) {
+        if (this.source == null) return false;
+        return ((Number) this.source.get("length")).longValue() == source.length() &&
+                ((Number) this.source.get("lastModified")).longValue() == source.lastModified();
+    }
+
+    public FileParameters getFileParameters() {
+        return params;
+    }
+
+    /**
+     * @return column names, or null if none were written
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    public TypesContainer getTypes() {
+        return types;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getRowGroupCount() {
+        return rowGroups.size();
+    }
+
+    /**
+     * @param name column name
+     * @return index of the column, or -1
+     */
+    public int getColumnIndex(String name) {
+        if (header == null) return -1;
+        for (int i = 0; i < header.length; i++) {
+            if (name.equals(header[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads all columns of a row group.
+     *
+     * @param rowGroup index of the row group
+     * @return ColumnBatch
+     * @throws IOException
+     */
+    public ColumnBatch read(int rowGroup) throws IOException {
+        int[] columns = new int[types.sqlTypes.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = i;
+        }
+        return read(rowGroup, columns);
+    }
+
+    /**
+     * Reads the selected columns of a row group. Other columns are not read.
+     *
+     * @param rowGroup index of the row group
+     * @param columns indexes of the columns to read
+     * @return ColumnBatch holding the selected columns in the given order
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public ColumnBatch read(int rowGroup, int[] columns) throws IOException {
+        Map<String, Object> group = rowGroups.get(rowGroup);
+        int rows = ((Number) group.get("rows")).intValue();
+        long firstRecord = ((Number) group.get("firstRecord")).longValue();
+        List<Map<String, Object>> chunks = (List<Map<String, Object>>) group.get("chunks");
+        ColumnVector[] vectors = new ColumnVector[columns.length];
+        String[] names = (header == null) ? null : new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            int c = columns[i];
+            vectors[i] = readChunk(chunks.get(c), types.sqlTypes[c], types.types[c], rows);
+            if (names != null) {
+                names[i] = header[c];
+            }
+        }
+        ColumnBatch batch = new ColumnBatch(names, vectors, firstRecord);
+        batch.setRowCount(rows);
+        return batch;
+    }
+
+    private ColumnVector readChunk(Map<String, Object> chunk, DataTypes sqlType, TypeInfo typeInfo, int rows)
+            throws IOException {
+        long offset = ((Number) chunk.get("offset")).longValue();
+        long length = ((Number) chunk.get("length")).longValue();
+        ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        ColumnVector vector = ColumnVector.create(sqlType, typeInfo, rows);
+        int words = ColumnarCacheWriter.words(rows);
+        buf.asLongBuffer().get(vector.getValidity(), 0, words);
+        buf.position(8 * words);
+        if (vector instanceof IntegerVector) {
+            IntegerVector v = (IntegerVector) vector;
+            if (((Number) chunk.get("width")).intValue() == 8) {
+                v.promote();
+                slice(buf).asLongBuffer().get(v.getLongs(), 0, rows);
+            } else {
+                slice(buf).asIntBuffer().get(v.getInts(), 0, rows);
+            }
+        } else if (vector instanceof DoubleVector) {
+            slice(buf).asDoubleBuffer().get(((DoubleVector) vector).getDoubles(), 0, rows);
+        } else if (vector instanceof TimestampVector) {
+            slice(buf).asLongBuffer().get(((TimestampVector) vector).getMillis(), 0, rows);
+        } else if (vector instanceof BooleanVector) {
+            slice(buf).asLongBuffer().get(((BooleanVector) vector).getBits(), 0, words);
+        } else {
+            StringVector v = (StringVector) vector;
+            int entries = ((Number) chunk.get("entries")).intValue();
+            int chars = ((Number) chunk.get("chars")).intValue();
+            slice(buf).asIntBuffer().get(v.getCodes(), 0, rows);
+            buf.position(buf.position() + aligned(4L * rows));
+            int[] offsets = new int[entries + 1];
+            slice(buf).asIntBuffer().get(offsets);
+            buf.position(buf.position() + aligned(4L * (entries + 1)));
+            char[] arena = new char[chars];
+            slice(buf).asCharBuffer().get(arena);
+            v.load(arena, offsets, entries, Boolean.TRUE.equals(chunk.get("dictionary")));
+        }
+        vector.setSize(rows);
+        return vector;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf) {
+        return buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int aligned(long n) {
+        return (int) ((n + 7) & ~7L);
+    }
+
+    private boolean hasMagic(long pos) throws IOException {
+        byte[] bytes = new byte[4];
+        read(pos, 4).get(bytes);
+        return Arrays.equals(bytes, MAGIC);
+    }
+
+    private ByteBuffer read(long pos, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,254 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes batches of typed column vectors to a columnar cache file, which
+ * can be read back by a {@link ColumnarCache} without parsing. See
+ * ColumnarCache for the layout.
+ */
+public class ColumnarCacheWriter implements Closeable {
+
+    private static final Log log = LogFactory.getLog(ColumnarCacheWriter.class);
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private long position;
+
+    private final FileParameters params;
+    private final String[] header;
+    private final TypesContainer types;
+
+    private File source;
+
+    private final List<Map<String, Object>> rowGroups = new ArrayList<>();
+    private long rowCount;
+
+    /**
+     * @param file cache file to write
+     * @param params parameters used to parse the source file
+     * @param header column names, e.g. from FileService.getHeader
+     * @param types inferred column types
+     * @throws IOException
+     */
+    public ColumnarCacheWriter(File file, FileParameters params, String[] header, TypesContainer types) throws IOException {
+        this.file = file;
+        this.params = params;
+        this.header = header;
+        this.types = types;
+        this.out = new FileOutputStream(file);
+        this.channel = out.getChannel();
+        this.buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(ColumnarCache.MAGIC);
+        buf.putInt(ColumnarCache.VERSION);
+        position = 8;
+    }
+
+    /**
+     * Records the length and modification time of the source file, so that
+     * a stale cache can be detected.
+     *
+     * @param source File
+     */
+    public void setSource(File source) {
+        this.source = source;
+    }
+
+    /**
+     * Writes a batch as a row group.
+     *
+     * @param batch ColumnBatch with a column for each type
+     * @throws IOException
+     */
+    public void write(ColumnBatch batch) throws IOException {
+        int rows = batch.getRowCount();
+        List<Map<String, Object>> chunks = new ArrayList<>(batch.getColumnCount());
+        for (ColumnVector column : batch.getColumns()) {
+            chunks.add(writeChunk(column, rows));
+        }
+        Map<String, Object> rowGroup = new LinkedHashMap<>();
+        rowGroup.put("rows", rows);
+        rowGroup.put("firstRecord", batch.getFirstRecord());
+        rowGroup.put("chunks", chunks);
+        rowGroups.add(rowGroup);
+        rowCount += rows;
+    }
+
+    private Map<String, Object> writeChunk(ColumnVector column, int rows) throws IOException {
+        Map<String, Object> chunk = new LinkedHashMap<>();
+        long offset = position;
+        chunk.put("offset", offset);
+        putLongs(column.getValidity(), words(rows));
+        if (column instanceof IntegerVector) {
+            IntegerVector v = (IntegerVector) column;
+            if (v.isLong()) {
+                chunk.put("width", 8);
+                putLongs(v.getLongs(), rows);
+            } else {
+                chunk.put("width", 4);
+                putInts(v.getInts(), rows);
+            }
+        } else if (column instanceof DoubleVector) {
+            putDoubles(((DoubleVector) column).getDoubles(), rows);
+        } else if (column instanceof TimestampVector) {
+            putLongs(((TimestampVector) column).getMillis(), rows);
+        } else if (column instanceof BooleanVector) {
+            putLongs(((BooleanVector) column).getBits(), words(rows));
+        } else {
+            StringVector v = (StringVector) column;
+            int entries = v.getEntryCount();
+            int[] offsets = v.getOffsets();
+            chunk.put("entries", entries);
+            chunk.put("chars", offsets[entries]);
+            chunk.put("dictionary", v.isDictionaryEncoded());
+            putInts(v.getCodes(), rows);
+            putInts(offsets, entries + 1);
+            putChars(v.getArena(), offsets[entries]);
+        }
+        chunk.put("length", position - offset);
+        chunk.put("errors", column.getConversionErrors());
+        return chunk;
+    }
+
+    static int words(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    private void putLongs(long[] values, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ensure(8);
+            buf.putLong(values[i]);
+        }
+        position += 8L * n;
+    }
+
+    private void putDoubles(double[] values, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ensure(8);
+            buf.putDouble(values[i]);
+        }
+        position += 8L * n;
+    }
+
+    private void putInts(int[] values, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ensure(4);
+            buf.putInt(values[i]);
+        }
+        position += 4L * n;
+        align();
+    }
+
+    private void putChars(char[] values, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            ensure(2);
+            buf.putChar(values[i]);
+        }
+        position += 2L * n;
+        align();
+    }
+
+    /**
+     * Pads to an 8-byte boundary, so that each section can be viewed as an
+     * array of its element type.
+     */
+    private void align() throws IOException {
+        while ((position & 7) != 0) {
+            ensure(1);
+            buf.put((byte) 0);
+            position += 1;
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() < n) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * @return number of rows written
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes the footer and closes the file.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            byte[] footer = new ObjectMapper().writeValueAsBytes(footer());
+            for (byte b : footer) {
+                ensure(1);
+                buf.put(b);
+            }
+            ensure(8);
+            buf.putInt(footer.length);
+            buf.put(ColumnarCache.MAGIC);
+            flush();
+        } finally {
+            out.close();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote " + rowCount + " rows in " + rowGroups.size() + " row groups to " + file);
+        }
+    }
+
+    private Map<String, Object> footer() {
+        Map<String, Object> footer = new LinkedHashMap<>();
+        footer.put("version", ColumnarCache.VERSION);
+        if (source != null) {
+            Map<String, Object> src = new LinkedHashMap<>();
+            src.put("path", source.getAbsolutePath());
+            src.put("length", source.length());
+            src.put("lastModified", source.lastModified());
+            footer.put("source", src);
+        }
+        footer.put("parameters", params.toMap());
+        List<Map<String, Object>> columns = new ArrayList<>(types.sqlTypes.length);
+        for (int i = 0; i < types.sqlTypes.length; i++) {
+            Map<String, Object> column = new LinkedHashMap<>();
+            column.put("name", (header != null && i < header.length) ? header[i] : null);
+            column.put("sqlType", types.sqlTypes[i].name());
+            TypeInfo typeInfo = types.types[i];
+            column.put("type", (typeInfo == null) ? null : typeInfo.getType().name());
+            Object format = (typeInfo == null) ? null : typeInfo.getValue("format");
+            column.put("format", (format == null) ? null : format.toString());
+            columns.add(column);
+        }
+        footer.put("columns", columns);
+        footer.put("rowCount", rowCount);
+        footer.put("rowGroups", rowGroups);
+        return footer;
+    }
+}
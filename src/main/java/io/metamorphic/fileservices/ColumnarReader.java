@@ -0,0 +1,161 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Converts delimited records into batches of typed column vectors, using
+ * the sniffed FileParameters and the inferred types, without creating a
+ * String per field.
+ *
+ * Each batch holds at most batchSize rows, so memory is bounded by the
+ * batch size rather than the file size. Missing trailing fields are null
+ * and extra fields are ignored.
+ */
+public class ColumnarReader implements Closeable {
+
+    private static final Log log = LogFactory.getLog(ColumnarReader.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 8192;
+
+    private final RecordReader reader;
+    private final TypesContainer types;
+    private final int batchSize;
+
+    private String[] header;
+    private boolean started;
+    private boolean keepRejects;
+    private ITypeParser<ParsedDate> dateParser;
+    private long recordCount;
+
+    public ColumnarReader(Reader reader, FileParameters params, TypesContainer types) {
+        this(reader, params, types, DEFAULT_BATCH_SIZE);
+    }
+
+    public ColumnarReader(Reader reader, FileParameters params, TypesContainer types, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.reader = new RecordReader(reader, params);
+        this.types = types;
+        this.batchSize = batchSize;
+        if (!params.isHeader()) {
+            started = true;
+        }
+    }
+
+    public ITypeParser<ParsedDate> getDateParser() {
+        return dateParser;
+    }
+
+    /**
+     * @param dateParser parser of TIMESTAMP columns without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     */
+    public void setDateParser(ITypeParser<ParsedDate> dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * @param keepRejects whether the vectors keep the text of values that
+     *                    can't be converted, and reject integers with
+     *                    leading zeros
+     */
+    void setKeepRejects(boolean keepRejects) {
+        this.keepRejects = keepRejects;
+    }
+
+    /**
+     * @return column names, or null if the file has no header
+     * @throws IOException
+     */
+    public String[] getHeader() throws IOException {
+        start();
+        return header;
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            started = true;
+            if (reader.next()) {
+                header = reader.getFields();
+            }
+        }
+    }
+
+    /**
+     * Reads the next batch of records.
+     *
+     * @return ColumnBatch, or null at the end of input
+     * @throws IOException
+     */
+    public ColumnBatch next() throws IOException {
+        return next(null);
+    }
+
+    /**
+     * Reads the next batch of records into a batch returned earlier by this
+     * reader, which is emptied first, or into a new batch.
+     *
+     * @param reuse batch to reuse, or null
+     * @return ColumnBatch, or null at the end of input
+     * @throws IOException
+     */
+    ColumnBatch next(ColumnBatch reuse) throws IOException {
+        start();
+        int n = types.sqlTypes.length;
+        ColumnBatch batch;
+        ColumnVector[] columns;
+        if (reuse != null) {
+            reuse.reset(recordCount);
+            batch = reuse;
+            columns = reuse.getColumns();
+        } else {
+            columns = new ColumnVector[n];
+            for (int j = 0; j < n; j++) {
+                columns[j] = ColumnVector.create(types.sqlTypes[j], types.types[j], batchSize, dateParser);
+                if (keepRejects) {
+                    columns[j].keepRejects();
+                }
+            }
+            batch = new ColumnBatch(header, columns, recordCount);
+        }
+        int rows = 0;
+        while (rows < batchSize && reader.next()) {
+            char[] buf = reader.getBuffer();
+            int fieldCount = reader.getFieldCount();
+            for (int j = 0; j < n; j++) {
+                if (j < fieldCount) {
+                    columns[j].append(buf, reader.getFieldStart(j), reader.getFieldEnd(j));
+                } else {
+                    columns[j].appendNull();
+                }
+            }
+            rows += 1;
+        }
+        if (rows == 0) return null;
+        recordCount += rows;
+        batch.setRowCount(rows);
+        if (log.isDebugEnabled()) {
+            log.debug("Read batch of " + rows + " rows from record " + batch.getFirstRecord());
+        }
+        return batch;
+    }
+
+    /**
+     * @return number of records read, not counting the header
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
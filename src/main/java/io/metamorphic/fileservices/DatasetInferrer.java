@@ -0,0 +1,291 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Infers one schema for a dataset of part files with the same layout.
+ *
+ * The parameters are sniffed from a representative file only, the first
+ * given. Every file, including the first, is then read in parallel up to
+ * the sample size, checked against the representative's dialect and
+ * header, and typed from the sample. The types of the representative and
+ * of the files that match it are merged using the same widening order as
+ * a single column, so the merged type accepts the values of every file. A
+ * DATE column whose files lock different formats becomes a STRING.
+ *
+ * A few records with the wrong number of fields are common in real files,
+ * so they are counted separately, and only make a file drifted if more
+ * than maxRaggedFraction of its sampled records have them.
+ */
+public class DatasetInferrer {
+
+    private static final Log log = LogFactory.getLog(DatasetInferrer.class);
+
+    public static final int DEFAULT_SAMPLE_BYTES = 1 << 20;
+
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+
+    public static final double DEFAULT_MAX_RAGGED_FRACTION = 0.05;
+
+    private final FileServiceImpl fileService;
+    private final Charset charset;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int sampleBytes = DEFAULT_SAMPLE_BYTES;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private double maxRaggedFraction = DEFAULT_MAX_RAGGED_FRACTION;
+
+    public DatasetInferrer(FileServiceImpl fileService, Charset charset) {
+        this.fileService = fileService;
+        this.charset = charset;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of files read at a time
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * @param sampleBytes maximum number of bytes read from the start of each file
+     */
+    public void setSampleBytes(int sampleBytes) {
+        this.sampleBytes = Math.max(1, sampleBytes);
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize maximum number of records typed in each file
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(1, sampleSize);
+    }
+
+    public double getMaxRaggedFraction() {
+        return maxRaggedFraction;
+    }
+
+    /**
+     * @param maxRaggedFraction fraction of a file's sampled records that may
+     *                          have the wrong number of fields before the
+     *                          file is drifted
+     */
+    public void setMaxRaggedFraction(double maxRaggedFraction) {
+        this.maxRaggedFraction = Math.max(0, maxRaggedFraction);
+    }
+
+    /**
+     * Infers the schema of a dataset.
+     *
+     * @param files part files of the dataset; the first is sniffed
+     * @return DatasetSchema
+     * @throws IOException
+     * @throws IllegalArgumentException if the first file can't be sniffed
+     *                                  or has no records to type
+     */
+    public DatasetSchema infer(List<File> files) throws IOException {
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No files");
+        }
+        String sample = readSample(files.get(0));
+        FileParameters params = fileService.sniff(new SniffContext(sample));
+        if (params == null) {
+            throw new IllegalArgumentException("Could not sniff the parameters of " + files.get(0));
+        }
+        String[] header = null;
+        int columnCount = 0;
+        try (RecordReader reader = new RecordReader(new CharSequenceReader(sample), params)) {
+            if (reader.next()) {
+                columnCount = reader.getFieldCount();
+                if (params.isHeader()) {
+                    header = reader.getFields();
+                }
+            }
+        }
+        List<FileSchema> schemas = inferFiles(files, params, header, columnCount);
+        TypesContainer types = merge(schemas);
+        if (log.isDebugEnabled()) {
+            log.debug("Inferred " + types.types.length + " columns from " + files.size() + " files; " +
+                    (files.size() - countMatching(schemas)) + " drifted");
+        }
+        return new DatasetSchema(params, header, types, schemas);
+    }
+
+    private List<FileSchema> inferFiles(List<File> files, final FileParameters params, final String[] header,
+                                        final int columnCount) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, files.size()));
+        try {
+            List<Future<FileSchema>> futures = new ArrayList<>(files.size());
+            for (final File file : files) {
+                futures.add(executor.submit(new Callable<FileSchema>() {
+                    @Override
+                    public FileSchema call() throws IOException {
+                        return inferFile(file, params, header, columnCount);
+                    }
+                }));
+            }
+            List<FileSchema> schemas = new ArrayList<>(files.size());
+            for (Future<FileSchema> future : futures) {
+                try {
+                    schemas.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while inferring types", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+            return schemas;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Types a sample of a file, and checks it against the representative
+     * file, whose first record gives the number of columns.
+     */
+    private FileSchema inferFile(File file, FileParameters params, String[] header, int columnCount)
+            throws IOException {
+        String sample = readSample(file);
+        List<String> drift = new ArrayList<>();
+        if (sample.isEmpty()) {
+            drift.add("no complete records in the sample");
+            return new FileSchema(file, null, new TypeInfo[0], 0, 0, drift);
+        }
+        String delimiter = params.getColumnDelimiter();
+        int firstBreak = firstLineBreak(sample);
+        if (columnCount > 1 && delimiter != null && !delimiter.isEmpty() &&
+                !sample.substring(0, firstBreak).contains(delimiter)) {
+            drift.add("first line has no delimiter");
+        }
+        RowSource rows;
+        String[] fileHeader = null;
+        try (RecordReader reader = new RecordReader(new CharSequenceReader(sample), params)) {
+            if (params.isHeader() && reader.next()) {
+                fileHeader = reader.getFields();
+                if (!Arrays.equals(fileHeader, header)) {
+                    drift.add("header differs: " + Arrays.toString(fileHeader));
+                }
+            }
+            rows = Rows.read(reader, sampleSize);
+        }
+        int wrongFieldCount = 0;
+        for (int r = 0; r < rows.size(); r++) {
+            if (rows.get(r).size() != columnCount) {
+                wrongFieldCount += 1;
+            }
+        }
+        if (wrongFieldCount > maxRaggedFraction * rows.size()) {
+            drift.add(wrongFieldCount + " of " + rows.size() + " sampled records don't have " + columnCount + " fields");
+        }
+        TypeInfo[] types = fileService.getTypes(rows, sampleSize, columnCount, false).types;
+        return new FileSchema(file, fileHeader, types, rows.size(), wrongFieldCount, drift);
+    }
+
+    private static int firstLineBreak(String sample) {
+        for (int i = 0; i < sample.length(); i++) {
+            char c = sample.charAt(i);
+            if (c == '\n' || c == '\r') return i;
+        }
+        return sample.length();
+    }
+
+    /**
+     * Merges the types of the representative file, which is first, and of
+     * the files that haven't drifted, widening each column to the widest
+     * type seen.
+     */
+    private TypesContainer merge(List<FileSchema> schemas) {
+        TypeInfo[] merged = null;
+        for (int f = 0; f < schemas.size(); f++) {
+            FileSchema schema = schemas.get(f);
+            if (f > 0 && schema.isDrifted()) continue;
+            TypeInfo[] types = schema.getTypes();
+            if (merged == null) {
+                merged = new TypeInfo[types.length];
+            }
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] = widen(merged[i], types[i]);
+            }
+        }
+        if (merged == null || merged.length == 0) {
+            throw new IllegalArgumentException("No records to infer types from in " + schemas.get(0).getFile());
+        }
+        DataTypes[] sqlTypes = new DataTypes[merged.length];
+        for (int i = 0; i < merged.length; i++) {
+            if (merged[i] == null) {
+                merged[i] = new TypeInfo(ValueTypes.NONE);
+            }
+            sqlTypes[i] = fileService.getSqlType(merged[i].getType());
+        }
+        return new TypesContainer(merged, sqlTypes);
+    }
+
+    static TypeInfo widen(TypeInfo a, TypeInfo b) {
+        if (a == null || a.getType() == ValueTypes.NONE) return b;
+        if (b == null || b.getType() == ValueTypes.NONE) return a;
+        if (a.getType() == ValueTypes.DATE && b.getType() == ValueTypes.DATE) {
+            Object format = a.getValue("format");
+            return (format == null || format.equals(b.getValue("format"))) ? a : new TypeInfo(ValueTypes.STRING);
+        }
+        return (FileServiceImpl.rank(b.getType()) > FileServiceImpl.rank(a.getType())) ? b : a;
+    }
+
+    private static int countMatching(List<FileSchema> schemas) {
+        int n = 0;
+        for (FileSchema schema : schemas) {
+            if (!schema.isDrifted()) n += 1;
+        }
+        return n;
+    }
+
+    /**
+     * Reads the complete lines at the start of a file, up to the sample size.
+     */
+    private String readSample(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            int n = (int) Math.min(channel.size(), sampleBytes);
+            ByteBuffer buf = ByteBuffer.allocate(n);
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+                // read the sample
+            }
+            byte[] bytes = buf.array();
+            int end = buf.position();
+            if (end < channel.size()) {
+                // drop the last line, which may be cut
+                while (end > 0 && bytes[end - 1] != '\n' && bytes[end - 1] != '\r') {
+                    end -= 1;
+                }
+            }
+            return new String(bytes, 0, end, charset);
+        }
+    }
+}
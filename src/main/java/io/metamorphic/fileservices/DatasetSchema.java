@@ -0,0 +1,63 @@
+package io.metamorphic.fileservices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The schema of a dataset of files with the same layout: the parameters
+ * sniffed from a representative file, and the column types merged across
+ * the files that share its dialect and header.
+ */
+public class DatasetSchema {
+
+    private final FileParameters params;
+    private final String[] header;
+    private final TypesContainer types;
+    private final List<FileSchema> files;
+
+    public DatasetSchema(FileParameters params, String[] header, TypesContainer types, List<FileSchema> files) {
+        this.params = params;
+        this.header = header;
+        this.types = types;
+        this.files = files;
+    }
+
+    public FileParameters getParameters() {
+        return params;
+    }
+
+    /**
+     * @return column names, or null if the dataset has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return column types merged across the files that haven't drifted
+     */
+    public TypesContainer getTypes() {
+        return types;
+    }
+
+    /**
+     * @return the schema of each file, in the order given
+     */
+    public List<FileSchema> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return files whose dialect or header differs from the representative
+     *         file, which are left out of the merged types
+     */
+    public List<FileSchema> getDriftedFiles() {
+        List<FileSchema> drifted = new ArrayList<>();
+        for (FileSchema file : files) {
+            if (file.isDrifted()) {
+                drifted.add(file);
+            }
+        }
+        return drifted;
+    }
+}
@@ -1,15 +1,14 @@
 package io.metamorphic.fileservices;
 
 import java.text.DateFormat;
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created by markmo on 4/07/2015.
+ *
+ * Formatters are cached per thread, so a DateParser may be shared.
  */
 public class DateParser implements ITypeParser<ParsedDate> {
 
@@ -56,12 +55,20 @@ public class DateParser implements ITypeParser<ParsedDate> {
 
     private List<String> dfList;
 
+    // formats in order of preference, used to break ties when voting
+    private List<String> formats;
+
+    private final ThreadLocal<Map<String, DateFormat>> formatCache = new FormatCache<>();
+
+    private final ThreadLocal<Map<String, StrictFormat>> strictFormatCache = new FormatCache<>();
+
     public DateParser() {
-        this.dfList = Arrays.asList(dateFormats);
+        this(dateFormats);
     }
 
     public DateParser(String[] dateFormats) {
         this.dfList = Arrays.asList(dateFormats);
+        this.formats = new ArrayList<>(new LinkedHashSet<>(dfList));
     }
 
     @Override
@@ -71,9 +78,8 @@ public class DateParser implements ITypeParser<ParsedDate> {
         if (v.isEmpty()) return null;
         int i = 0;
         for (String format : dfList) {
-            try {
-                DateFormat df = new SimpleDateFormat(format);
-                Date dt = df.parse(v);
+            Date dt = parse(getDateFormat(format), v);
+            if (dt != null) {
 
                 // Move valid format to top of list
                 if (i > 0) {
@@ -81,15 +87,236 @@ public class DateParser implements ITypeParser<ParsedDate> {
                 }
 
                 return new ParsedDate(dt, format);
-
-            } catch (ParseException e) {
-                // ignore
             }
             i += 1;
         }
         return null;
     }
 
+    /**
+     * Parses a value using a single format.
+     *
+     * @param value String
+     * @param format date format pattern
+     * @return ParsedDate, or null if the value does not match the format
+     */
+    public ParsedDate parse(String value, String format) {
+        if (value == null) return null;
+        String v = value.trim();
+        if (v.isEmpty()) return null;
+        Date dt = parse(getDateFormat(format), v);
+        return (dt == null) ? null : new ParsedDate(dt, format);
+    }
+
+    /**
+     * Parses a value as DateFormat.parse(String) does, but returns null on
+     * failure rather than throwing, as most values tried aren't dates and
+     * filling in a stack trace for each costs more than the parse.
+     */
+    private static Date parse(DateFormat df, String value) {
+        ParsePosition pos = new ParsePosition(0);
+        Date dt = df.parse(value, pos);
+        return (pos.getIndex() == 0) ? null : dt;
+    }
+
+    /**
+     * Parses a value using a single format, rejecting out of range fields
+     * (e.g. a month of 13), trailing characters, and numeric fields of the
+     * wrong width (e.g. a 2-digit year for "yyyy", which SimpleDateFormat
+     * accepts even when not lenient).
+     *
+     * @param value String
+     * @param format date format pattern
+     * @return ParsedDate, or null if the value does not match the format
+     */
+    public ParsedDate parseStrict(String value, String format) {
+        if (value == null) return null;
+        String v = value.trim();
+        if (v.isEmpty()) return null;
+        Map<String, StrictFormat> cache = strictFormatCache.get();
+        StrictFormat sf = cache.get(format);
+        if (sf == null) {
+            sf = new StrictFormat(format);
+            cache.put(format, sf);
+        }
+        if (!sf.matchesWidths(v)) return null;
+        ParsePosition pos = new ParsePosition(0);
+        Date dt = sf.df.parse(v, pos);
+        if (dt == null || pos.getIndex() != v.length()) return null;
+        return new ParsedDate(dt, format);
+    }
+
+    /**
+     * Chooses a single format for a column of dates. Each value votes for
+     * every format that strictly parses it, and the format with the most
+     * votes wins. A value such as 13/02/2015 only votes for day-first
+     * formats, which settles the dd/MM vs MM/dd ambiguity for the column.
+     * Ties go to the format listed first.
+     *
+     * @param values sample of date values from one column
+     * @return the winning format, or null if no value strictly matches any format
+     */
+    public String voteFormat(Collection<String> values) {
+        return voteFormat(values, null);
+    }
+
+    /**
+     * @param values sample of date values from one column
+     * @param votes if not null, receives the number of votes for the winning format
+     * @return the winning format, or null if no value strictly matches any format
+     */
+    String voteFormat(Collection<String> values, int[] votes) {
+        int[] counts = new int[formats.size()];
+        for (String value : values) {
+            for (int i = 0; i < counts.length; i++) {
+                if (parseStrict(value, formats.get(i)) != null) {
+                    counts[i] += 1;
+                }
+            }
+        }
+        int best = -1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0 && (best < 0 || counts[i] > counts[best])) {
+                best = i;
+            }
+        }
+        if (best < 0) return null;
+        if (votes != null) {
+            votes[0] = counts[best];
+        }
+        return formats.get(best);
+    }
+
+    private DateFormat getDateFormat(String format) {
+        Map<String, DateFormat> cache = formatCache.get();
+        DateFormat df = cache.get(format);
+        if (df == null) {
+            df = new SimpleDateFormat(format);
+            cache.put(format, df);
+        }
+        return df;
+    }
+
+    private static class FormatCache<T> extends ThreadLocal<Map<String, T>> {
+
+        @Override
+        protected Map<String, T> initialValue() {
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * A non-lenient formatter, with the widths allowed for each run of
+     * digits in a value, derived from the numeric fields of the pattern.
+     */
+    private static final class StrictFormat {
+
+        final DateFormat df;
+
+        // {min, max} digits for each run of digits, in order
+        final List<int[]> widths = new ArrayList<>();
+
+        // true if only the leading runs are checked, as the pattern has a
+        // time zone field, whose digits are not checked
+        boolean prefix;
+
+        StrictFormat(String pattern) {
+            df = new SimpleDateFormat(pattern);
+            df.setLenient(false);
+            int[] run = null;
+            int i = 0;
+            int n = pattern.length();
+            while (i < n) {
+                char c = pattern.charAt(i);
+                if (c == '\'') {
+                    // quoted literal, '' being a single quote
+                    int j = pattern.indexOf('\'', i + 1);
+                    i = (j < 0) ? n : j + 1;
+                    run = null;
+                    continue;
+                }
+                if (!Character.isLetter(c)) {
+                    i += 1;
+                    run = null;
+                    continue;
+                }
+                int j = i;
+                while (j < n && pattern.charAt(j) == c) j += 1;
+                int count = j - i;
+                i = j;
+                if (c == 'Z' || c == 'X' || c == 'z') {
+                    prefix = true;
+                    return;
+                }
+                if (!isNumeric(c, count)) {
+                    run = null;
+                    continue;
+                }
+                if (run == null) {
+                    run = width(c, count);
+                    widths.add(run);
+                } else {
+                    // abutting fields, which are parsed by pattern width
+                    run[0] += count;
+                    run[1] = run[0];
+                }
+            }
+        }
+
+        private static boolean isNumeric(char c, int count) {
+            switch (c) {
+                case 'M':
+                case 'L':
+                    return count <= 2;
+                case 'y':
+                case 'Y':
+                case 'u':
+                case 'd':
+                case 'D':
+                case 'F':
+                case 'w':
+                case 'W':
+                case 'H':
+                case 'h':
+                case 'k':
+                case 'K':
+                case 'm':
+                case 's':
+                case 'S':
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private static int[] width(char c, int count) {
+            if (c == 'y' || c == 'Y') {
+                return (count == 1) ? new int[] { 1, Integer.MAX_VALUE } : new int[] { count, count };
+            }
+            return (count == 1) ? new int[] { 1, Integer.MAX_VALUE } : new int[] { 1, count };
+        }
+
+        boolean matchesWidths(String value) {
+            int k = 0;
+            int i = 0;
+            int n = value.length();
+            while (i < n && !(prefix && k == widths.size())) {
+                if (!Character.isDigit(value.charAt(i))) {
+                    i += 1;
+                    continue;
+                }
+                int j = i;
+                while (j < n && Character.isDigit(value.charAt(j))) j += 1;
+                if (k == widths.size()) return false;
+                int[] w = widths.get(k++);
+                int len = j - i;
+                if (len < w[0] || len > w[1]) return false;
+                i = j;
+            }
+            return k == widths.size();
+        }
+    }
+
     private static <T> List<T> rearrange(List<T> items, T input) {
         int index = items.indexOf(input);
         List<T> copy;
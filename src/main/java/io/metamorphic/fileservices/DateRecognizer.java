@@ -0,0 +1,128 @@
+package io.metamorphic.fileservices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recognises dates, trying the format of the last date seen in the column
+ * before falling back to the full list of formats.
+ *
+ * The dates seen are sampled until the column's format is locked (see
+ * {@link #lock()}), after which every value is parsed with exactly one
+ * formatter.
+ */
+public class DateRecognizer extends TypeRecognizer<ParsedDate> {
+
+    // number of dates voting on the column's format before it is locked
+    static final int VOTE_SAMPLE_SIZE = 100;
+
+    private String format;
+
+    private List<String> sample = new ArrayList<>();
+
+    private boolean locked;
+
+    private boolean conforming = true;
+
+    public DateRecognizer(ITypeParser<ParsedDate> parser) {
+        super(ValueTypes.DATE, parser);
+    }
+
+    @Override
+    public ValueTypes recognize(String value) {
+        ITypeParser<ParsedDate> parser = getParser();
+        if (locked) {
+            return (((DateParser) parser).parseStrict(value, format) == null) ? null : ValueTypes.DATE;
+        }
+        if (format != null && parser instanceof DateParser) {
+            if (((DateParser) parser).parse(value, format) != null) {
+                addToSample(value);
+                return ValueTypes.DATE;
+            }
+        }
+        ParsedDate dt = parser.parse(value);
+        if (dt == null) return null;
+        format = dt.getFormat();
+        addToSample(value);
+        return ValueTypes.DATE;
+    }
+
+    private void addToSample(String value) {
+        if (sample == null) return;
+        sample.add(value);
+        if (sample.size() >= VOTE_SAMPLE_SIZE) {
+            lock();
+        }
+    }
+
+    /**
+     * Votes on the format of the dates sampled so far and locks it for
+     * the column. Has no effect if the date parser is not a DateParser,
+     * or if no sampled value strictly matches a known format.
+     *
+     * @return false if some sampled values do not match the locked format
+     */
+    public boolean lock() {
+        if (locked || sample == null) return conforming;
+        if (getParser() instanceof DateParser && !sample.isEmpty()) {
+            int[] votes = new int[1];
+            String voted = ((DateParser) getParser()).voteFormat(sample, votes);
+            if (voted != null) {
+                format = voted;
+                locked = true;
+                conforming = (votes[0] == sample.size());
+            }
+        }
+        sample = null;
+        return conforming;
+    }
+
+    /**
+     * Votes on the format of the dates sampled so far without locking it,
+     * so that later dates still vote.
+     *
+     * @return the format every sampled date matches, or null if there is
+     *         no such format; the last format seen if there is no vote
+     */
+    public String voteFormat() {
+        if (locked) return conforming ? format : null;
+        if (sample == null || sample.isEmpty() || !(getParser() instanceof DateParser)) return format;
+        int[] votes = new int[1];
+        String voted = ((DateParser) getParser()).voteFormat(sample, votes);
+        if (voted == null) return format;
+        return (votes[0] == sample.size()) ? voted : null;
+    }
+
+    /**
+     * Locks the column to a known format, e.g. one recorded in a TypeInfo.
+     *
+     * @param format date format pattern
+     */
+    public void lock(String format) {
+        if (!(getParser() instanceof DateParser)) return;
+        this.format = format;
+        this.locked = true;
+        this.conforming = true;
+        this.sample = null;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    /**
+     * @return whether every sampled date matched the locked format
+     */
+    public boolean isConforming() {
+        return conforming;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    @Override
+    public Object[] getInfo() {
+        return (format == null) ? null : new Object[] { "format", format };
+    }
+}
@@ -0,0 +1,750 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Finds the records inserted, deleted and changed between two deliveries
+ * of the same feed, so that only the delta need be loaded.
+ *
+ * Each record is reduced to a 64-bit hash of its key columns and a 64-bit
+ * hash of the whole record, computed from the reader's buffer without
+ * creating Strings. The hashes of the old file are held in an open
+ * addressing table outside the Java heap, and probed with the hashes of the
+ * new file. Only the records in the delta are read a second time to pass
+ * their fields to the DeltaHandler.
+ *
+ * If the table for the old file is estimated to exceed the memory limit,
+ * or outgrows it because the estimate was low, the hashes of both files
+ * are spilled to temporary files in partitions by key, and the partitions
+ * compared one at a time. If a partition still doesn't fit, for example
+ * because one key is repeated in most records, detection fails.
+ *
+ * The old fields of changed records are spilled to a temporary file when
+ * the old file is read again, so that they needn't be held in memory
+ * until the matching records of the new file are read.
+ *
+ * Without key columns, the whole record is the key, so a change is seen as
+ * a delete and an insert. Records are compared by hash, so two different
+ * records are taken as equal with a probability of about 2^-64.
+ */
+public class DeltaDetector {
+
+    private static final Log log = LogFactory.getLog(DeltaDetector.class);
+
+    public static final long DEFAULT_MEMORY_LIMIT = 256L << 20;
+
+    // key hash, record hash, ordinal + 1 (negated once matched)
+    private static final int SLOT_SIZE = 24;
+
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private static final long M1 = 0x9e3779b97f4a7c15L;
+    private static final long M2 = 0xc2b2ae3d27d4eb4fL;
+
+    private final FileParameters oldParams;
+    private final FileParameters newParams;
+    private final Charset charset;
+
+    private int[] keyColumns;
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private File tempDirectory;
+
+    /**
+     * @param oldParams parameters of the earlier delivery
+     * @param newParams parameters of the later delivery, which may differ
+     *                  if the dialect has changed
+     * @param charset encoding of both files
+     */
+    public DeltaDetector(FileParameters oldParams, FileParameters newParams, Charset charset) {
+        this.oldParams = oldParams;
+        this.newParams = newParams;
+        this.charset = charset;
+    }
+
+    public int[] getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * @param keyColumns indexes of the columns that identify a record, or
+     *                   null to use the whole record
+     */
+    public void setKeyColumns(int... keyColumns) {
+        this.keyColumns = (keyColumns == null || keyColumns.length == 0) ? null : keyColumns;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @param memoryLimit maximum size in bytes of the hash table
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = Math.max(SLOT_SIZE * 1024, memoryLimit);
+    }
+
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * @param tempDirectory directory for spilled partitions, or null for
+     *                      the default temporary directory
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Compares two deliveries of a file.
+     *
+     * @param oldFile earlier delivery
+     * @param newFile later delivery
+     * @param handler receives the delta, or null to only count it
+     * @return DeltaReport
+     * @throws IOException
+     */
+    public DeltaReport detect(File oldFile, File newFile, DeltaHandler handler) throws IOException {
+        DeltaReport report = new DeltaReport();
+        Delta delta = new Delta();
+        long expected = estimateRecordCount(oldFile);
+        int partitions = partitionsFor(expected);
+        if (partitions <= 1 && !compareInMemory(oldFile, newFile, expected, report, delta)) {
+            // the estimate was low
+            partitions = Math.max(2, partitionsFor(countRecords(oldFile)));
+            if (log.isDebugEnabled()) {
+                log.debug("Hashes of " + oldFile + " exceed the memory limit; spilling to " + partitions +
+                        " partitions");
+            }
+        }
+        if (partitions > 1) {
+            report.setPartitions(partitions);
+            compareSpilled(oldFile, newFile, partitions, report, delta);
+        }
+        report.add(delta.inserted.size, delta.deleted.size, delta.changedOld.size);
+        if (log.isDebugEnabled()) {
+            log.debug("Compared " + oldFile + " to " + newFile + ": " + report);
+        }
+        if (handler != null && !report.isEmpty()) {
+            emit(oldFile, newFile, delta, handler);
+        }
+        return report;
+    }
+
+    /**
+     * Compares the files with the hashes of the old file in one table.
+     *
+     * @return false if the table would exceed the memory limit
+     */
+    private boolean compareInMemory(File oldFile, File newFile, long expected, DeltaReport report, Delta delta)
+            throws IOException {
+        HashTable table = new HashTable(capacityFor(expected), maxCapacity());
+        try {
+            try {
+                report.setOldRecordCount(hash(oldFile, oldParams, table));
+            } catch (TableFullException e) {
+                return false;
+            }
+            report.setNewRecordCount(hash(newFile, newParams, new Probe(table, delta)));
+            table.unmatched(delta);
+            return true;
+        } finally {
+            table.free();
+        }
+    }
+
+    private long estimateRecordCount(File file) throws IOException {
+        try {
+            return new RecordCounter(oldParams, charset).estimate(file).getHigh();
+        } catch (IllegalArgumentException e) {
+            // the encoding can't be scanned by bytes; assume short records
+            return file.length() / 16;
+        }
+    }
+
+    private long countRecords(File file) throws IOException {
+        try {
+            return new RecordCounter(oldParams, charset).count(file);
+        } catch (IllegalArgumentException e) {
+            // the encoding can't be scanned by bytes
+            return hash(file, oldParams, new HashSink() {
+                @Override
+                public void accept(long key, long row, long ordinal) {
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the largest number of slots of a table within the memory limit
+     */
+    private int maxCapacity() {
+        long capacity = 1024;
+        while (capacity * 2 * SLOT_SIZE <= memoryLimit && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return (int) capacity;
+    }
+
+    /**
+     * @return the number of partitions for the table of each to fit within
+     *         the memory limit, leaving a quarter for uneven partitions
+     */
+    private int partitionsFor(long records) {
+        long perTable = maxCapacity() / 2 * 3 / 4;
+        return (int) Math.min(4096, (records + perTable - 1) / perTable);
+    }
+
+    private int capacityFor(long records) {
+        long capacity = 1024;
+        int max = maxCapacity();
+        while (capacity < records * 2 && capacity < max) {
+            capacity <<= 1;
+        }
+        return (int) capacity;
+    }
+
+    private void compareSpilled(File oldFile, File newFile, int partitions, DeltaReport report, Delta delta)
+            throws IOException {
+        Spill oldSpill = new Spill("old", partitions);
+        Spill newSpill = null;
+        try {
+            try {
+                report.setOldRecordCount(hash(oldFile, oldParams, oldSpill));
+            } finally {
+                oldSpill.close();
+            }
+            newSpill = new Spill("new", partitions);
+            try {
+                report.setNewRecordCount(hash(newFile, newParams, newSpill));
+            } finally {
+                newSpill.close();
+            }
+            HashTable table = new HashTable(capacityFor(report.getOldRecordCount() / partitions), maxCapacity());
+            try {
+                Probe probe = new Probe(table, delta);
+                for (int p = 0; p < partitions; p++) {
+                    table.clear();
+                    try {
+                        oldSpill.read(p, table);
+                    } catch (TableFullException e) {
+                        throw new IOException("Partition " + p + " of the hashes of " + oldFile + " has more than " +
+                                e.records + " records, which exceeds the memory limit of " + memoryLimit +
+                                " bytes; raise the limit or choose more selective key columns");
+                    }
+                    newSpill.read(p, probe);
+                    table.unmatched(delta);
+                }
+            } finally {
+                table.free();
+            }
+        } finally {
+            oldSpill.delete();
+            if (newSpill != null) {
+                newSpill.delete();
+            }
+        }
+    }
+
+    /**
+     * Hashes each record of a file.
+     *
+     * @return number of records, not counting the header
+     */
+    private long hash(File file, FileParameters params, HashSink sink) throws IOException {
+        long ordinal = 0;
+        try (RecordReader reader = new RecordReader(new InputStreamReader(new FileInputStream(file), charset), params)) {
+            if (params.isHeader() && !reader.next()) return 0;
+            while (reader.next()) {
+                long row = hashRecord(reader);
+                long key = (keyColumns == null) ? row : hashKey(reader);
+                sink.accept(key, row, ordinal);
+                ordinal += 1;
+            }
+        }
+        return ordinal;
+    }
+
+    private static long hashRecord(RecordReader reader) {
+        char[] buf = reader.getBuffer();
+        int n = reader.getFieldCount();
+        long h = n;
+        for (int i = 0; i < n; i++) {
+            h = hashField(h, buf, reader.getFieldStart(i), reader.getFieldEnd(i));
+        }
+        return mix(h);
+    }
+
+    private long hashKey(RecordReader reader) {
+        char[] buf = reader.getBuffer();
+        int n = reader.getFieldCount();
+        long h = M2;
+        for (int column : keyColumns) {
+            if (column < n) {
+                h = hashField(h, buf, reader.getFieldStart(column), reader.getFieldEnd(column));
+            } else {
+                // distinguish a missing field from an empty one
+                h = (h ^ -1L) * M1;
+            }
+        }
+        return mix(h);
+    }
+
+    private static long hashField(long h, char[] buf, int start, int end) {
+        for (int i = start; i < end; i++) {
+            h = (h ^ buf[i]) * M1;
+        }
+        // the length separates the fields, so "a","bc" differs from "ab","c"
+        return Long.rotateLeft((h ^ (end - start)) * M2, 29);
+    }
+
+    private static long mix(long h) {
+        // finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Reads the records in the delta again, and passes them to the handler.
+     */
+    private void emit(File oldFile, File newFile, Delta delta, DeltaHandler handler) throws IOException {
+        long[] deleted = delta.deleted.sorted();
+        int changes = delta.changedOld.size;
+        long[] changedOld = delta.changedOld.values;
+        long[] changedNew = delta.changedNew.values;
+        int[] byOld = order(changedOld, changes);
+        int[] byNew = order(changedNew, changes);
+        FieldSpill spill = (changes > 0) ? new FieldSpill(changes) : null;
+        try {
+            if (deleted.length > 0 || changes > 0) {
+                try (RecordReader reader = new RecordReader(new InputStreamReader(new FileInputStream(oldFile), charset), oldParams)) {
+                    if (oldParams.isHeader()) reader.next();
+                    long last = Math.max(deleted.length > 0 ? deleted[deleted.length - 1] : -1,
+                            changes > 0 ? changedOld[byOld[changes - 1]] : -1);
+                    int c = 0;
+                    for (long ordinal = 0; ordinal <= last && reader.next(); ordinal++) {
+                        if (Arrays.binarySearch(deleted, ordinal) >= 0) {
+                            handler.deleted(ordinal, reader.getFields());
+                        } else if (c < changes && changedOld[byOld[c]] == ordinal) {
+                            spill.write(byOld[c], reader.getFields());
+                            c += 1;
+                        }
+                    }
+                }
+                if (spill != null) {
+                    spill.close();
+                }
+            }
+            long[] inserted = delta.inserted.sorted();
+            if (inserted.length > 0 || changes > 0) {
+                try (RecordReader reader = new RecordReader(new InputStreamReader(new FileInputStream(newFile), charset), newParams)) {
+                    if (newParams.isHeader()) reader.next();
+                    long last = Math.max(inserted.length > 0 ? inserted[inserted.length - 1] : -1,
+                            changes > 0 ? changedNew[byNew[changes - 1]] : -1);
+                    int c = 0;
+                    for (long ordinal = 0; ordinal <= last && reader.next(); ordinal++) {
+                        if (Arrays.binarySearch(inserted, ordinal) >= 0) {
+                            handler.inserted(ordinal, reader.getFields());
+                        } else if (c < changes && changedNew[byNew[c]] == ordinal) {
+                            int pair = byNew[c];
+                            handler.changed(changedOld[pair], spill.read(pair), ordinal, reader.getFields());
+                            c += 1;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (spill != null) {
+                spill.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the indexes of the first size values, in order of value
+     */
+    static int[] order(long[] values, int size) {
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = i;
+        }
+        int[] merged = new int[size];
+        // bottom-up merge sort
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, size);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    merged[k++] = (values[index[j]] < values[index[i]]) ? index[j++] : index[i++];
+                }
+                while (i < mid) merged[k++] = index[i++];
+                while (j < hi) merged[k++] = index[j++];
+                System.arraycopy(merged, lo, index, lo, hi - lo);
+            }
+        }
+        return index;
+    }
+
+    private interface HashSink {
+
+        void accept(long key, long row, long ordinal) throws IOException;
+    }
+
+    /**
+     * Ordinals of the records in the delta.
+     */
+    private static class Delta {
+
+        final LongList inserted = new LongList();
+        final LongList deleted = new LongList();
+
+        // pairs of ordinals at the same index
+        final LongList changedOld = new LongList();
+        final LongList changedNew = new LongList();
+    }
+
+    private static class LongList {
+
+        long[] values = new long[16];
+        int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] sorted() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    /**
+     * Thrown when a table at its maximum capacity is half full.
+     */
+    private static class TableFullException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int records;
+
+        TableFullException(int records) {
+            super("Hash table is full at " + records + " records");
+            this.records = records;
+        }
+    }
+
+    /**
+     * An open addressing table of record hashes, with linear probing, in a
+     * direct buffer. Duplicate keys are kept, and matched in turn. The table
+     * is at most half full, so that probes end at an empty slot.
+     */
+    private static class HashTable implements HashSink {
+
+        private final int maxCapacity;
+
+        private ByteBuffer slots;
+        private int capacity;
+        private int mask;
+        private int size;
+
+        HashTable(int capacity, int maxCapacity) {
+            this.maxCapacity = maxCapacity;
+            allocate(Math.min(capacity, maxCapacity));
+        }
+
+        private void allocate(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+            this.size = 0;
+        }
+
+        void clear() {
+            for (int i = 0; i < capacity; i++) {
+                slots.putLong(i * SLOT_SIZE + 16, 0);
+            }
+            size = 0;
+        }
+
+        @Override
+        public void accept(long key, long row, long ordinal) throws TableFullException {
+            if (size * 2 >= capacity) {
+                if (capacity >= maxCapacity) {
+                    throw new TableFullException(size);
+                }
+                grow();
+            }
+            int i = (int) key & mask;
+            while (slots.getLong(i * SLOT_SIZE + 16) != 0) {
+                i = (i + 1) & mask;
+            }
+            int p = i * SLOT_SIZE;
+            slots.putLong(p, key);
+            slots.putLong(p + 8, row);
+            slots.putLong(p + 16, ordinal + 1);
+            size += 1;
+        }
+
+        private void grow() throws TableFullException {
+            ByteBuffer old = slots;
+            int oldCapacity = capacity;
+            allocate(capacity * 2);
+            if (log.isDebugEnabled()) {
+                log.debug("Growing delta hash table to " + capacity + " slots");
+            }
+            for (int i = 0; i < oldCapacity; i++) {
+                int p = i * SLOT_SIZE;
+                long ordinal = old.getLong(p + 16);
+                if (ordinal != 0) {
+                    accept(old.getLong(p), old.getLong(p + 8), ordinal - 1);
+                }
+            }
+        }
+
+        /**
+         * Finds an unmatched record with the key, preferring one that is
+         * also equal, and marks it matched.
+         *
+         * @return slot index, or -1 if there is none
+         */
+        int match(long key, long row) {
+            int i = (int) key & mask;
+            int candidate = -1;
+            long ordinal;
+            while ((ordinal = slots.getLong(i * SLOT_SIZE + 16)) != 0) {
+                int p = i * SLOT_SIZE;
+                if (ordinal > 0 && slots.getLong(p) == key) {
+                    if (slots.getLong(p + 8) == row) {
+                        candidate = i;
+                        break;
+                    }
+                    if (candidate < 0) {
+                        candidate = i;
+                    }
+                }
+                i = (i + 1) & mask;
+            }
+            if (candidate >= 0) {
+                int p = candidate * SLOT_SIZE + 16;
+                slots.putLong(p, -slots.getLong(p));
+            }
+            return candidate;
+        }
+
+        long getRow(int i) {
+            return slots.getLong(i * SLOT_SIZE + 8);
+        }
+
+        long getOrdinal(int i) {
+            return Math.abs(slots.getLong(i * SLOT_SIZE + 16)) - 1;
+        }
+
+        void unmatched(Delta delta) {
+            for (int i = 0; i < capacity; i++) {
+                if (slots.getLong(i * SLOT_SIZE + 16) > 0) {
+                    delta.deleted.add(getOrdinal(i));
+                }
+            }
+        }
+
+        void free() {
+            // the buffer is released when collected
+            slots = null;
+        }
+    }
+
+    /**
+     * Matches the records of the new file against the table.
+     */
+    private static class Probe implements HashSink {
+
+        final HashTable table;
+        final Delta delta;
+
+        Probe(HashTable table, Delta delta) {
+            this.table = table;
+            this.delta = delta;
+        }
+
+        @Override
+        public void accept(long key, long row, long ordinal) {
+            int i = table.match(key, row);
+            if (i < 0) {
+                delta.inserted.add(ordinal);
+            } else if (table.getRow(i) != row) {
+                delta.changedOld.add(table.getOrdinal(i));
+                delta.changedNew.add(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Fields of the old records of changed pairs, spilled to a temporary
+     * file in the order of the old file, and read back by pair in the order
+     * of the new file.
+     */
+    private class FieldSpill {
+
+        final File file;
+        final long[] offsets;
+        DataOutputStream out;
+        RandomAccessFile in;
+        long position;
+
+        FieldSpill(int pairs) throws IOException {
+            file = File.createTempFile("delta-changed-", ".tmp", tempDirectory);
+            offsets = new long[pairs];
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        }
+
+        void write(int pair, String[] fields) throws IOException {
+            offsets[pair] = position;
+            int length = 4;
+            for (String field : fields) {
+                length += 4 + field.length() * 2;
+            }
+            out.writeInt(length);
+            out.writeInt(fields.length);
+            for (String field : fields) {
+                out.writeInt(field.length());
+                out.writeChars(field);
+            }
+            position += 4 + length;
+        }
+
+        void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        String[] read(int pair) throws IOException {
+            if (in == null) {
+                in = new RandomAccessFile(file, "r");
+            }
+            in.seek(offsets[pair]);
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            ByteBuffer record = ByteBuffer.wrap(bytes);
+            String[] fields = new String[record.getInt()];
+            for (int i = 0; i < fields.length; i++) {
+                char[] chars = new char[record.getInt()];
+                record.asCharBuffer().get(chars);
+                record.position(record.position() + chars.length * 2);
+                fields[i] = new String(chars);
+            }
+            return fields;
+        }
+
+        void delete() {
+            try {
+                close();
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                log.warn("Failed to close " + file, e);
+            }
+            if (!file.delete() && file.exists()) {
+                log.warn("Failed to delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Hashes spilled to temporary files, partitioned by key.
+     */
+    private class Spill implements HashSink {
+
+        final File[] files;
+        final DataOutputStream[] outs;
+
+        Spill(String prefix, int partitions) throws IOException {
+            files = new File[partitions];
+            outs = new DataOutputStream[partitions];
+            try {
+                for (int p = 0; p < partitions; p++) {
+                    files[p] = File.createTempFile("delta-" + prefix + "-" + p + "-", ".tmp", tempDirectory);
+                    outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p]), 16384));
+                }
+            } catch (IOException e) {
+                close();
+                delete();
+                throw e;
+            }
+        }
+
+        @Override
+        public void accept(long key, long row, long ordinal) throws IOException {
+            // the high bits, as the table uses the low bits
+            DataOutputStream out = outs[(int) ((key >>> 40) % outs.length)];
+            out.writeLong(key);
+            out.writeLong(row);
+            out.writeLong(ordinal);
+        }
+
+        void read(int partition, HashSink sink) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(files[partition]), 65536))) {
+                while (true) {
+                    long key;
+                    try {
+                        key = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    sink.accept(key, in.readLong(), in.readLong());
+                }
+            }
+        }
+
+        void close() throws IOException {
+            IOException error = null;
+            for (DataOutputStream out : outs) {
+                if (out == null) continue;
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null) throw error;
+        }
+
+        void delete() {
+            for (File file : files) {
+                if (file != null && !file.delete() && file.exists()) {
+                    log.warn("Failed to delete " + file);
+                }
+            }
+        }
+    }
+}
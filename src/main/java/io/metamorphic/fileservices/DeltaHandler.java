@@ -0,0 +1,36 @@
+package io.metamorphic.fileservices;
+
+import java.io.IOException;
+
+/**
+ * Receives the differences between two deliveries of a file found by a
+ * {@link DeltaDetector}. Deleted records are passed in the order of the old
+ * file, then inserted and changed records in the order of the new file.
+ */
+public interface DeltaHandler {
+
+    /**
+     * @param record zero-based ordinal of the record in the new file
+     * @param fields fields of the record
+     * @throws IOException
+     */
+    void inserted(long record, String[] fields) throws IOException;
+
+    /**
+     * @param record zero-based ordinal of the record in the old file
+     * @param fields fields of the record
+     * @throws IOException
+     */
+    void deleted(long record, String[] fields) throws IOException;
+
+    /**
+     * A record whose key is in both files, but whose other fields differ.
+     *
+     * @param oldRecord zero-based ordinal of the record in the old file
+     * @param oldFields fields of the record in the old file
+     * @param newRecord zero-based ordinal of the record in the new file
+     * @param newFields fields of the record in the new file
+     * @throws IOException
+     */
+    void changed(long oldRecord, String[] oldFields, long newRecord, String[] newFields) throws IOException;
+}
@@ -0,0 +1,78 @@
+package io.metamorphic.fileservices;
+
+/**
+ * The number of records inserted, deleted, changed and unchanged between
+ * two deliveries of a file.
+ */
+public class DeltaReport {
+
+    private long oldRecordCount;
+    private long newRecordCount;
+    private long inserted;
+    private long deleted;
+    private long changed;
+    private int partitions = 1;
+
+    public long getOldRecordCount() {
+        return oldRecordCount;
+    }
+
+    void setOldRecordCount(long oldRecordCount) {
+        this.oldRecordCount = oldRecordCount;
+    }
+
+    public long getNewRecordCount() {
+        return newRecordCount;
+    }
+
+    void setNewRecordCount(long newRecordCount) {
+        this.newRecordCount = newRecordCount;
+    }
+
+    public long getInserted() {
+        return inserted;
+    }
+
+    public long getDeleted() {
+        return deleted;
+    }
+
+    public long getChanged() {
+        return changed;
+    }
+
+    public long getUnchanged() {
+        return newRecordCount - inserted - changed;
+    }
+
+    /**
+     * @return number of partitions the hashes were spilled to, or 1 if they
+     *         fitted within the memory limit
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
+    void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    void add(long inserted, long deleted, long changed) {
+        this.inserted += inserted;
+        this.deleted += deleted;
+        this.changed += changed;
+    }
+
+    /**
+     * @return true if the files have the same records
+     */
+    public boolean isEmpty() {
+        return inserted == 0 && deleted == 0 && changed == 0;
+    }
+
+    @Override
+    public String toString() {
+        return oldRecordCount + " -> " + newRecordCount + " records: " + inserted + " inserted, " +
+                deleted + " deleted, " + changed + " changed";
+    }
+}
@@ -0,0 +1,495 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites a delimited file in any sniffed dialect, e.g. with a
+ * multi-character delimiter, single quotes, an escape character or
+ * skip-initial-space, into one canonical dialect: RFC 4180 in UTF-8, with
+ * a comma delimiter, double quotes doubled inside quoted fields, and "\n"
+ * line breaks. A field is quoted only if it holds a comma, a quote or a
+ * line break.
+ *
+ * If column types are set, the dates of each DATE column with an inferred
+ * format are rewritten in that format, e.g. 4/7/2001 as 04/07/2001 for
+ * dd/MM/yyyy, unless the format has a time zone. A value that doesn't
+ * strictly match the column's format is written unchanged rather than
+ * guessed at, and counted by {@link #getDateRejectCount()}.
+ *
+ * The file is split on record boundaries by a quote-aware SplitPlanner,
+ * and the splits are rewritten in parallel, each to a temporary file
+ * through a direct buffer held by the worker. Unless verification is
+ * turned off, each temporary file is read back in the canonical dialect
+ * and its fields compared with those of the split, so that the rewrite
+ * fails rather than silently changes a value. The temporary files are
+ * then concatenated in order. The input must be in an encoding in which
+ * the delimiter, quote and line breaks are single ASCII bytes, e.g. UTF-8
+ * or ISO-8859-1.
+ */
+public class DialectNormalizer {
+
+    private static final Log log = LogFactory.getLog(DialectNormalizer.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FileParameters params;
+    private final Charset charset;
+
+    private TypesContainer types;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private String lineTerminator = "\n";
+    private boolean verify = true;
+
+    private final AtomicLong dateRejects = new AtomicLong();
+
+    /**
+     * @param params sniffed file parameters
+     * @param charset encoding of the input file
+     */
+    public DialectNormalizer(FileParameters params, Charset charset) {
+        this.params = params;
+        this.charset = charset;
+    }
+
+    public TypesContainer getTypes() {
+        return types;
+    }
+
+    /**
+     * @param types inferred column types, used to rewrite dates, or null
+     */
+    public void setTypes(TypesContainer types) {
+        this.types = types;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of worker threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize size in bytes of each worker's direct output buffer
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = Math.max(1024, bufferSize);
+    }
+
+    public String getLineTerminator() {
+        return lineTerminator;
+    }
+
+    /**
+     * @param lineTerminator "\n" or "\r\n"
+     */
+    public void setLineTerminator(String lineTerminator) {
+        if (!"\n".equals(lineTerminator) && !"\r\n".equals(lineTerminator)) {
+            throw new IllegalArgumentException("Line terminator must be \\n or \\r\\n");
+        }
+        this.lineTerminator = lineTerminator;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * @param verify whether to read back each rewritten split and compare
+     *               it with the input
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * @return number of values in DATE columns of the last file normalized
+     *         that didn't match the column's format, so were written unchanged
+     */
+    public long getDateRejectCount() {
+        return dateRejects.get();
+    }
+
+    /**
+     * @return the parameters of the normalized file
+     */
+    public FileParameters getOutputParameters() {
+        FileParameters out = new FileParameters("\"", true, ",", false);
+        out.setHeader(params.isHeader());
+        out.setLineTerminator(lineTerminator);
+        return out;
+    }
+
+    /**
+     * Rewrites a file in the canonical dialect.
+     *
+     * @param in delimited file
+     * @param out normalized file, replaced if it exists
+     * @return number of records written, not counting the header
+     * @throws IOException
+     */
+    public long normalize(File in, File out) throws IOException {
+        final SplitManifest manifest = new SplitPlanner(params, charset).plan(in, parallelism * 4);
+        dateRejects.set(0);
+        List<FileSplit> splits = manifest.getSplits();
+        File dir = out.getAbsoluteFile().getParentFile();
+        List<File> parts = new ArrayList<>(splits.size());
+        int threads = Math.max(1, Math.min(parallelism, splits.size()));
+        // a direct buffer per worker, taken by each task in turn
+        final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>(splits.size());
+            for (final FileSplit split : splits) {
+                final File part = File.createTempFile(out.getName() + "-", ".part", dir);
+                parts.add(part);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        ByteBuffer buffer = takeBuffer(buffers);
+                        try {
+                            try (RecordReader reader = manifest.openReader(split)) {
+                                rewrite(reader, null, part, buffer);
+                            }
+                        } finally {
+                            buffers.offer(buffer);
+                        }
+                        if (verify) {
+                            try (RecordReader reader = manifest.openReader(split)) {
+                                verify(reader, part);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while normalizing", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException(cause);
+                }
+            }
+            concatenate(manifest.getHeader(), parts, out, takeBuffer(buffers));
+        } finally {
+            executor.shutdownNow();
+            for (File part : parts) {
+                if (part.exists() && !part.delete()) {
+                    log.warn("Could not delete " + part);
+                }
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Normalized " + manifest.getRecordCount() + " records of " + in + " in " +
+                    splits.size() + " splits");
+        }
+        return manifest.getRecordCount();
+    }
+
+    private ByteBuffer takeBuffer(BlockingQueue<ByteBuffer> buffers) {
+        ByteBuffer buffer = buffers.poll();
+        return (buffer == null) ? ByteBuffer.allocateDirect(bufferSize) : buffer;
+    }
+
+    private void concatenate(String[] header, List<File> parts, File out, ByteBuffer buffer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(out, "rw")) {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            if (header != null) {
+                rewrite(null, header, channel, buffer);
+            }
+            for (File part : parts) {
+                try (RandomAccessFile praf = new RandomAccessFile(part, "r")) {
+                    FileChannel pc = praf.getChannel();
+                    long size = pc.size();
+                    long position = 0;
+                    while (position < size) {
+                        position += pc.transferTo(position, size - position, channel);
+                    }
+                }
+            }
+        }
+    }
+
+    private void rewrite(RecordReader reader, String[] header, File part, ByteBuffer buffer) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+            rewrite(reader, header, raf.getChannel(), buffer);
+        }
+    }
+
+    /**
+     * Writes the header, if given, or else every record from the reader.
+     */
+    private void rewrite(RecordReader reader, String[] header, FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        Writer writer = new Writer(channel, buffer);
+        if (header != null) {
+            for (int i = 0; i < header.length; i++) {
+                writer.field(i, header[i]);
+            }
+            writer.endRecord();
+        } else {
+            DateRewriter dates = createDateRewriter();
+            while (reader.next()) {
+                char[] buf = reader.getBuffer();
+                int n = reader.getFieldCount();
+                for (int i = 0; i < n; i++) {
+                    int start = reader.getFieldStart(i);
+                    int end = reader.getFieldEnd(i);
+                    String date = (dates == null) ? null : dates.rewrite(i, buf, start, end);
+                    if (date != null) {
+                        writer.field(i, date);
+                    } else {
+                        writer.field(i, buf, start, end);
+                    }
+                }
+                writer.endRecord();
+            }
+            if (dates != null) {
+                dateRejects.addAndGet(dates.rejects);
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a rewritten split in the canonical dialect and checks that each
+     * record has the fields of the input record, or their rewritten dates.
+     *
+     * @throws IOException if a record differs
+     */
+    private void verify(RecordReader input, File part) throws IOException {
+        DateRewriter dates = createDateRewriter();
+        FileParameters outputParams = getOutputParameters();
+        outputParams.setHeader(false);
+        try (RecordReader output = new RecordReader(
+                new InputStreamReader(new FileInputStream(part), UTF8), outputParams)) {
+            long n = 0;
+            while (input.next()) {
+                if (!output.next()) {
+                    throw new IOException("Normalized split of " + part + " ends after " + n + " records");
+                }
+                char[] buf = input.getBuffer();
+                int count = input.getFieldCount();
+                if (output.getFieldCount() != count) {
+                    throw new IOException("Normalized record " + n + " in " + part + " has " +
+                            output.getFieldCount() + " fields, not " + count);
+                }
+                for (int i = 0; i < count; i++) {
+                    int start = input.getFieldStart(i);
+                    int end = input.getFieldEnd(i);
+                    String date = (dates == null) ? null : dates.rewrite(i, buf, start, end);
+                    String expected = (date != null) ? date : new String(buf, start, end - start);
+                    if (!expected.equals(output.getField(i))) {
+                        throw new IOException("Normalized record " + n + " in " + part +
+                                " differs from the input in field " + i);
+                    }
+                }
+                n += 1;
+            }
+            if (output.next()) {
+                throw new IOException("Normalized split of " + part + " has more than " + n + " records");
+            }
+        }
+    }
+
+    private DateRewriter createDateRewriter() {
+        if (types == null) return null;
+        String[] formats = new String[types.types.length];
+        boolean any = false;
+        for (int i = 0; i < formats.length; i++) {
+            TypeInfo type = types.types[i];
+            if (type != null && type.getType() == ValueTypes.DATE && type.getValue("format") != null) {
+                formats[i] = type.getValue("format").toString();
+                any = true;
+            }
+        }
+        return any ? new DateRewriter(formats) : null;
+    }
+
+    /**
+     * Rewrites dates in the format of their column, counting the values
+     * that don't match it. Held by one worker, as formatters aren't
+     * thread-safe.
+     */
+    private static class DateRewriter {
+
+        final String[] formats;
+        final SimpleDateFormat[] dateFormats;
+        final DateParser parser = new DateParser();
+
+        long rejects;
+
+        DateRewriter(String[] formats) {
+            this.formats = formats;
+            this.dateFormats = new SimpleDateFormat[formats.length];
+            for (int i = 0; i < formats.length; i++) {
+                // a date with a time zone would be formatted in the local zone
+                if (formats[i] != null && !formats[i].replaceAll("'[^']*'", "").matches(".*[ZXz].*")) {
+                    dateFormats[i] = new SimpleDateFormat(formats[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the date in the column's format, or null to write the
+         *         value unchanged
+         */
+        String rewrite(int column, char[] buf, int start, int end) {
+            if (column >= formats.length || formats[column] == null || start == end) return null;
+            String value = new String(buf, start, end - start);
+            if (value.trim().isEmpty()) return null;
+            ParsedDate date = parser.parseStrict(value, formats[column]);
+            if (date == null) {
+                rejects += 1;
+                return null;
+            }
+            return (dateFormats[column] == null) ? null : dateFormats[column].format(date.getDate());
+        }
+    }
+
+    /**
+     * Writes RFC 4180 records through a worker's direct buffer.
+     */
+    private class Writer {
+
+        private final FileChannel channel;
+        private final CharsetEncoder encoder = UTF8.newEncoder();
+        private final ByteBuffer bytes;
+        private final CharBuffer chars = CharBuffer.allocate(bufferSize / 2);
+
+        Writer(FileChannel channel, ByteBuffer bytes) {
+            this.channel = channel;
+            this.bytes = bytes;
+            bytes.clear();
+        }
+
+        void field(int index, String value) throws IOException {
+            char[] cs = (value == null) ? new char[0] : value.toCharArray();
+            field(index, cs, 0, cs.length);
+        }
+
+        void field(int index, char[] buf, int start, int end) throws IOException {
+            if (index > 0) {
+                put(',');
+            }
+            boolean quote = false;
+            for (int i = start; i < end; i++) {
+                char c = buf[i];
+                if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                    quote = true;
+                    break;
+                }
+            }
+            if (!quote) {
+                put(buf, start, end);
+                return;
+            }
+            put('"');
+            int from = start;
+            for (int i = start; i < end; i++) {
+                if (buf[i] == '"') {
+                    put(buf, from, i + 1);
+                    put('"');
+                    from = i + 1;
+                }
+            }
+            put(buf, from, end);
+            put('"');
+        }
+
+        void endRecord() throws IOException {
+            for (int i = 0; i < lineTerminator.length(); i++) {
+                put(lineTerminator.charAt(i));
+            }
+        }
+
+        private void put(char c) throws IOException {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            chars.put(c);
+        }
+
+        private void put(char[] buf, int start, int end) throws IOException {
+            while (start < end) {
+                if (!chars.hasRemaining()) {
+                    encode(false);
+                }
+                int n = Math.min(chars.remaining(), end - start);
+                chars.put(buf, start, n);
+                start += n;
+            }
+        }
+
+        /**
+         * Encodes the pending characters, keeping a trailing high surrogate
+         * for the next call unless this is the end of input.
+         */
+        private void encode(boolean endOfInput) throws IOException {
+            chars.flip();
+            for (;;) {
+                CoderResult result = encoder.encode(chars, bytes, endOfInput);
+                if (result.isOverflow()) {
+                    drain();
+                } else if (result.isUnderflow()) {
+                    break;
+                } else {
+                    result.throwException();
+                }
+            }
+            chars.compact();
+        }
+
+        void flush() throws IOException {
+            encode(true);
+            while (encoder.flush(bytes).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        private void drain() throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            bytes.clear();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.metamorphic.fileservices;
+
+/**
+ * NUMERIC column held in a double[].
+ */
+public class DoubleVector extends ColumnVector {
+
+    // powers of ten that are exact as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // largest mantissa that is exact as a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final double[] values;
+
+    DoubleVector(int capacity) {
+        super(capacity);
+        values = new double[capacity];
+    }
+
+    @Override
+    public DataTypes getType() {
+        return DataTypes.NUMERIC;
+    }
+
+    @Override
+    void append(char[] buf, int start, int end) {
+        while (start < end && Character.isWhitespace(buf[start])) start++;
+        while (end > start && Character.isWhitespace(buf[end - 1])) end--;
+        if (start == end) {
+            appendNull();
+            return;
+        }
+        double value = parseSimple(buf, start, end);
+        if (Double.isNaN(value)) {
+            try {
+                value = Double.parseDouble(new String(buf, start, end - start));
+            } catch (NumberFormatException e) {
+                appendConversionError(buf, start, end);
+                return;
+            }
+        }
+        values[size] = value;
+        setValid(size);
+        size += 1;
+    }
+
+    /**
+     * Parses a plain decimal such as "-123.45" when the result is exact, i.e.
+     * the digits fit in the mantissa and the power of ten is exact.
+     *
+     * @return the value, or NaN if the value needs the general parser
+     */
+    static double parseSimple(char[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = (buf[i] == '-');
+            i += 1;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c == '.' && scale < 0) {
+                scale = 0;
+                continue;
+            }
+            if (c < '0' || c > '9') return Double.NaN;
+            mantissa = mantissa * 10 + (c - '0');
+            digits += 1;
+            if (scale >= 0) scale += 1;
+            if (mantissa >= MAX_EXACT_MANTISSA) return Double.NaN;
+        }
+        if (digits == 0 || scale >= POWERS_OF_TEN.length) return Double.NaN;
+        double value = (scale > 0) ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return negative ? -value : value;
+    }
+
+    public double getDouble(int row) {
+        return values[row];
+    }
+
+    /**
+     * @return the backing array
+     */
+    public double[] getDoubles() {
+        return values;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : values[row];
+    }
+}
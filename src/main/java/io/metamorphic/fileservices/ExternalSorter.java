@@ -0,0 +1,543 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Sorts a delimited file by key columns, comparing values by their
+ * inferred type, in bounded memory.
+ *
+ * Each record's key is encoded as bytes that compare, unsigned and
+ * lexicographically, in the order of the typed values: INTEGER and BIT
+ * values as longs, NUMERIC values as doubles, DATE values with a locked
+ * format as epoch milliseconds, and other values as UTF-8 strings. Empty
+ * values sort first, and values that don't convert to the column's type
+ * sort after those that do, as strings. The record ordinal ends the key,
+ * so the sort is stable.
+ *
+ * Records are read once, with a quote-aware RecordScanner finding the
+ * bytes of each record and a RecordReader its fields, and collected into
+ * runs within the memory limit. Runs are sorted and spilled to temporary
+ * files in parallel, then merged, mergeFactor runs at a time, into the
+ * output. Records are written as their original bytes, so the output is in
+ * the dialect of the input. A last record without a line terminator is
+ * given one.
+ *
+ * The file must be in an encoding in which the delimiter, quote and line
+ * breaks are single ASCII bytes, e.g. UTF-8 or ISO-8859-1.
+ */
+public class ExternalSorter {
+
+    private static final Log log = LogFactory.getLog(ExternalSorter.class);
+
+    public static final long DEFAULT_MEMORY_LIMIT = 256L << 20;
+
+    public static final int DEFAULT_MERGE_FACTOR = 64;
+
+    // estimated bytes held per record besides its key and bytes
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final byte EMPTY = 0;
+    private static final byte VALUE = 1;
+    private static final byte OTHER = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final FileParameters params;
+    private final TypesContainer types;
+    private final Charset charset;
+
+    private int[] keyColumns = new int[] { 0 };
+    private long memoryLimit = DEFAULT_MEMORY_LIMIT;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int mergeFactor = DEFAULT_MERGE_FACTOR;
+    private File tempDirectory;
+
+    /**
+     * @param params sniffed file parameters
+     * @param types inferred column types
+     * @param charset encoding of the file
+     */
+    public ExternalSorter(FileParameters params, TypesContainer types, Charset charset) {
+        this.params = params;
+        this.types = types;
+        this.charset = charset;
+    }
+
+    public int[] getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * @param keyColumns indexes of the columns to sort by, most significant
+     *                   first
+     */
+    public void setKeyColumns(int... keyColumns) {
+        if (keyColumns == null || keyColumns.length == 0) {
+            throw new IllegalArgumentException("No key columns");
+        }
+        this.keyColumns = keyColumns;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @param memoryLimit approximate number of bytes of records held in
+     *                    memory, across the runs being collected and sorted
+     */
+    public void setMemoryLimit(long memoryLimit) {
+        this.memoryLimit = Math.max(1 << 20, memoryLimit);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of runs sorted at a time
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getMergeFactor() {
+        return mergeFactor;
+    }
+
+    /**
+     * @param mergeFactor maximum number of runs merged at a time
+     */
+    public void setMergeFactor(int mergeFactor) {
+        this.mergeFactor = Math.max(2, mergeFactor);
+    }
+
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * @param tempDirectory directory for spilled runs, or null for the
+     *                      default temporary directory
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * Sorts a file. The header, if any, stays first.
+     *
+     * @param in delimited file
+     * @param out sorted file, replaced if it exists
+     * @return number of records sorted, not counting the header
+     * @throws IOException
+     */
+    public long sort(File in, File out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<File> runs = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(in, "r");
+             RecordReader reader = new RecordReader(new InputStreamReader(new FileInputStream(in), charset), params);
+             DataInputStream bytes = new DataInputStream(new BufferedInputStream(new FileInputStream(in), 65536))) {
+            FileChannel channel = raf.getChannel();
+            RunCollector collector = new RunCollector(reader, bytes, executor, runs);
+            try {
+                new RecordScanner(params, charset).scan(channel, 0, channel.size(), 1, collector);
+            } catch (WrappedException e) {
+                throw e.getCause();
+            }
+            if (reader.next()) {
+                throw new IOException("Reader and scanner disagree on the records of " + in);
+            }
+            try (OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 65536)) {
+                if (collector.header != null) {
+                    os.write(collector.header);
+                }
+                if (runs.isEmpty() && collector.inFlight.isEmpty()) {
+                    // everything fits in memory
+                    List<Entry> entries = collector.entries;
+                    Collections.sort(entries);
+                    for (Entry entry : entries) {
+                        os.write(entry.bytes);
+                    }
+                } else {
+                    collector.spill();
+                    collector.awaitAll();
+                    merge(runs, os);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Sorted " + collector.records + " records of " + in + " using " +
+                        collector.runCount + " runs");
+            }
+            return collector.records;
+        } finally {
+            executor.shutdownNow();
+            for (File run : runs) {
+                if (run.exists() && !run.delete()) {
+                    log.warn("Could not delete " + run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges runs, mergeFactor at a time, until one merge can write the
+     * output.
+     */
+    private void merge(List<File> runs, OutputStream out) throws IOException {
+        int from = 0;
+        while (runs.size() - from > mergeFactor) {
+            List<File> group = new ArrayList<>(runs.subList(from, from + mergeFactor));
+            File merged = File.createTempFile("sort-", ".run", tempDirectory);
+            runs.add(merged);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 65536))) {
+                merge(group, dos, true);
+            }
+            for (File run : group) {
+                if (!run.delete()) {
+                    log.warn("Could not delete " + run);
+                }
+            }
+            from += mergeFactor;
+        }
+        merge(runs.subList(from, runs.size()), new DataOutputStream(out), false);
+    }
+
+    private static void merge(List<File> runs, DataOutputStream out, boolean withKeys) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size());
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!queue.isEmpty()) {
+                RunReader reader = queue.poll();
+                if (withKeys) {
+                    writeEntry(out, reader.key, reader.bytes);
+                } else {
+                    out.write(reader.bytes);
+                }
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            out.flush();
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] key, byte[] bytes) throws IOException {
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Collects the records of the file into runs, reading the fields of
+     * each record found by the scanner, and the bytes of the record.
+     */
+    private class RunCollector implements RecordScanner.Listener {
+
+        final RecordReader reader;
+        final DataInputStream bytes;
+        final ExecutorService executor;
+        final List<File> runs;
+        final ArrayDeque<Future<File>> inFlight = new ArrayDeque<>();
+        final long runLimit = memoryLimit / (parallelism + 1);
+        final ByteArrayOutputStream key = new ByteArrayOutputStream();
+        final DateParser dateParser = new DateParser();
+        final byte[] lineBreak = lineBreak();
+
+        List<Entry> entries = new ArrayList<>();
+        long runBytes;
+        long offset;
+        byte[] header;
+        long records;
+        int runCount;
+
+        RunCollector(RecordReader reader, DataInputStream bytes, ExecutorService executor, List<File> runs) {
+            this.reader = reader;
+            this.bytes = bytes;
+            this.executor = executor;
+            this.runs = runs;
+        }
+
+        @Override
+        public void endRecord(long end, long line, boolean terminated) {
+            try {
+                int length = (int) (end - offset);
+                byte[] record = new byte[terminated ? length : length + lineBreak.length];
+                bytes.readFully(record, 0, length);
+                if (!terminated) {
+                    System.arraycopy(lineBreak, 0, record, length, lineBreak.length);
+                }
+                offset = end;
+                if (!reader.next()) {
+                    throw new IOException("Reader and scanner disagree on the records at offset " + end);
+                }
+                if (params.isHeader() && header == null) {
+                    header = record;
+                    return;
+                }
+                Entry entry = new Entry(encodeKey(records), record);
+                records += 1;
+                entries.add(entry);
+                runBytes += entry.key.length + record.length + ENTRY_OVERHEAD;
+                if (runBytes >= runLimit) {
+                    spill();
+                }
+            } catch (IOException e) {
+                throw new WrappedException(e);
+            }
+        }
+
+        /**
+         * Sorts and writes the collected records as a run on a worker.
+         */
+        void spill() throws IOException {
+            if (entries.isEmpty()) return;
+            if (inFlight.size() == parallelism) {
+                runs.add(await(inFlight.poll()));
+            }
+            final List<Entry> run = entries;
+            inFlight.add(executor.submit(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    return writeRun(run);
+                }
+            }));
+            runCount += 1;
+            entries = new ArrayList<>();
+            runBytes = 0;
+        }
+
+        void awaitAll() throws IOException {
+            while (!inFlight.isEmpty()) {
+                runs.add(await(inFlight.poll()));
+            }
+        }
+
+        private File await(Future<File> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while sorting", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause);
+            }
+        }
+
+        private byte[] encodeKey(long ordinal) {
+            key.reset();
+            int n = reader.getFieldCount();
+            for (int column : keyColumns) {
+                String value = (column < n) ? reader.getField(column) : null;
+                ValueTypes type = (column < types.types.length) ? types.types[column].getType() : ValueTypes.STRING;
+                Object format = (column < types.types.length) ? types.types[column].getValue("format") : null;
+                encodeValue(value, type, (format == null) ? null : format.toString());
+            }
+            writeLong(ordinal);
+            return key.toByteArray();
+        }
+
+        private void encodeValue(String value, ValueTypes type, String format) {
+            String v = (value == null) ? "" : value.trim();
+            if (v.isEmpty()) {
+                key.write(EMPTY);
+                return;
+            }
+            switch (type) {
+                case INTEGER:
+                case BIT:
+                    try {
+                        long l = Long.parseLong(v);
+                        key.write(VALUE);
+                        writeLong(l ^ Long.MIN_VALUE);
+                        return;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                case NUMERIC:
+                    try {
+                        long bits = Double.doubleToLongBits(Double.parseDouble(v));
+                        key.write(VALUE);
+                        // negative values have every bit flipped, others the sign bit
+                        writeLong((bits < 0) ? ~bits : bits ^ Long.MIN_VALUE);
+                        return;
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                case DATE:
+                    ParsedDate date = (format == null) ? null : dateParser.parseStrict(v, format);
+                    if (date != null) {
+                        key.write(VALUE);
+                        writeLong(date.getDate().getTime() ^ Long.MIN_VALUE);
+                        return;
+                    }
+                    break;
+                default:
+                    key.write(VALUE);
+                    writeString(value);
+                    return;
+            }
+            key.write(OTHER);
+            writeString(value);
+        }
+
+        /**
+         * Writes UTF-8 bytes, whose order is that of the code points, with
+         * zero bytes escaped and a terminator that sorts first.
+         */
+        private void writeString(String value) {
+            for (byte b : value.getBytes(UTF8)) {
+                key.write(b);
+                if (b == 0) {
+                    key.write(0xFF);
+                }
+            }
+            key.write(0);
+            key.write(0);
+        }
+
+        private void writeLong(long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                key.write((int) (value >>> shift));
+            }
+        }
+    }
+
+    /**
+     * @return the line break given to a last record without one
+     */
+    private byte[] lineBreak() {
+        char[] custom = RecordReader.customTerminator(params.getLineTerminator());
+        if (custom != null) {
+            return new String(custom).getBytes(charset);
+        }
+        String terminator = params.getLineTerminator();
+        if ("\r\n".equals(terminator) || "\\r\\n".equals(terminator)) {
+            return "\r\n".getBytes(charset);
+        }
+        if ("\r".equals(terminator) || "\\r".equals(terminator)) {
+            return "\r".getBytes(charset);
+        }
+        return "\n".getBytes(charset);
+    }
+
+    private File writeRun(List<Entry> run) throws IOException {
+        Collections.sort(run);
+        File file = File.createTempFile("sort-", ".run", tempDirectory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536))) {
+            for (Entry entry : run) {
+                writeEntry(out, entry.key, entry.bytes);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!file.delete()) {
+                log.warn("Could not delete " + file);
+            }
+            throw e;
+        }
+        return file;
+    }
+
+    static int compareKeys(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (c != 0) return c;
+        }
+        return a.length - b.length;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        final byte[] key;
+        final byte[] bytes;
+
+        Entry(byte[] key, byte[] bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return compareKeys(key, o.key);
+        }
+    }
+
+    /**
+     * Reads the entries of a run in order.
+     */
+    private static class RunReader implements Comparable<RunReader>, Closeable {
+
+        final DataInputStream in;
+        byte[] key;
+        byte[] bytes;
+
+        RunReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        }
+
+        boolean next() throws IOException {
+            int n;
+            try {
+                n = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            key = new byte[n];
+            in.readFully(key);
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            return compareKeys(key, o.key);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Carries an IOException out of the scanner's listener.
+     */
+    private static class WrappedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        WrappedException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
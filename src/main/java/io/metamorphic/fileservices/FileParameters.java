@@ -1,5 +1,8 @@
 package io.metamorphic.fileservices;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  *
  * lineTerminator specifies the character sequence which should
@@ -32,7 +35,9 @@ package io.metamorphic.fileservices;
  *   of the following field.
  *
  * escapeChar specifies a one-character string used to escape
- *   the delimiter when quoting is set to QUOTE_NONE.
+ *   the delimiter when quoting is set to QUOTE_NONE. It defaults to
+ *   none, and is set by the sniffer only if the sample has escaped
+ *   quotes such as \".
  *
  * Created by markmo on 5/04/15.
  */
@@ -62,7 +67,7 @@ public class FileParameters {
         this.header = false;
         this.lineTerminator = "\\r\\n";
         this.quoting = QUOTING.QUOTE_MINIMAL;
-        this.escapeCharacter = '\\';
+        this.escapeCharacter = null;
     }
 
     public FileParameters(String textQualifier, boolean doubleQuoted, String columnDelimiter, boolean skipInitialSpace) {
@@ -148,4 +153,36 @@ public class FileParameters {
     public void setEscapeCharacter(Character escapeCharacter) {
         this.escapeCharacter = escapeCharacter;
     }
+
+    /**
+     * @return the parameters as a map, for embedding in JSON metadata
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("textQualifier", textQualifier);
+        map.put("doubleQuoted", doubleQuoted);
+        map.put("columnDelimiter", columnDelimiter);
+        map.put("skipInitialSpace", skipInitialSpace);
+        map.put("header", header);
+        map.put("lineTerminator", lineTerminator);
+        map.put("quoting", (quoting == null) ? null : quoting.name());
+        map.put("escapeCharacter", (escapeCharacter == null) ? null : escapeCharacter.toString());
+        return map;
+    }
+
+    static FileParameters fromMap(Map<String, Object> map) {
+        FileParameters params = new FileParameters();
+        params.setTextQualifier((String) map.get("textQualifier"));
+        params.setDoubleQuoted(Boolean.TRUE.equals(map.get("doubleQuoted")));
+        params.setColumnDelimiter((String) map.get("columnDelimiter"));
+        params.setSkipInitialSpace(Boolean.TRUE.equals(map.get("skipInitialSpace")));
+        params.setHeader(Boolean.TRUE.equals(map.get("header")));
+        params.setLineTerminator((String) map.get("lineTerminator"));
+        if (map.get("quoting") != null) {
+            params.setQuoting(QUOTING.valueOf((String) map.get("quoting")));
+        }
+        String escape = (String) map.get("escapeCharacter");
+        params.setEscapeCharacter((escape == null || escape.isEmpty()) ? null : escape.charAt(0));
+        return params;
+    }
 }
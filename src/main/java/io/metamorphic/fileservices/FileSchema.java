@@ -0,0 +1,72 @@
+package io.metamorphic.fileservices;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * The header and column types inferred from a sample of one file of a
+ * dataset, and any ways in which it differs from the representative file.
+ */
+public class FileSchema {
+
+    private final File file;
+    private final String[] header;
+    private final TypeInfo[] types;
+    private final int sampledRecords;
+    private final int raggedRecords;
+    private final List<String> drift;
+
+    public FileSchema(File file, String[] header, TypeInfo[] types, int sampledRecords, int raggedRecords,
+                      List<String> drift) {
+        this.file = file;
+        this.header = header;
+        this.types = types;
+        this.sampledRecords = sampledRecords;
+        this.raggedRecords = raggedRecords;
+        this.drift = drift;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return column names, or null if the dataset has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    public TypeInfo[] getTypes() {
+        return types;
+    }
+
+    public int getSampledRecords() {
+        return sampledRecords;
+    }
+
+    /**
+     * @return number of sampled records without the representative file's
+     *         number of fields, which is drift only above a threshold
+     */
+    public int getRaggedRecords() {
+        return raggedRecords;
+    }
+
+    /**
+     * @return descriptions of the differences from the representative file,
+     *         empty if the file has the same dialect and header
+     */
+    public List<String> getDrift() {
+        return drift;
+    }
+
+    public boolean isDrifted() {
+        return !drift.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return file + (drift.isEmpty() ? "" : " " + drift);
+    }
+}
@@ -9,37 +9,81 @@ public interface FileService {
 
     void setDateFormats(String[] dateFormats);
 
+    ITypeParser<ParsedDate> getDateParser();
+
     FileParameters sniff(String data, String lineEnding);
 
+    FileParameters sniff(CharSequence data, String lineEnding);
+
+    FileParameters sniff(SniffContext ctx);
+
+    SniffResult sniffWithBudget(String data, SniffBudget budget);
+
+    SniffResult sniffWithBudget(CharSequence data, SniffBudget budget);
+
     TypeInfo deduceDataType(String value);
 
+    TypeInfo deduceDataType(CharSequence value);
+
+    ColumnRecognizer createColumnRecognizer();
+
     FileParameters findMultiCharSequences(String data, String lineEnding);
 
+    FileParameters findMultiCharSequences(CharSequence data, String lineEnding);
+
+    FileParameters findMultiCharSequences(SniffContext ctx);
+
     FileParameters guessDelimiter(String data, String lineEnding);
 
+    FileParameters guessDelimiter(CharSequence data, String lineEnding);
+
+    FileParameters guessDelimiter(SniffContext ctx);
+
     FileParameters guessQuoteAndDelimiter(String data, String lineEnding);
 
+    FileParameters guessQuoteAndDelimiter(CharSequence data, String lineEnding);
+
+    FileParameters guessQuoteAndDelimiter(SniffContext ctx);
+
     boolean hasHeader(String[][] data);
 
     boolean hasHeader(List<List<String>> sample);
 
+    boolean hasHeader(RowSource rows);
+
+    boolean hasHeader(SniffContext ctx, FileParameters params);
+
     LinesContainer readLines(String data);
 
+    LinesContainer readLines(CharSequence data);
+
+    LinesContainer readLines(SniffContext ctx);
+
     String[] getHeader(String[][] rows, TypeInfo[] types, boolean hasHeader);
 
     String[] getHeader(List<List<String>> rows, TypeInfo[] types, boolean hasHeader);
 
+    String[] getHeader(RowSource rows, TypeInfo[] types, boolean hasHeader);
+
     String[] makeHeaderNames(TypeInfo[] types);
 
     TypesContainer getTypes(String[][] rows, int sampleSize, int maxNumberColumns, boolean hasHeader);
 
     TypesContainer getTypes(List<List<String>> rows, int sampleSize, int maxNumberColumns, boolean hasHeader);
 
+    TypesContainer getTypes(RowSource rows, int sampleSize, int maxNumberColumns, boolean hasHeader);
+
+    TypesContainer getTypes(SniffContext ctx, FileParameters params, int sampleSize);
+
     DataTypes getSqlType(ValueTypes type);
 
     ParsedDate parseDate(String value);
 
+    ParsedDate parseDate(CharSequence value);
+
     boolean parseBoolean(String value);
 
+    boolean parseBoolean(CharSequence value);
+
     boolean isDefaultName(String name);
 }
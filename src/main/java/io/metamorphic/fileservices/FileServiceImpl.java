@@ -2,12 +2,13 @@ package io.metamorphic.fileservices;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.metamorphic.commons.Pair;
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -36,12 +37,20 @@ public class FileServiceImpl implements FileService {
         ValueTypes.STRING
     );
 
-    private static final Pattern NUMERIC_PATTERN = Pattern.compile("^\\s*[+-]?(0(?=\\.)|[1-9])[0-9]*(\\.[0-9]+)?\\s*$");
+    // patterns compiled on first use and shared; the regexes depend on the
+    // line ending and delimiter, so there are few of them
+    private static final ConcurrentMap<String, Pattern> patterns = new ConcurrentHashMap<>();
+
+    private static final int MAX_PATTERNS = 256;
 
     private TypeParser typeParser;
 
+    private int memoSize;
+
     public FileServiceImpl() {
         typeParser = new TypeParser();
+        typeParser.registerTypeParser(Integer.class, new IntegerParser());
+        typeParser.registerTypeParser(Double.class, new NumericParser());
         typeParser.registerTypeParser(Boolean.class, new BooleanParser());
         typeParser.registerTypeParser(ParsedDate.class, new DateParser());
     }
@@ -50,68 +59,191 @@ public class FileServiceImpl implements FileService {
         typeParser.registerTypeParser(ParsedDate.class, new DateParser(dateFormats));
     }
 
+    public ITypeParser<ParsedDate> getDateParser() {
+        return typeParser.getTypeParser(ParsedDate.class);
+    }
+
+    public int getMemoSize() {
+        return memoSize;
+    }
+
+    /**
+     * Remembers the classification of repeated values in each column while
+     * testing for a header and inferring types (see {@link ValueMemo}).
+     *
+     * @param memoSize maximum number of values remembered per column, or 0
+     *                 not to remember values
+     */
+    public void setMemoSize(int memoSize) {
+        this.memoSize = Math.max(0, memoSize);
+    }
+
     public FileParameters sniff(String data, String lineEnding) {
+        return sniff((CharSequence) data, lineEnding);
+    }
+
+    /**
+     * Sniffs the file parameters from input that is read by index, e.g. a
+     * CharBuffer over a memory-mapped file, without copying it.
+     *
+     * @param data File data
+     * @param lineEnding line ending, or null to detect it
+     * @return FileParameters, or null if the delimiter could not be determined
+     */
+    public FileParameters sniff(CharSequence data, String lineEnding) {
+        return sniff(new SniffContext(data, lineEnding));
+    }
+
+    /**
+     * Sniffs the file parameters from input that is tokenised once and
+     * shared by each phase. The line ending is detected first if the
+     * context does not have one.
+     *
+     * @param ctx SniffContext
+     * @return FileParameters, or null if the delimiter could not be determined
+     */
+    public FileParameters sniff(SniffContext ctx) {
+        ctx.checkBudget();
+        if (!detectLineEnding(ctx) && ctx.getLineEnding() == null) {
+            ctx.setLineEnding(lineEndings[0], SniffContext.indexLines(ctx.getData(), lineEndings[0]));
+        }
         if (log.isDebugEnabled()) {
             log.debug("Guessing text qualifier and delimiter");
         }
-        FileParameters params1 = guessQuoteAndDelimiter(data, lineEnding);
+        FileParameters params1 = guessQuoteAndDelimiter(ctx);
         String guessedDelimiter = params1.getColumnDelimiter();
+        if (!guessedDelimiter.isEmpty()) {
+            ctx.offerPartialResult(params1, ctx.getConfidence());
+        }
         if (log.isDebugEnabled() && !guessedDelimiter.isEmpty()) {
             log.debug("delimiter is [" + StringEscapeUtils.escapeJava(guessedDelimiter) + "](" +
                     (int) guessedDelimiter.charAt(0) + ") (length=" +
                     guessedDelimiter.length() + ")");
         }
         if (guessedDelimiter.isEmpty() || guessedDelimiter.charAt(0) == 0) {
-            FileParameters params2 = guessDelimiter(data, lineEnding);
+            FileParameters params2 = guessDelimiter(ctx);
             if (params2.getColumnDelimiter().isEmpty()) {
                 // TODO
                 // limit to 20 lines
-                FileParameters params3 = findMultiCharSequences(data, lineEnding);
+                FileParameters params3 = findMultiCharSequences(ctx);
                 if (params3.getColumnDelimiter().isEmpty()) {
                     log.warn("Could not determine delimiter - returning null");
+                    ctx.setConfidence(0);
                     return null;
                 }
                 params1.setColumnDelimiter(params3.getColumnDelimiter());
                 params1.setSkipInitialSpace(params3.isSkipInitialSpace());
+            } else {
+                params1.setColumnDelimiter(params2.getColumnDelimiter());
+                params1.setSkipInitialSpace(params2.isSkipInitialSpace());
             }
-            params1.setColumnDelimiter(params2.getColumnDelimiter());
-            params1.setSkipInitialSpace(params2.isSkipInitialSpace());
         }
+        params1.setLineTerminator(ctx.getLineEnding());
+        ctx.offerPartialResult(params1, ctx.getConfidence());
+        params1.setHeader(hasHeader(ctx, params1));
         return params1;
     }
 
+    /**
+     * Sniffs the file parameters within a budget of input size, wall time
+     * and cancellation. If the budget runs out, returns the best parameters
+     * found so far with a reduced confidence.
+     *
+     * @param data File data
+     * @param budget SniffBudget
+     * @return SniffResult
+     */
+    public SniffResult sniffWithBudget(String data, SniffBudget budget) {
+        return sniffWithBudget((CharSequence) data, budget);
+    }
+
+    /**
+     * Sniffs the file parameters within a budget, from input that is read
+     * by index without copying it.
+     *
+     * @param data File data
+     * @param budget SniffBudget
+     * @return SniffResult
+     */
+    public SniffResult sniffWithBudget(CharSequence data, SniffBudget budget) {
+        SniffResult.StopReason reason = SniffResult.StopReason.COMPLETED;
+        long maxChars = budget.getMaxChars();
+        if (maxChars > 0 && data.length() > maxChars) {
+            int limit = (int) maxChars;
+            int cut = limit - 1;
+            while (cut > 0 && data.charAt(cut) != '\n' && data.charAt(cut) != '\r') {
+                cut -= 1;
+            }
+            data = data.subSequence(0, (cut > 0) ? cut : limit);
+            reason = SniffResult.StopReason.CHAR_LIMIT;
+        }
+        SniffContext ctx = new SniffContext(data);
+        ctx.setBudget(budget);
+        try {
+            FileParameters params = sniff(ctx);
+            return new SniffResult(params, (params == null) ? 0 : ctx.getConfidence(), reason);
+        } catch (SniffBudget.ExhaustedException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Sniff stopped early: " + e.getReason());
+            }
+            FileParameters params = ctx.getPartialResult();
+            if (params != null && ctx.getLineEnding() != null) {
+                params.setLineTerminator(ctx.getLineEnding());
+            }
+            return new SniffResult(params, (params == null) ? 0 : ctx.getPartialConfidence(), e.getReason());
+        }
+    }
+
+    /**
+     * Classifies a single value with the cascade of
+     * {@link #createColumnRecognizer()}, but without creating a recognizer,
+     * as there is no column state to keep.
+     */
     public TypeInfo deduceDataType(String value) {
         if (value == null) return new TypeInfo(ValueTypes.NONE);
         String v = value.trim();
         if (v.isEmpty()) return new TypeInfo(ValueTypes.NONE);
-        Matcher m = NUMERIC_PATTERN.matcher(value);
-        try {
-            Integer i = Integer.parseInt(v, 10);
-            // check that the decimal place is not truncated
-            if (i.toString().equals(v)) {
-                if (i == 0 || i == 1) {
-                    return new TypeInfo(ValueTypes.BIT);
-                } else {
-                    return new TypeInfo(ValueTypes.INTEGER);
-                }
-            }
-        } catch (NumberFormatException e) {
-            // ignore
+        Integer integer = typeParser.parse(v, Integer.class);
+        if (integer != null) {
+            return new TypeInfo((integer == 0 || integer == 1) ? ValueTypes.BIT : ValueTypes.INTEGER);
         }
-        if (m.matches()) {
-            try {
-                Double.parseDouble(v);
-                return new TypeInfo(ValueTypes.NUMERIC);
-            } catch (NumberFormatException e) {
-                // ignore
+        if (typeParser.parse(v, Double.class) != null) return new TypeInfo(ValueTypes.NUMERIC);
+        ParsedDate date = typeParser.parse(v, ParsedDate.class);
+        if (date != null) return new TypeInfo(ValueTypes.DATE, "format", date.getFormat());
+        if (typeParser.parse(v, Boolean.class) != null) return new TypeInfo(ValueTypes.BOOLEAN);
+        return new TypeInfo((v.length() > ColumnRecognizer.MAX_STRING_LENGTH) ? ValueTypes.TEXT : ValueTypes.STRING);
+    }
+
+    /**
+     * A single value is converted to a String, as the type parsers need one.
+     */
+    public TypeInfo deduceDataType(CharSequence value) {
+        return deduceDataType((value == null) ? null : value.toString());
+    }
+
+    /**
+     * Creates a recognizer for the values of a single column. The general
+     * cascade is INTEGER (or BIT), NUMERIC, DATE, BOOLEAN, falling back to
+     * STRING or TEXT, using the parsers currently registered.
+     *
+     * @return ColumnRecognizer
+     */
+    public ColumnRecognizer createColumnRecognizer() {
+        List<TypeRecognizer<?>> cascade = new ArrayList<>();
+        cascade.add(new TypeRecognizer<Integer>(ValueTypes.INTEGER, typeParser.getTypeParser(Integer.class)) {
+            @Override
+            protected ValueTypes typeOf(Integer parsed) {
+                return (parsed == 0 || parsed == 1) ? ValueTypes.BIT : ValueTypes.INTEGER;
             }
+        });
+        cascade.add(new TypeRecognizer<>(ValueTypes.NUMERIC, typeParser.getTypeParser(Double.class)));
+        cascade.add(new DateRecognizer(typeParser.getTypeParser(ParsedDate.class)));
+        cascade.add(new TypeRecognizer<>(ValueTypes.BOOLEAN, typeParser.getTypeParser(Boolean.class)));
+        ColumnRecognizer recognizer = new ColumnRecognizer(cascade);
+        if (memoSize > 0) {
+            recognizer.setMemo(new ValueMemo<ColumnRecognizer.Recognized>(memoSize, ValueMemo.DEFAULT_MAX_CHARS));
         }
-        ParsedDate dt = typeParser.parse(v, ParsedDate.class);
-        if (dt != null) return new TypeInfo(ValueTypes.DATE, "format", dt.getFormat());
-        Boolean bool = typeParser.parse(v, Boolean.class);
-        if (bool != null) return new TypeInfo(ValueTypes.BOOLEAN);
-        if (v.length() > 128) return new TypeInfo(ValueTypes.TEXT);
-        return new TypeInfo(ValueTypes.STRING);
+        return recognizer;
     }
 
     /**
@@ -122,8 +254,16 @@ public class FileServiceImpl implements FileService {
      * @return
      */
     public FileParameters findMultiCharSequences(String data, String lineEnding) {
-        String[] rows = data.split(lineEnding);
-        int chunkLength = Math.min(10, rows.length);
+        return findMultiCharSequences((CharSequence) data, lineEnding);
+    }
+
+    public FileParameters findMultiCharSequences(CharSequence data, String lineEnding) {
+        return findMultiCharSequences(new SniffContext(data, lineEnding));
+    }
+
+    public FileParameters findMultiCharSequences(SniffContext ctx) {
+        int rowCount = ctx.getSampleLineCount();
+        int chunkLength = Math.min(10, rowCount);
         int iteration = 0;
         Map<String, Map<Integer, Integer>> strFrequency = new HashMap<>();
         Map<String, Integer[]> modes = new HashMap<>();
@@ -131,12 +271,14 @@ public class FileServiceImpl implements FileService {
         String delim;
         boolean skipInitialSpace;
         int start = 0;
-        int end = Math.min(chunkLength, rows.length);
+        int end = Math.min(chunkLength, rowCount);
         int slidingWindow = 5;
-        ObjectMapper mapper = new ObjectMapper();
-        while (start < rows.length) {
+        double accepted = 0;
+        while (start < rowCount) {
             iteration += 1;
-            for (String line : Arrays.asList(rows).subList(start, end)) {
+            for (int r = start; r < end; r++) {
+                ctx.checkBudget();
+                String line = ctx.getLine(r);
                 Map<String, Integer> counts = new HashMap<>();
                 for (int w = 2; w <= slidingWindow; w++) {
                     for (int i = 0; i <= line.length() - w; i++) {
@@ -195,7 +337,7 @@ public class FileServiceImpl implements FileService {
             int total = chunkLength * iteration;
             if (log.isDebugEnabled()) {
                 try {
-                    log.debug(mapper.writeValueAsString(modes));
+                    log.debug(DebugMapper.INSTANCE.writeValueAsString(modes));
                 } catch (JsonProcessingException e) {
                     // ignore
                 }
@@ -212,6 +354,7 @@ public class FileServiceImpl implements FileService {
                     if (v[0] > 0 && v[1] > 0) {
                         if ((v[1] / total) >= consistency) {
                             delims.put(entry.getKey(), v);
+                            accepted = consistency;
                         }
                     }
                 }
@@ -219,22 +362,22 @@ public class FileServiceImpl implements FileService {
             }
             if (delims.size() == 1) {
                 delim = delims.keySet().iterator().next();
-                String firstLine = rows[0];
+                String firstLine = ctx.getLine(0);
                 int delimCount = countSubstring(firstLine, delim);
-                Pattern p = Pattern.compile(delim + " ");
-                Matcher m = p.matcher(firstLine);
-                int delimWithSpaceCount = 0;
-                while (m.find()) delimWithSpaceCount++;
+                int delimWithSpaceCount = countSubstring(firstLine, delim + " ");
                 skipInitialSpace = (delimCount == delimWithSpaceCount);
+                ctx.setConfidence(accepted);
                 return new FileParameters(delim, skipInitialSpace);
             }
+            offerBestCandidate(ctx, modes, total);
 
             // analyze another chunkLength lines
             start = end;
             end += chunkLength;
-            end = Math.min(end, rows.length);
+            end = Math.min(end, rowCount);
         }
         if (delims.isEmpty()) {
+            ctx.setConfidence(0);
             return new FileParameters();
         }
 
@@ -242,19 +385,17 @@ public class FileServiceImpl implements FileService {
         for (Character ch : preferredColumnDelimiters) {
             String del = ch.toString();
             if (delims.keySet().contains(del)) {
-                String firstLine = rows[0];
+                String firstLine = ctx.getLine(0);
                 int delimCount = countSubstring(firstLine, del);
-                Pattern p = Pattern.compile(del + " ");
-                Matcher m = p.matcher(firstLine);
-                int delimWithSpaceCount = 0;
-                while (m.find()) delimWithSpaceCount++;
+                int delimWithSpaceCount = countSubstring(firstLine, del + " ");
                 skipInitialSpace = (delimCount == delimWithSpaceCount);
+                ctx.setConfidence(accepted * 0.9);
                 return new FileParameters(del, skipInitialSpace);
             }
         }
         if (log.isDebugEnabled()) {
             try {
-                log.debug(mapper.writeValueAsString(delims));
+                log.debug(DebugMapper.INSTANCE.writeValueAsString(delims));
             } catch (JsonProcessingException e) {
                 // ignore
             }
@@ -269,13 +410,11 @@ public class FileServiceImpl implements FileService {
             }
         }
         delim = maxEntry.getKey();
-        String firstLine = rows[0];
+        String firstLine = ctx.getLine(0);
         int delimCount = countSubstring(firstLine, delim);
-        Pattern p = Pattern.compile(delim + " ");
-        Matcher m = p.matcher(firstLine);
-        int delimWithSpaceCount = 0;
-        while (m.find()) delimWithSpaceCount++;
+        int delimWithSpaceCount = countSubstring(firstLine, delim + " ");
         skipInitialSpace = (delimCount == delimWithSpaceCount);
+        ctx.setConfidence(accepted * 0.8);
         return new FileParameters(delim, skipInitialSpace);
     }
 
@@ -300,17 +439,32 @@ public class FileServiceImpl implements FileService {
      * @return metastore.models.FileParameters
      */
     public FileParameters guessDelimiter(String data, String lineEnding) {
-        ObjectMapper mapper = new ObjectMapper();
-        String[] rows = data.split(lineEnding);
-        // Check in the two-byte UTF8 range
-        Character[] cs = new Character[2048];
-        for (int i = 0; i < 2048; i++) {
-            cs[i] = (char)i;
+        return guessDelimiter((CharSequence) data, lineEnding);
+    }
+
+    public FileParameters guessDelimiter(CharSequence data, String lineEnding) {
+        return guessDelimiter(new SniffContext(data, lineEnding));
+    }
+
+    public FileParameters guessDelimiter(SniffContext ctx) {
+        CharSequence data = ctx.getData();
+        int rowCount = ctx.getSampleLineCount();
+
+        // Check in the two-byte UTF8 range. A character that doesn't occur
+        // in the sample has a frequency of 0 on every row so is never a
+        // candidate.
+        int[] histogram = ctx.getHistogram();
+        List<Character> cs = new ArrayList<>();
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] > 0) {
+                cs.add((char)i);
+            }
         }
+        int[] lineCounts = new int[histogram.length];
 
-        int chunkLength = Math.min(10, rows.length);
+        int chunkLength = Math.min(10, rowCount);
         if (log.isDebugEnabled()) {
-            log.debug("rows.length " + rows.length);
+            log.debug("rows.length " + rowCount);
             log.debug("chunkLength " + chunkLength);
         }
         int iteration = 0;
@@ -320,11 +474,18 @@ public class FileServiceImpl implements FileService {
         Character delim;
         boolean skipInitialSpace;
         int start = 0;
-        int end = Math.min(chunkLength, rows.length);
-        while (start < rows.length) {
+        int end = Math.min(chunkLength, rowCount);
+        double accepted = 0;
+        while (start < rowCount) {
             iteration += 1;
-            for (String line : Arrays.asList(rows).subList(start, end)) {
-                //for (Character ch : ascii) {
+            ctx.checkBudget();
+            for (int r = start; r < end; r++) {
+                int lineStart = ctx.getLineStart(r);
+                int lineEnd = ctx.getLineEnd(r);
+                for (int i = lineStart; i < lineEnd; i++) {
+                    char c = data.charAt(i);
+                    if (c < lineCounts.length) lineCounts[c]++;
+                }
                 for (Character ch : cs) {
                     Map<Integer, Integer> metaFrequency;
                     if (charFrequency.containsKey(ch)) {
@@ -332,10 +493,7 @@ public class FileServiceImpl implements FileService {
                     } else {
                         metaFrequency = new HashMap<>();
                     }
-                    int freq = 0;
-                    for (int i = 0; i < line.length(); i++) {
-                        if (line.charAt(i) == ch) freq++;
-                    }
+                    int freq = lineCounts[ch];
                     if (metaFrequency.containsKey(freq)) {
                         metaFrequency.put(freq, metaFrequency.get(freq) + 1);
                     } else {
@@ -343,6 +501,10 @@ public class FileServiceImpl implements FileService {
                     }
                     charFrequency.put(ch, metaFrequency);
                 }
+                for (int i = lineStart; i < lineEnd; i++) {
+                    char c = data.charAt(i);
+                    if (c < lineCounts.length) lineCounts[c] = 0;
+                }
             }
             for (Map.Entry<Character, Map<Integer, Integer>> entry : charFrequency.entrySet()) {
                 Map<Integer, Integer> metaFrequency = entry.getValue();
@@ -375,7 +537,7 @@ public class FileServiceImpl implements FileService {
             if (log.isDebugEnabled()) {
                 log.debug("modes:");
                 try {
-                    log.debug(mapper.writeValueAsString(modes));
+                    log.debug(DebugMapper.INSTANCE.writeValueAsString(modes));
                 } catch (JsonProcessingException e) {
                     // ignore
                 }
@@ -396,6 +558,7 @@ public class FileServiceImpl implements FileService {
                         }
                         if ((v[1] / total) >= consistency) {
                             delims.put(entry.getKey(), v);
+                            accepted = consistency;
                         }
                     }
                 }
@@ -403,52 +566,50 @@ public class FileServiceImpl implements FileService {
             }
             if (delims.size() == 1) {
                 delim = delims.keySet().iterator().next();
-                String firstLine = rows[0];
+                String firstLine = ctx.getLine(0);
                 int delimCount = 0;
                 for (int i = 0; i < firstLine.length(); i++) {
                     if (firstLine.charAt(i) == delim) {
                         delimCount += 1;
                     }
                 }
-                Pattern p = Pattern.compile(delim + " ");
-                Matcher m = p.matcher(firstLine);
-                int delimWithSpaceCount = 0;
-                while (m.find()) delimWithSpaceCount++;
+                int delimWithSpaceCount = countSubstring(firstLine, delim + " ");
                 skipInitialSpace = (delimCount == delimWithSpaceCount);
+                ctx.setConfidence(accepted);
                 return new FileParameters(delim.toString(), skipInitialSpace);
             }
+            offerBestCandidate(ctx, modes, total);
 
             // analyze another chunkLength lines
             start = end;
             end += chunkLength;
-            end = Math.min(end, rows.length);
+            end = Math.min(end, rowCount);
         }
         if (delims.isEmpty()) {
+            ctx.setConfidence(0);
             return new FileParameters();
         }
 
         // if there's more than one, fall back to a 'preferred' list
         for (Character ch : preferredColumnDelimiters) {
             if (delims.keySet().contains(ch)) {
-                String firstLine = rows[0];
+                String firstLine = ctx.getLine(0);
                 int delimCount = 0;
                 for (int i = 0; i < firstLine.length(); i++) {
                     if (firstLine.charAt(i) == ch) {
                         delimCount += 1;
                     }
                 }
-                Pattern p = Pattern.compile(ch + " ");
-                Matcher m = p.matcher(firstLine);
-                int delimWithSpaceCount = 0;
-                while (m.find()) delimWithSpaceCount++;
+                int delimWithSpaceCount = countSubstring(firstLine, ch + " ");
                 skipInitialSpace = (delimCount == delimWithSpaceCount);
+                ctx.setConfidence(accepted * 0.9);
                 return new FileParameters(ch.toString(), skipInitialSpace);
             }
         }
         if (log.isDebugEnabled()) {
             log.debug("delims:");
             try {
-                log.debug(mapper.writeValueAsString(delims));
+                log.debug(DebugMapper.INSTANCE.writeValueAsString(delims));
             } catch (JsonProcessingException e) {
                 // ignore
             }
@@ -463,21 +624,63 @@ public class FileServiceImpl implements FileService {
             }
         }
         delim = maxEntry.getKey();
-        String firstLine = rows[0];
+        String firstLine = ctx.getLine(0);
         int delimCount = 0;
         for (int i = 0; i < firstLine.length(); i++) {
             if (firstLine.charAt(i) == delim) {
                 delimCount += 1;
             }
         }
-        Pattern p = Pattern.compile(delim + " ");
-        Matcher m = p.matcher(firstLine);
-        int delimWithSpaceCount = 0;
-        while (m.find()) delimWithSpaceCount++;
+        int delimWithSpaceCount = countSubstring(firstLine, delim + " ");
         skipInitialSpace = (delimCount == delimWithSpaceCount);
+        ctx.setConfidence(accepted * 0.8);
         return new FileParameters(delim.toString(), skipInitialSpace);
     }
 
+    private static Pattern compile(String regex, int flags) {
+        String key = flags + ":" + regex;
+        Pattern p = patterns.get(key);
+        if (p == null) {
+            if (patterns.size() >= MAX_PATTERNS) {
+                patterns.clear();
+            }
+            p = Pattern.compile(regex, flags);
+            Pattern existing = patterns.putIfAbsent(key, p);
+            if (existing != null) {
+                p = existing;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Holds the mapper used to log candidates, so that it is only created
+     * if debug logging is on.
+     */
+    private static class DebugMapper {
+
+        static final ObjectMapper INSTANCE = new ObjectMapper();
+    }
+
+    /**
+     * When sniffing within a budget, records the candidate delimiter that
+     * best meets its expected frequency so far, in case the budget runs out.
+     */
+    private static <K> void offerBestCandidate(SniffContext ctx, Map<K, Integer[]> modes, double total) {
+        if (ctx.getBudget() == null || total <= 0) return;
+        Map.Entry<K, Integer[]> best = null;
+        for (Map.Entry<K, Integer[]> entry : modes.entrySet()) {
+            Integer[] v = entry.getValue();
+            if (v[0] > 0 && v[1] > 0 && (best == null || v[1] > best.getValue()[1])) {
+                best = entry;
+            }
+        }
+        if (best != null) {
+            double consistency = Math.min(1.0, best.getValue()[1] / total);
+            ctx.offerPartialResult(new FileParameters(best.getKey().toString(), false), consistency * 0.5);
+        }
+    }
+
     /**
      * Looks for text enclosed between two identical quotes (the probable
      * textQualifier) which are preceded and followed by the same character
@@ -492,6 +695,16 @@ public class FileServiceImpl implements FileService {
      * @return metastore.models.FileParameters
      */
     public FileParameters guessQuoteAndDelimiter(String data, String lineEnding) {
+        return guessQuoteAndDelimiter((CharSequence) data, lineEnding);
+    }
+
+    public FileParameters guessQuoteAndDelimiter(CharSequence data, String lineEnding) {
+        return guessQuoteAndDelimiter(new SniffContext(data, lineEnding));
+    }
+
+    public FileParameters guessQuoteAndDelimiter(SniffContext ctx) {
+        String lineEnding = ctx.getLineEnding();
+        CharSequence data = ctx.getSample();
         String[] regexes = new String[] {
                 "(?<delim>[^\\w" + lineEnding + "\"']+)(?<space> ?)(?<quote>[\"']).*?(\\k<quote>)(\\k<delim>)",
                 "(?:^|" + lineEnding + ")(?<quote>[\"']).*?(\\k<quote>)(?<delim>[^\\w" + lineEnding + "\"']+)(?<space> ?)",
@@ -514,7 +727,7 @@ public class FileServiceImpl implements FileService {
             log.debug("Matching quote patterns");
         }
         for (String regex : regexes) {
-            Pattern p = Pattern.compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
+            Pattern p = compile(regex, Pattern.MULTILINE | Pattern.DOTALL);
             matches = p.matcher(data);
             if (matches.find(0)) {
                 matchNotFound = false;
@@ -525,6 +738,7 @@ public class FileServiceImpl implements FileService {
             log.debug("Match " + (matchNotFound ? "not found" : "found"));
         }
         if (matchNotFound) {
+            ctx.setConfidence(0);
             return new FileParameters();
         }
         Map<String, Integer> quotes = new HashMap<>();
@@ -572,16 +786,53 @@ public class FileServiceImpl implements FileService {
 
             }
         }
+        if (columnDelimiter.isEmpty()) {
+            ctx.setConfidence(0);
+            return new FileParameters(textQualifier, false, columnDelimiter, skipInitialSpace);
+        }
         // if we see an extra quote between delimiters, we've got a
         // double quoted format
         String del = Pattern.quote(columnDelimiter);
         String delFirstChar = Pattern.quote(columnDelimiter.charAt(0) + "");
         String qot = Pattern.quote(textQualifier);
         String dqr = "(?m)((" + del + ")|^)\\W*" + qot + "[^" + delFirstChar + lineEnding + "]*" + qot + "[^" + delFirstChar + lineEnding + "]*" + qot + "\\W*((" + del + ")|$$)";
-        Pattern p = Pattern.compile(dqr);
+        Pattern p = compile(dqr, 0);
         Matcher m = p.matcher(data);
         boolean doubleQuoted = m.find(0) && (m.group(1) != null);
-        return new FileParameters(textQualifier, doubleQuoted, columnDelimiter, skipInitialSpace);
+        // quoted text between delimiters is strong evidence
+        ctx.setConfidence(0.9);
+        // a quote escaped with a backslash also looks like an extra quote,
+        // but is the stronger evidence
+        boolean escaped = hasEscapedQuote(data, textQualifier.charAt(0), columnDelimiter.charAt(0), lineEnding);
+        FileParameters params = new FileParameters(textQualifier, doubleQuoted && !escaped, columnDelimiter,
+                skipInitialSpace);
+        if (escaped) {
+            params.setEscapeCharacter('\\');
+        }
+        return params;
+    }
+
+    /**
+     * Looks for a backslash-escaped quote inside a field, i.e. \" not
+     * followed by a delimiter or line break. A backslash before a closing
+     * quote, as in "C:\temp\", is not evidence of an escape.
+     */
+    private static boolean hasEscapedQuote(CharSequence data, char quote, char delimiter, String lineEnding) {
+        int n = data.length();
+        for (int i = 0; i + 2 < n; i++) {
+            char c = data.charAt(i);
+            if (c != '\\') continue;
+            char next = data.charAt(i + 1);
+            if (next == '\\') {
+                i += 1;
+            } else if (next == quote) {
+                char after = data.charAt(i + 2);
+                if (after != delimiter && lineEnding.indexOf(after) < 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -598,73 +849,120 @@ public class FileServiceImpl implements FileService {
      * @return boolean
      */
     public boolean hasHeader(String[][] data) {
-        String[] header = data[0];
-        int lenColumns = header.length;
-        Map<Integer, Pair<ValueTypes, Integer>> columnTypes = new HashMap<>();
-        for (int i = 0; i < lenColumns; i++) {
-            columnTypes.put(i, new Pair<>(ValueTypes.NONE, 0));
-        }
-        for (String[] row : data) {
-            if (row.length == lenColumns) {
+        return hasHeader(Rows.of(data));
+    }
+
+    /**
+     * Tests whether the first row is a header, by comparing the type and
+     * length of each of its values with the rest of the column.
+     *
+     * The state of each column is held in primitive arrays, so that wide
+     * files don't create objects per column.
+     *
+     * @param rows sample rows, including the candidate header
+     * @return boolean
+     */
+    public boolean hasHeader(RowSource rows) {
+        RowView header = rows.get(0);
+        int lenColumns = header.size();
+        ValueTypes[] columnTypes = new ValueTypes[lenColumns];
+        int[] columnLengths = new int[lenColumns];
+        Arrays.fill(columnTypes, ValueTypes.NONE);
+        // created for a column when it is first used
+        ValueMemo<ValueTypes>[] memos = (memoSize > 0) ? newMemoArray(lenColumns) : null;
+        for (int r = 0; r < rows.size(); r++) {
+            RowView row = rows.get(r);
+            if (row.size() == lenColumns) {
                 for (int i = 0; i < lenColumns; i++) {
-                    Pair<ValueTypes, Integer> thisType = getType(row[i]);
-                    if (!thisType.equals(columnTypes.get(i))) {
-                        columnTypes.put(i, thisType);
+                    String value = row.get(i);
+                    ValueTypes thisType;
+                    if (memos == null || value == null) {
+                        thisType = getType(value);
+                    } else {
+                        if (memos[i] == null) {
+                            memos[i] = new ValueMemo<>(memoSize, ValueMemo.DEFAULT_MAX_CHARS);
+                        }
+                        thisType = memos[i].get(value);
+                        if (thisType == null) {
+                            thisType = getType(value);
+                            memos[i].put(value, thisType);
+                        }
+                    }
+                    int thisLength = (value == null) ? 0 : value.length();
+                    if (thisType != columnTypes[i] || thisLength != columnLengths[i]) {
+                        columnTypes[i] = thisType;
+                        columnLengths[i] = thisLength;
                     } else {
-                        columnTypes.put(i, new Pair<>(ValueTypes.NONE, 0));
+                        columnTypes[i] = ValueTypes.NONE;
+                        columnLengths[i] = 0;
                     }
                 }
             }
         }
         int hasHeaderVote = 0;
-        for (Map.Entry<Integer, Pair<ValueTypes, Integer>> entry : columnTypes.entrySet()) {
-            hasHeaderVote += testHeaderType(entry.getValue(), header[entry.getKey()]);
+        for (int i = 0; i < lenColumns; i++) {
+            hasHeaderVote += testHeaderType(columnTypes[i], columnLengths[i], header.get(i));
         }
         return hasHeaderVote > 0;
     }
 
+    /**
+     * Tests for a header using the sample rows of a SniffContext.
+     *
+     * @param ctx SniffContext
+     * @param params sniffed file parameters
+     * @return boolean
+     */
+    public boolean hasHeader(SniffContext ctx, FileParameters params) {
+        ctx.checkBudget();
+        String[][] rows = ctx.getRows(params);
+        return rows.length > 0 && hasHeader(rows);
+    }
+
     public boolean hasHeader(List<List<String>> sample) {
-        int sampleSize = sample.size();
-        String[][] data = new String[sampleSize][];
-        for (int i = 0; i < sampleSize; i++) {
-            List<String> row = sample.get(i);
-            data[i] = row.toArray(new String[row.size()]);
-        }
-        return hasHeader(data);
+        return hasHeader(Rows.of(sample));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueMemo<ValueTypes>[] newMemoArray(int n) {
+        return (ValueMemo<ValueTypes>[]) new ValueMemo<?>[n];
     }
 
-    private Pair<ValueTypes, Integer> getType(String str) {
-        if (str == null) return new Pair<>(ValueTypes.NONE, 0);
-        Matcher m = NUMERIC_PATTERN.matcher(str);
+    private ValueTypes getType(String str) {
+        if (str == null) return ValueTypes.NONE;
+        Matcher m = NumericParser.NUMERIC_PATTERN.matcher(str);
         if (m.matches()) {
-            try {
-                Integer.parseInt(str);
-                return new Pair<>(ValueTypes.INTEGER, str.length());
-            } catch (NumberFormatException e) {
-                // do nothing
+            // without a decimal part, so parseInt only fails on overflow
+            if (m.group(2) == null) {
+                try {
+                    Integer.parseInt(str);
+                    return ValueTypes.INTEGER;
+                } catch (NumberFormatException e) {
+                    // do nothing
+                }
             }
             try {
                 Double.parseDouble(str);
-                return new Pair<>(ValueTypes.NUMERIC, str.length());
+                return ValueTypes.NUMERIC;
             } catch (NumberFormatException e) {
                 // do nothing
             }
         }
         ParsedDate dt = typeParser.parse(str, ParsedDate.class);
-        if (dt != null) return new Pair<>(ValueTypes.DATE, str.length());
+        if (dt != null) return ValueTypes.DATE;
 
         Boolean bool = typeParser.parse(str, Boolean.class);
-        if (bool != null) return new Pair<>(ValueTypes.BOOLEAN, str.length());
+        if (bool != null) return ValueTypes.BOOLEAN;
 
-        return new Pair<>(ValueTypes.STRING, str.length());
+        return ValueTypes.STRING;
     }
 
-    private int testHeaderType(Pair<ValueTypes, Integer> type, String cell) {
+    private int testHeaderType(ValueTypes type, int length, String cell) {
         if (cell == null) return 0;
-        if (type.l == ValueTypes.STRING) {
-            return (cell.length() == type.r) ? -1 : 1;
+        if (type == ValueTypes.STRING) {
+            return (cell.length() == length) ? -1 : 1;
         }
-        if (type.l == ValueTypes.INTEGER) {
+        if (type == ValueTypes.INTEGER) {
             try {
                 Integer i = Integer.parseInt(cell);
                 // check that the decimal place is not truncated
@@ -675,7 +973,7 @@ public class FileServiceImpl implements FileService {
                 return 1;
             }
         }
-        if (type.l == ValueTypes.NUMERIC) {
+        if (type == ValueTypes.NUMERIC) {
             try {
                 Double.parseDouble(cell);
                 return -1;
@@ -683,11 +981,11 @@ public class FileServiceImpl implements FileService {
                 return 1;
             }
         }
-        if (type.l == ValueTypes.DATE) {
+        if (type == ValueTypes.DATE) {
             ParsedDate dt = typeParser.parse(cell, ParsedDate.class);
             return (dt == null) ? 1 : -1;
         }
-        if (type.l == ValueTypes.BOOLEAN) {
+        if (type == ValueTypes.BOOLEAN) {
             Boolean bool = typeParser.parse(cell, Boolean.class);
             return (bool == null) ? 1 : -1;
         }
@@ -695,18 +993,47 @@ public class FileServiceImpl implements FileService {
     }
 
     public LinesContainer readLines(String data) {
-        String[] lines = null;
+        return readLines((CharSequence) data);
+    }
+
+    public LinesContainer readLines(CharSequence data) {
+        return readLines(new SniffContext(data));
+    }
+
+    /**
+     * Detects the line ending unless the context already has one.
+     *
+     * @param ctx SniffContext
+     * @return LinesContainer
+     */
+    public LinesContainer readLines(SniffContext ctx) {
+        boolean split = detectLineEnding(ctx);
+        return new LinesContainer(split ? ctx.getLines() : null, ctx.getLineEnding());
+    }
+
+    /**
+     * Chooses the line ending that gives the least variance in line length,
+     * using line offsets only so that no lines are materialised.
+     *
+     * @param ctx SniffContext
+     * @return false if the input could not be split into lines
+     */
+    private boolean detectLineEnding(SniffContext ctx) {
+        if (ctx.getLineEnding() != null) return true;
+        CharSequence data = ctx.getData();
+        SniffContext.LineIndex lines = null;
         String lineEnding = null;
         double minVariance = Double.MAX_VALUE;
         for (String ending : lineEndings) {
+            ctx.checkBudget();
             if (log.isDebugEnabled()) {
                 log.debug("try ending [" + StringEscapeUtils.escapeJava(ending) + "]");
             }
-            Pattern p = Pattern.compile(ending);
-            String[] ls = p.split(data);
+            SniffContext.LineIndex index = SniffContext.indexLines(data, ending);
+            int[] ls = getLineLengths(index);
             double meanLength = getMeanLineLength(ls);
             double sd = Math.sqrt(getLineLengthVariance(ls, meanLength));
-            String[] filtered = removeOutliers(ls, meanLength, sd);
+            int[] filtered = removeOutliers(ls, meanLength, sd);
             double newMeanLength = getMeanLineLength(filtered);
             double newVariance = getLineLengthVariance(filtered, newMeanLength);
             if (log.isDebugEnabled()) {
@@ -714,54 +1041,72 @@ public class FileServiceImpl implements FileService {
             }
             if (ls.length > 1 && newVariance < minVariance) {
                 minVariance = newVariance;
-                lines = ls;
+                lines = index;
                 lineEnding = ending;
             }
         }
         if (log.isDebugEnabled()) {
             log.debug("selected ending [" + StringEscapeUtils.escapeJava(lineEnding) + "]");
         }
+        if (lineEnding != null) {
+            ctx.setLineEnding(lineEnding, lines);
+            return true;
+        }
         // Test line ending for files with a single line
-        if (lineEnding == null) {
-            for (String ending : lineEndings) {
-                if (data.replaceAll("[^(" + ending + ")]+", "").length() > 0) {
-                    lineEnding = ending;
-                    break;
-                }
+        for (String ending : lineEndings) {
+            if (containsAny(data, "(" + ending + ")")) {
+                ctx.setLineEnding(ending, SniffContext.indexLines(data, ending));
+                break;
             }
         }
-        return new LinesContainer(lines, lineEnding);
+        return false;
     }
 
-    private double getMeanLineLength(String[] lines) {
-        if (lines.length == 0) return 0;
+    private static boolean containsAny(CharSequence data, String chars) {
+        for (int i = 0; i < data.length(); i++) {
+            if (chars.indexOf(data.charAt(i)) >= 0) return true;
+        }
+        return false;
+    }
+
+    private int[] getLineLengths(SniffContext.LineIndex index) {
+        int[] lengths = new int[index.size];
+        for (int i = 0; i < index.size; i++) {
+            lengths[i] = index.length(i);
+        }
+        return lengths;
+    }
+
+    private double getMeanLineLength(int[] lengths) {
+        if (lengths.length == 0) return 0;
         double sum = 0.0;
-        for (String line : lines) {
-            sum += line.length();
+        for (int length : lengths) {
+            sum += length;
         }
-        return sum / lines.length;
+        return sum / lengths.length;
     }
 
-    private double getLineLengthVariance(String[] lines, double mean) {
-        if (lines.length == 0) return 0;
+    private double getLineLengthVariance(int[] lengths, double mean) {
+        if (lengths.length == 0) return 0;
         double temp = 0.0;
-        for (String line : lines) {
-            temp += (mean - line.length()) * (mean - line.length());
+        for (int length : lengths) {
+            temp += (mean - length) * (mean - length);
         }
-        return temp / lines.length;
+        return temp / lengths.length;
     }
 
-    private String[] removeOutliers(String[] lines, double mean, double sd) {
-        List<String> filtered = new ArrayList<>();
-        for (String line : lines) {
+    private int[] removeOutliers(int[] lengths, double mean, double sd) {
+        int[] filtered = new int[lengths.length];
+        int n = 0;
+        for (int length : lengths) {
             // approximate by excluding lines with lengths greater than or equal to
             // 2 standard deviations from the mean
             // Chauvenet's criterion is a common method but requires a normal distribution function
-            if (Math.sqrt((mean - line.length()) * (mean - line.length())) / sd < 2) {
-                filtered.add(line);
+            if (Math.sqrt((mean - length) * (mean - length)) / sd < 2) {
+                filtered[n++] = length;
             }
         }
-        return filtered.toArray(new String[filtered.size()]);
+        return Arrays.copyOf(filtered, n);
     }
 
     private double getModeLineLength(String[] lines) {
@@ -792,33 +1137,41 @@ public class FileServiceImpl implements FileService {
     }
 
     public String[] getHeader(String[][] rows, TypeInfo[] types, boolean hasHeader) {
-        String[] header;
-        if (hasHeader) {
-            header = rows[0];
-            for (int i = 0; i < header.length; i++) {
-                if (header[i] != null) {
-                    String columnName = header[i].trim();
-                    if (!columnName.isEmpty()) {
-                        header[i] = columnName;
-                        continue;
-                    }
-                }
-                header[i] = types[i].toString().toLowerCase() + "_" + (i + 1);
-            }
-        } else {
-            header = makeHeaderNames(types);
-        }
-        return header;
+        return getHeader(Rows.of(rows), types, hasHeader);
     }
 
     public String[] getHeader(List<List<String>> rows, TypeInfo[] types, boolean hasHeader) {
-        int n = rows.size();
-        String[][] data = new String[n][];
-        for (int i = 0; i < n; i++) {
-            List<String> row = rows.get(i);
-            data[i] = row.toArray(new String[row.size()]);
+        return getHeader(Rows.of(rows), types, hasHeader);
+    }
+
+    /**
+     * Names the columns from the header row, trimmed, or from the column
+     * types where there is no header or a name is blank. The rows are not
+     * changed.
+     *
+     * @param rows sample rows
+     * @param types column types
+     * @param hasHeader whether the first row is a header
+     * @return column names, as a new array
+     */
+    public String[] getHeader(RowSource rows, TypeInfo[] types, boolean hasHeader) {
+        if (!hasHeader) {
+            return makeHeaderNames(types);
         }
-        return getHeader(data, types, hasHeader);
+        RowView row = rows.get(0);
+        String[] header = new String[row.size()];
+        for (int i = 0; i < header.length; i++) {
+            String name = row.get(i);
+            if (name != null) {
+                String columnName = name.trim();
+                if (!columnName.isEmpty()) {
+                    header[i] = columnName;
+                    continue;
+                }
+            }
+            header[i] = types[i].toString().toLowerCase() + "_" + (i + 1);
+        }
+        return header;
     }
 
     public String[] makeHeaderNames(TypeInfo[] types) {
@@ -830,38 +1183,70 @@ public class FileServiceImpl implements FileService {
     }
 
     public TypesContainer getTypes(String[][] rows, int sampleSize, int maxNumberColumns, boolean hasHeader) {
-        TypeInfo[] types = new TypeInfo[maxNumberColumns];
-        DataTypes[] sqlTypes = new DataTypes[maxNumberColumns];
+        return getTypes(Rows.of(rows), sampleSize, maxNumberColumns, hasHeader);
+    }
 
+    /**
+     * Infers column types from sample rows.
+     *
+     * @param rows sample rows
+     * @param sampleSize maximum number of rows to sample, including any header
+     * @param maxNumberColumns number of columns
+     * @param hasHeader whether the first row is a header
+     * @return TypesContainer
+     */
+    public TypesContainer getTypes(RowSource rows, int sampleSize, int maxNumberColumns, boolean hasHeader) {
+        ColumnRecognizer[] recognizers = new ColumnRecognizer[maxNumberColumns];
+        for (int j = 0; j < maxNumberColumns; j++) {
+            recognizers[j] = createColumnRecognizer();
+        }
         int start = hasHeader ? 1 : 0;
-        for (int i = start; i < sampleSize; i++) {
-            String[] sampleRow = rows[i];
+        int end = Math.min(sampleSize, rows.size());
+        for (int i = start; i < end; i++) {
+            RowView sampleRow = rows.get(i);
+            int n = sampleRow.size();
             for (int j = 0; j < maxNumberColumns; j++) {
-                TypeInfo type = deduceDataType(sampleRow[j]);
-                if (types[j] == null) {
-                    types[j] = type;
-                    sqlTypes[j] = getSqlType(type.getType());
-                } else {
-                    if (types[j].equals(type)) {
-                        if (typeHierarchy.indexOf(type.getType()) > typeHierarchy.indexOf(types[j].getType())) {
-                            types[j] = type;
-                            sqlTypes[j] = getSqlType(type.getType());
-                        }
-                    }
-                }
+                recognizers[j].accept(j < n ? sampleRow.get(j) : null);
             }
         }
+        TypeInfo[] types = new TypeInfo[maxNumberColumns];
+        DataTypes[] sqlTypes = new DataTypes[maxNumberColumns];
+        for (int j = 0; j < maxNumberColumns; j++) {
+            types[j] = recognizers[j].getColumnType();
+            sqlTypes[j] = getSqlType(types[j].getType());
+        }
         return new TypesContainer(types, sqlTypes);
     }
 
-    public TypesContainer getTypes(List<List<String>> rows, int sampleSize, int maxNumberColumns, boolean hasHeader) {
-        int n = Math.min(rows.size(), sampleSize);
-        String[][] data = new String[n][];
-        for (int i = 0; i < n; i++) {
-            List<String> row = rows.get(i);
-            data[i] = row.toArray(new String[row.size()]);
+    /**
+     * Infers column types from the sample rows of a SniffContext. The
+     * number of columns is the widest row in the sample.
+     *
+     * @param ctx SniffContext
+     * @param params sniffed file parameters, including whether there is a header
+     * @param sampleSize maximum number of rows to sample
+     * @return TypesContainer
+     */
+    public TypesContainer getTypes(SniffContext ctx, FileParameters params, int sampleSize) {
+        String[][] rows = ctx.getRows(params);
+        int maxNumberColumns = 0;
+        for (String[] row : rows) {
+            maxNumberColumns = Math.max(maxNumberColumns, row.length);
         }
-        return getTypes(data, sampleSize, maxNumberColumns, hasHeader);
+        return getTypes(rows, sampleSize, maxNumberColumns, params.hasHeader());
+    }
+
+    public TypesContainer getTypes(List<List<String>> rows, int sampleSize, int maxNumberColumns, boolean hasHeader) {
+        return getTypes(Rows.of(rows), sampleSize, maxNumberColumns, hasHeader);
+    }
+
+    /**
+     * Position of a type in the widening order. TEXT is wider than STRING.
+     * Types outside the hierarchy have a rank of -1.
+     */
+    static int rank(ValueTypes type) {
+        if (type == ValueTypes.TEXT) return typeHierarchy.size();
+        return typeHierarchy.indexOf(type);
     }
 
     public DataTypes getSqlType(ValueTypes type) {
@@ -877,6 +1262,8 @@ public class FileServiceImpl implements FileService {
             case DATE:
                 return DataTypes.TIMESTAMP;
             case TEXT:
+            case OBJECT:
+            case ARRAY:
                 return DataTypes.TEXT;
             default:
                 return DataTypes.NVARCHAR;
@@ -887,10 +1274,18 @@ public class FileServiceImpl implements FileService {
         return typeParser.parse(value, ParsedDate.class);
     }
 
+    public ParsedDate parseDate(CharSequence value) {
+        return parseDate((value == null) ? null : value.toString());
+    }
+
     public boolean parseBoolean(String value) {
         return typeParser.parse(value, Boolean.class);
     }
 
+    public boolean parseBoolean(CharSequence value) {
+        return parseBoolean((value == null) ? null : value.toString());
+    }
+
     public boolean isDefaultName(String name) {
         if (hasValue(name)) {
             for (ValueTypes type : typeHierarchy) {
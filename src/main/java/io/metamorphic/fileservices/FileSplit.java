@@ -0,0 +1,70 @@
+package io.metamorphic.fileservices;
+
+/**
+ * A byte range of a delimited file that starts and ends on record
+ * boundaries, with the ordinal of its first record.
+ */
+public class FileSplit {
+
+    private final int index;
+    private final long start;
+    private final long end;
+    private final long firstRecord;
+    private final long recordCount;
+    private final long firstLine;
+
+    public FileSplit(int index, long start, long end, long firstRecord, long recordCount, long firstLine) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.firstRecord = firstRecord;
+        this.recordCount = recordCount;
+        this.firstLine = firstLine;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return byte offset of the first record
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return byte offset after the last record
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    public long getLength() {
+        return end - start;
+    }
+
+    /**
+     * @return zero-based ordinal of the first record, not counting the header
+     */
+    public long getFirstRecord() {
+        return firstRecord;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return one-based line number on which the first record starts
+     */
+    public long getFirstLine() {
+        return firstLine;
+    }
+
+    @Override
+    public String toString() {
+        return "split " + index + " [" + start + ", " + end + ") from record " + firstRecord +
+                " (" + recordCount + " records)";
+    }
+}
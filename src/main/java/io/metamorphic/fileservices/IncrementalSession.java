@@ -0,0 +1,297 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Infers the schema of a file that is appended to, such as a log, by
+ * processing only the bytes appended since the last poll.
+ *
+ * The session holds the sniffed FileParameters, a ColumnRecognizer per
+ * column and the offset after the last complete record. Each poll finds
+ * the complete records appended since with a RecordScanner, accepts their
+ * values, and notifies the listeners of any new columns or widened types.
+ * A last record without a line terminator is left for the next poll.
+ *
+ * The format of a DATE column is not locked until enough dates have been
+ * seen to vote on it (see {@link DateRecognizer}), so the format reported
+ * may change between polls without the type being widened.
+ *
+ * The file must be in an encoding in which the delimiter, quote and line
+ * breaks are single ASCII bytes, e.g. UTF-8 or ISO-8859-1. A session is
+ * not thread-safe.
+ */
+public class IncrementalSession {
+
+    private static final Log log = LogFactory.getLog(IncrementalSession.class);
+
+    public static final int DEFAULT_SNIFF_BYTES = 65536;
+
+    private final File file;
+    private final Charset charset;
+    private final FileServiceImpl fileService;
+    private final FileParameters initialParams;
+
+    private final List<SchemaChangeListener> listeners = new ArrayList<>();
+
+    private int sniffBytes = DEFAULT_SNIFF_BYTES;
+
+    private FileParameters params;
+    private String[] header;
+    private ColumnRecognizer[] recognizers = new ColumnRecognizer[0];
+    private TypesContainer types = new TypesContainer(new TypeInfo[0], new DataTypes[0]);
+    private long offset;
+    private long line = 1;
+    private long recordCount;
+
+    /**
+     * Creates a session that sniffs the file parameters on the first poll.
+     *
+     * @param file growing file
+     * @param charset encoding of the file
+     * @param fileService used to sniff the file and create recognizers
+     */
+    public IncrementalSession(File file, Charset charset, FileServiceImpl fileService) {
+        this(file, charset, fileService, null);
+    }
+
+    /**
+     * @param file growing file
+     * @param charset encoding of the file
+     * @param fileService used to create recognizers
+     * @param params file parameters, or null to sniff them
+     */
+    public IncrementalSession(File file, Charset charset, FileServiceImpl fileService, FileParameters params) {
+        this.file = file;
+        this.charset = charset;
+        this.fileService = fileService;
+        this.initialParams = params;
+        this.params = params;
+    }
+
+    public void addListener(SchemaChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(SchemaChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getSniffBytes() {
+        return sniffBytes;
+    }
+
+    /**
+     * @param sniffBytes maximum number of bytes from the start of the file
+     *                   to sniff the file parameters from
+     */
+    public void setSniffBytes(int sniffBytes) {
+        this.sniffBytes = Math.max(1, sniffBytes);
+    }
+
+    /**
+     * Processes the complete records appended since the last poll.
+     *
+     * @return number of new records
+     * @throws IOException
+     */
+    public long poll() throws IOException {
+        long size = file.length();
+        if (size < offset) {
+            restart();
+        }
+        if (params == null && !sniff(size)) {
+            return 0;
+        }
+        if (size == offset) return 0;
+        long records = recordCount;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            Boundary boundary = new Boundary(offset, line);
+            new RecordScanner(params, charset).scan(channel, offset, size, line, boundary);
+            if (boundary.end > offset) {
+                process(channel, boundary.end);
+                offset = boundary.end;
+                line = boundary.line;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Processed " + (recordCount - records) + " new records of " + file + " to offset " + offset);
+        }
+        return recordCount - records;
+    }
+
+    private void restart() {
+        if (log.isDebugEnabled()) {
+            log.debug(file + " is shorter than offset " + offset + "; restarting");
+        }
+        params = initialParams;
+        header = null;
+        recognizers = new ColumnRecognizer[0];
+        types = new TypesContainer(new TypeInfo[0], new DataTypes[0]);
+        offset = 0;
+        line = 1;
+        recordCount = 0;
+        for (SchemaChangeListener listener : listeners) {
+            listener.restarted();
+        }
+    }
+
+    /**
+     * Sniffs the complete lines at the start of the file.
+     *
+     * @return false if there isn't yet enough of the file
+     */
+    private boolean sniff(long size) throws IOException {
+        int n = (int) Math.min(size, sniffBytes);
+        if (n == 0) return false;
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining() && channel.read(buf, buf.position()) >= 0) {
+                // read the sample
+            }
+        }
+        byte[] bytes = buf.array();
+        int end = buf.position();
+        while (end > 0 && bytes[end - 1] != '\n' && bytes[end - 1] != '\r') {
+            end -= 1;
+        }
+        if (end == 0) return false;
+        FileParameters sniffed = fileService.sniff(new SniffContext(new String(bytes, 0, end, charset)));
+        if (sniffed == null) {
+            log.warn("Could not sniff the parameters of " + file + " from " + end + " bytes");
+            return false;
+        }
+        params = sniffed;
+        return true;
+    }
+
+    private void process(FileChannel channel, long end) throws IOException {
+        // the channel is closed by the caller
+        RangeInputStream in = new RangeInputStream(channel, offset, end);
+        RecordReader reader = new RecordReader(new InputStreamReader(in, charset), params);
+        boolean established = recordCount > 0;
+        if (params.isHeader() && header == null) {
+            if (!reader.next()) return;
+            header = reader.getFields();
+        }
+        int oldCount = recognizers.length;
+        while (reader.next()) {
+            int n = reader.getFieldCount();
+            if (n > recognizers.length) {
+                addColumns(n);
+            }
+            for (int i = 0; i < recognizers.length; i++) {
+                recognizers[i].accept(i < n ? reader.getField(i) : null);
+            }
+            recordCount += 1;
+        }
+        updateTypes(established, oldCount);
+    }
+
+    private void addColumns(int n) {
+        int k = recognizers.length;
+        recognizers = Arrays.copyOf(recognizers, n);
+        for (int i = k; i < n; i++) {
+            recognizers[i] = fileService.createColumnRecognizer();
+        }
+    }
+
+    private void updateTypes(boolean established, int oldCount) {
+        TypeInfo[] oldTypes = types.types;
+        int n = recognizers.length;
+        TypeInfo[] newTypes = new TypeInfo[n];
+        DataTypes[] sqlTypes = new DataTypes[n];
+        for (int i = 0; i < n; i++) {
+            newTypes[i] = recognizers[i].peekColumnType();
+            sqlTypes[i] = fileService.getSqlType(newTypes[i].getType());
+        }
+        types = new TypesContainer(newTypes, sqlTypes);
+        if (!established) return;
+        if (n != oldCount) {
+            for (SchemaChangeListener listener : listeners) {
+                listener.columnCountChanged(oldCount, n);
+            }
+        }
+        for (int i = 0; i < Math.min(oldTypes.length, n); i++) {
+            if (newTypes[i].getType() != oldTypes[i].getType()) {
+                for (SchemaChangeListener listener : listeners) {
+                    listener.typeWidened(i, oldTypes[i], newTypes[i]);
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return file parameters, or null if the file hasn't been sniffed yet
+     */
+    public FileParameters getParameters() {
+        return params;
+    }
+
+    /**
+     * @return column names, or null if the file has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return column types of the records processed so far
+     */
+    public TypesContainer getTypes() {
+        return types;
+    }
+
+    /**
+     * @return byte offset after the last record processed
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of records processed, not counting the header
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Finds the end of the last complete record.
+     */
+    private static class Boundary implements RecordScanner.Listener {
+
+        long end;
+        long line;
+
+        Boundary(long end, long line) {
+            this.end = end;
+            this.line = line;
+        }
+
+        @Override
+        public void endRecord(long offset, long nextLine, boolean terminated) {
+            if (terminated) {
+                end = offset;
+                line = nextLine;
+            }
+        }
+    }
+}
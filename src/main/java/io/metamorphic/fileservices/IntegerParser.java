@@ -0,0 +1,38 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Accepts only the canonical form of a 32-bit integer, i.e. values for
+ * which {@code Integer.parseInt(v).toString().equals(v)}, without using
+ * exceptions for control flow.
+ */
+public class IntegerParser implements ITypeParser<Integer> {
+
+    @Override
+    public Integer parse(String value) {
+        if (value == null) return null;
+        String v = value.trim();
+        int len = v.length();
+        if (len == 0 || len > 11) return null;
+        int i = 0;
+        boolean negative = false;
+        if (v.charAt(0) == '-') {
+            negative = true;
+            i = 1;
+            if (len == 1) return null;
+        }
+        char first = v.charAt(i);
+        if (first == '0') {
+            // reject leading zeros and "-0"
+            return (len == 1) ? 0 : null;
+        }
+        long n = 0;
+        for (; i < len; i++) {
+            char c = v.charAt(i);
+            if (c < '0' || c > '9') return null;
+            n = n * 10 + (c - '0');
+        }
+        if (negative) n = -n;
+        if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) return null;
+        return (int) n;
+    }
+}
@@ -0,0 +1,134 @@
+package io.metamorphic.fileservices;
+
+/**
+ * INTEGER column. Values are held in an int[] until a value is outside the
+ * int range, when the vector is promoted to a long[].
+ */
+public class IntegerVector extends ColumnVector {
+
+    private int[] ints;
+    private long[] longs;
+
+    IntegerVector(int capacity) {
+        super(capacity);
+        ints = new int[capacity];
+    }
+
+    @Override
+    public DataTypes getType() {
+        return DataTypes.INTEGER;
+    }
+
+    @Override
+    void append(char[] buf, int start, int end) {
+        while (start < end && Character.isWhitespace(buf[start])) start++;
+        while (end > start && Character.isWhitespace(buf[end - 1])) end--;
+        if (start == end) {
+            appendNull();
+            return;
+        }
+        boolean negative = false;
+        int i = start;
+        if (buf[i] == '-' || buf[i] == '+') {
+            negative = (buf[i] == '-');
+            i += 1;
+            if (i == end) {
+                appendConversionError(buf, start, end);
+                return;
+            }
+        }
+        // if rejects are kept, leading zeros as in 007 are rejected too, as
+        // the text wouldn't survive conversion
+        if (isKeepingRejects() && end - i > 1 && buf[i] == '0') {
+            appendConversionError(buf, start, end);
+            return;
+        }
+        // accumulate negatively so that Long.MIN_VALUE can be read
+        long value = 0;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9' || value < Long.MIN_VALUE / 10) {
+                appendConversionError(buf, start, end);
+                return;
+            }
+            long next = value * 10 - (c - '0');
+            if (next > value) {
+                appendConversionError(buf, start, end);
+                return;
+            }
+            value = next;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                appendConversionError(buf, start, end);
+                return;
+            }
+            value = -value;
+        }
+        set(size, value);
+        setValid(size);
+        size += 1;
+    }
+
+    private void set(int row, long value) {
+        if (longs == null) {
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                ints[row] = (int) value;
+                return;
+            }
+            promote();
+        }
+        longs[row] = value;
+    }
+
+    /**
+     * Switches the vector to hold long values.
+     */
+    void promote() {
+        if (longs != null) return;
+        longs = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            longs[i] = ints[i];
+        }
+        ints = null;
+    }
+
+    /**
+     * @return true if the vector has been promoted to hold long values
+     */
+    public boolean isLong() {
+        return longs != null;
+    }
+
+    /**
+     * @return the value in the given row, which must not be a long vector
+     */
+    public int getInt(int row) {
+        return ints[row];
+    }
+
+    public long getLong(int row) {
+        return (longs == null) ? ints[row] : longs[row];
+    }
+
+    /**
+     * @return the backing array, or null if the vector holds long values
+     */
+    public int[] getInts() {
+        return ints;
+    }
+
+    /**
+     * @return the backing array, or null if the vector holds int values
+     */
+    public long[] getLongs() {
+        return longs;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        if (isNull(row)) return null;
+        if (longs == null) return ints[row];
+        return longs[row];
+    }
+}
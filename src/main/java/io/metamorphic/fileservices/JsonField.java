@@ -0,0 +1,208 @@
+package io.metamorphic.fileservices;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A field in an inferred JSON schema. An OBJECT field has named child
+ * fields and an ARRAY field has a single field describing its elements.
+ *
+ * String values are classified in the same way as delimited values, so a
+ * string field may be a DATE (with a locked format), INTEGER, etc.
+ */
+public class JsonField {
+
+    private final String name;
+    private final String path;
+
+    // type of the non-string values seen
+    private ValueTypes observedType = ValueTypes.NONE;
+
+    // classifies the string values seen, until the field is resolved
+    private ColumnRecognizer recognizer;
+
+    private TypeInfo typeInfo;
+
+    private long count;
+    private long nullCount;
+
+    private Map<String, JsonField> fields;
+    private JsonField items;
+
+    JsonField(String name, String path) {
+        this.name = name;
+        this.path = path;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return dot-separated path from the record root, with "[]" for array elements
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public ValueTypes getType() {
+        return getTypeInfo().getType();
+    }
+
+    public TypeInfo getTypeInfo() {
+        if (typeInfo == null) {
+            resolve();
+        }
+        return typeInfo;
+    }
+
+    /**
+     * @return number of values seen, including nulls
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getNullCount() {
+        return nullCount;
+    }
+
+    public Collection<JsonField> getFields() {
+        if (fields == null) return Collections.emptyList();
+        return Collections.unmodifiableCollection(fields.values());
+    }
+
+    public JsonField getField(String name) {
+        return (fields == null) ? null : fields.get(name);
+    }
+
+    /**
+     * @return the field describing array elements, or null if this is not an ARRAY
+     */
+    public JsonField getItems() {
+        return items;
+    }
+
+    JsonField child(String name) {
+        if (fields == null) {
+            fields = new LinkedHashMap<>();
+        }
+        JsonField field = fields.get(name);
+        if (field == null) {
+            field = new JsonField(name, (path == null) ? name : path + "." + name);
+            fields.put(name, field);
+        }
+        return field;
+    }
+
+    JsonField items() {
+        if (items == null) {
+            items = new JsonField(null, (path == null) ? "[]" : path + "[]");
+        }
+        return items;
+    }
+
+    void observe(ValueTypes type) {
+        count += 1;
+        if (type == ValueTypes.NONE) {
+            nullCount += 1;
+        }
+        observedType = widen(observedType, type);
+        typeInfo = null;
+    }
+
+    void observeString(String value, FileService fileService) {
+        count += 1;
+        if (recognizer == null) {
+            recognizer = fileService.createColumnRecognizer();
+        }
+        recognizer.accept(value);
+        typeInfo = null;
+    }
+
+    /**
+     * Settles the type of this field and its children, locking the format
+     * of date strings.
+     */
+    void resolve() {
+        TypeInfo stringType = (recognizer == null) ? null : recognizer.getColumnType();
+        if (stringType == null) {
+            typeInfo = new TypeInfo(observedType);
+        } else {
+            ValueTypes type = widen(observedType, stringType.getType());
+            typeInfo = (type == stringType.getType()) ? stringType : new TypeInfo(type);
+        }
+        if (fields != null) {
+            for (JsonField field : fields.values()) {
+                field.resolve();
+            }
+        }
+        if (items != null) {
+            items.resolve();
+        }
+    }
+
+    /**
+     * Merges a field inferred from another part of the same input, e.g.
+     * another chunk of an NDJSON file. Both fields must be resolved.
+     */
+    void merge(JsonField other) {
+        count += other.count;
+        nullCount += other.nullCount;
+        TypeInfo a = getTypeInfo();
+        TypeInfo b = other.getTypeInfo();
+        ValueTypes type = widen(a.getType(), b.getType());
+        if (type == ValueTypes.DATE && a.getType() == ValueTypes.DATE && b.getType() == ValueTypes.DATE) {
+            Object format = a.getValue("format");
+            if (format != null && !format.equals(b.getValue("format"))) {
+                // inconsistent date formats can't be loaded as one type
+                type = ValueTypes.STRING;
+            }
+        }
+        if (type != a.getType()) {
+            typeInfo = (type == b.getType()) ? b : new TypeInfo(type);
+        }
+        observedType = typeInfo.getType();
+        recognizer = null;
+        if (other.fields != null) {
+            for (JsonField field : other.fields.values()) {
+                if (fields == null) {
+                    fields = new LinkedHashMap<>();
+                }
+                JsonField mine = fields.get(field.name);
+                if (mine == null) {
+                    fields.put(field.name, field);
+                } else {
+                    mine.merge(field);
+                }
+            }
+        }
+        if (other.items != null) {
+            if (items == null) {
+                items = other.items;
+            } else {
+                items.merge(other.items);
+            }
+        }
+    }
+
+    /**
+     * Widens JSON value types. A field that mixes structured and scalar
+     * values is treated as TEXT, i.e. serialized JSON.
+     */
+    static ValueTypes widen(ValueTypes a, ValueTypes b) {
+        if (a == b || b == ValueTypes.NONE) return a;
+        if (a == ValueTypes.NONE) return b;
+        if (a == ValueTypes.OBJECT || a == ValueTypes.ARRAY || b == ValueTypes.OBJECT || b == ValueTypes.ARRAY) {
+            return ValueTypes.TEXT;
+        }
+        return (FileServiceImpl.rank(a) >= FileServiceImpl.rank(b)) ? a : b;
+    }
+
+    @Override
+    public String toString() {
+        return path + ": " + getType();
+    }
+}
@@ -0,0 +1,82 @@
+package io.metamorphic.fileservices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schema inferred from a JSON document or an NDJSON file. The root field
+ * describes a record, i.e. each top-level value, or each element of a
+ * top-level array.
+ */
+public class JsonSchema {
+
+    private final JsonField root;
+    private final long recordCount;
+
+    JsonSchema(JsonField root, long recordCount) {
+        this.root = root;
+        this.recordCount = recordCount;
+    }
+
+    public JsonField getRoot() {
+        return root;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Flattens nested objects into columns. Arrays, and fields mixing
+     * objects with other values, are single columns of serialized JSON.
+     *
+     * @return fields in order of first appearance
+     */
+    public List<JsonField> getLeaves() {
+        List<JsonField> leaves = new ArrayList<>();
+        if (root.getType() == ValueTypes.OBJECT) {
+            addLeaves(root, leaves);
+        } else {
+            leaves.add(root);
+        }
+        return leaves;
+    }
+
+    private static void addLeaves(JsonField field, List<JsonField> leaves) {
+        for (JsonField child : field.getFields()) {
+            if (child.getType() == ValueTypes.OBJECT) {
+                addLeaves(child, leaves);
+            } else {
+                leaves.add(child);
+            }
+        }
+    }
+
+    /**
+     * @return paths of the flattened columns
+     */
+    public String[] getHeader() {
+        List<JsonField> leaves = getLeaves();
+        String[] header = new String[leaves.size()];
+        for (int i = 0; i < header.length; i++) {
+            String path = leaves.get(i).getPath();
+            header[i] = (path == null) ? "value" : path;
+        }
+        return header;
+    }
+
+    /**
+     * @param fileService maps value types to SQL types
+     * @return types of the flattened columns
+     */
+    public TypesContainer getTypes(FileService fileService) {
+        List<JsonField> leaves = getLeaves();
+        TypeInfo[] types = new TypeInfo[leaves.size()];
+        DataTypes[] sqlTypes = new DataTypes[leaves.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = leaves.get(i).getTypeInfo();
+            sqlTypes[i] = fileService.getSqlType(types[i].getType());
+        }
+        return new TypesContainer(types, sqlTypes);
+    }
+}
@@ -0,0 +1,319 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Infers a nested field schema from JSON and newline-delimited JSON
+ * (NDJSON) using Jackson's streaming parser, so no tree is built.
+ *
+ * Each top-level value is a record, except that a top-level array of
+ * objects is read as a list of records. Leaf types are mapped onto
+ * ValueTypes, with strings classified as for delimited files.
+ *
+ * NDJSON can be inferred in parallel by chunks of lines, and the chunk
+ * schemas merged.
+ */
+public class JsonSchemaInferrer {
+
+    private static final Log log = LogFactory.getLog(JsonSchemaInferrer.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    // regions of a file mapped at once must be addressable by an int
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+    private final FileService fileService;
+
+    private long maxRecords;
+
+    public JsonSchemaInferrer(FileService fileService) {
+        this.fileService = fileService;
+    }
+
+    public long getMaxRecords() {
+        return maxRecords;
+    }
+
+    /**
+     * Limits sequential inference to the first maxRecords records. Zero,
+     * the default, means no limit. Parallel NDJSON inference reads every
+     * record.
+     *
+     * @param maxRecords long
+     */
+    public void setMaxRecords(long maxRecords) {
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * @param data File data
+     * @return true if the first non-whitespace character starts a JSON object or array
+     */
+    public static boolean isJson(CharSequence data) {
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '{' || c == '[') return true;
+            if (!Character.isWhitespace(c) && c != '\uFEFF') return false;
+        }
+        return false;
+    }
+
+    public JsonSchema infer(String data) throws IOException {
+        return infer(new CharSequenceReader(data));
+    }
+
+    public JsonSchema infer(Reader reader) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(reader)) {
+            return infer(parser);
+        }
+    }
+
+    public JsonSchema infer(InputStream in) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            return infer(parser);
+        }
+    }
+
+    private JsonSchema infer(JsonParser parser) throws IOException {
+        JsonField root = new JsonField(null, null);
+        long records = 0;
+        JsonToken token;
+        while ((maxRecords <= 0 || records < maxRecords) && (token = parser.nextToken()) != null) {
+            if (token == JsonToken.START_ARRAY && records == 0) {
+                token = parser.nextToken();
+                if (token == JsonToken.START_OBJECT) {
+                    // an array of records
+                    while (token != JsonToken.END_ARRAY && token != null) {
+                        visit(parser, token, root);
+                        records += 1;
+                        if (maxRecords > 0 && records >= maxRecords) break;
+                        token = parser.nextToken();
+                    }
+                } else {
+                    visitElements(parser, token, root);
+                    records += 1;
+                }
+                continue;
+            }
+            visit(parser, token, root);
+            records += 1;
+        }
+        root.resolve();
+        return new JsonSchema(root, records);
+    }
+
+    private void visit(JsonParser parser, JsonToken token, JsonField field) throws IOException {
+        switch (token) {
+            case START_OBJECT:
+                field.observe(ValueTypes.OBJECT);
+                while ((token = parser.nextToken()) != JsonToken.END_OBJECT) {
+                    String name = parser.getCurrentName();
+                    visit(parser, parser.nextToken(), field.child(name));
+                }
+                break;
+            case START_ARRAY:
+                visitElements(parser, parser.nextToken(), field);
+                break;
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.INT) {
+                    int i = parser.getIntValue();
+                    field.observe((i == 0 || i == 1) ? ValueTypes.BIT : ValueTypes.INTEGER);
+                } else {
+                    field.observe(ValueTypes.INTEGER);
+                }
+                break;
+            case VALUE_NUMBER_FLOAT:
+                field.observe(ValueTypes.NUMERIC);
+                break;
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                field.observe(ValueTypes.BOOLEAN);
+                break;
+            case VALUE_NULL:
+                field.observe(ValueTypes.NONE);
+                break;
+            case VALUE_STRING:
+                field.observeString(parser.getText(), fileService);
+                break;
+            default:
+                // embedded objects don't occur in textual JSON
+                break;
+        }
+    }
+
+    /**
+     * @param token the first token after START_ARRAY
+     */
+    private void visitElements(JsonParser parser, JsonToken token, JsonField field) throws IOException {
+        field.observe(ValueTypes.ARRAY);
+        JsonField items = field.items();
+        while (token != JsonToken.END_ARRAY) {
+            visit(parser, token, items);
+            token = parser.nextToken();
+        }
+    }
+
+    /**
+     * Infers the schema of NDJSON held in memory, inferring chunks of lines
+     * in parallel.
+     *
+     * @param data NDJSON data
+     * @param parallelism number of threads
+     * @return JsonSchema
+     * @throws IOException if the data is not valid JSON
+     */
+    public JsonSchema inferNdjson(final String data, int parallelism) throws IOException {
+        int n = Math.max(1, parallelism);
+        List<Callable<JsonSchema>> tasks = new ArrayList<>(n);
+        int start = 0;
+        for (int i = 1; i <= n && start < data.length(); i++) {
+            int end = data.length();
+            if (i < n) {
+                int newline = data.indexOf('\n', (int) ((long) data.length() * i / n));
+                end = (newline < 0) ? data.length() : newline + 1;
+            }
+            if (end <= start) continue;
+            final int chunkStart = start;
+            final int chunkEnd = end;
+            tasks.add(new Callable<JsonSchema>() {
+                @Override
+                public JsonSchema call() throws IOException {
+                    return inferAll(new CharSequenceReader(data, chunkStart, chunkEnd));
+                }
+            });
+            start = end;
+        }
+        return inferInParallel(tasks, n);
+    }
+
+    /**
+     * Infers the schema of an NDJSON file, mapping chunks of lines into
+     * memory and inferring them in parallel.
+     *
+     * The file is split on '\n' bytes, so it must be in UTF-8 (or ASCII).
+     * A file in UTF-16 or UTF-32 is refused rather than split inside a
+     * character.
+     *
+     * @param file NDJSON file in UTF-8
+     * @param parallelism number of threads
+     * @return JsonSchema
+     * @throws IOException if the file can't be read or is in UTF-16 or UTF-32
+     */
+    public JsonSchema inferNdjson(File file, int parallelism) throws IOException {
+        int n = Math.max(1, parallelism);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (isWideEncoding(channel, size)) {
+                throw new IOException(file + " is in UTF-16 or UTF-32; NDJSON files must be in UTF-8");
+            }
+            long chunks = Math.max(n, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+            List<Callable<JsonSchema>> tasks = new ArrayList<>();
+            long start = 0;
+            for (long i = 1; i <= chunks && start < size; i++) {
+                long end = (i < chunks) ? RecordScanner.nextLine(channel, size * i / chunks, size) : size;
+                if (end <= start) continue;
+                final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                tasks.add(new Callable<JsonSchema>() {
+                    @Override
+                    public JsonSchema call() throws IOException {
+                        try (JsonParser parser = jsonFactory.createParser(new ByteBufferInputStream(buf))) {
+                            return inferAll(parser);
+                        }
+                    }
+                });
+                start = end;
+            }
+            return inferInParallel(tasks, n);
+        }
+    }
+
+    /**
+     * Detects UTF-16 and UTF-32 from a byte order mark, or else from a zero
+     * byte among the first four, as JSON text starts with ASCII characters.
+     */
+    private static boolean isWideEncoding(FileChannel channel, long size) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(4, size));
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // read the first bytes
+        }
+        int k = head.position();
+        if (k >= 2) {
+            int b0 = head.get(0) & 0xff;
+            int b1 = head.get(1) & 0xff;
+            if ((b0 == 0xfe && b1 == 0xff) || (b0 == 0xff && b1 == 0xfe)) return true;
+        }
+        for (int i = 0; i < k; i++) {
+            if (head.get(i) == 0) return true;
+        }
+        return false;
+    }
+
+    private JsonSchema inferAll(Reader reader) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(reader)) {
+            return inferAll(parser);
+        }
+    }
+
+    private JsonSchema inferAll(JsonParser parser) throws IOException {
+        JsonField root = new JsonField(null, null);
+        long records = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != null) {
+            visit(parser, token, root);
+            records += 1;
+        }
+        root.resolve();
+        return new JsonSchema(root, records);
+    }
+
+    private static JsonSchema inferInParallel(List<Callable<JsonSchema>> tasks, int parallelism) throws IOException {
+        if (tasks.isEmpty()) {
+            return new JsonSchema(new JsonField(null, null), 0);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            List<Future<JsonSchema>> futures = executor.invokeAll(tasks);
+            JsonField root = null;
+            long records = 0;
+            for (Future<JsonSchema> future : futures) {
+                JsonSchema schema = future.get();
+                if (root == null) {
+                    root = schema.getRoot();
+                } else {
+                    root.merge(schema.getRoot());
+                }
+                records += schema.getRecordCount();
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Inferred " + records + " records in " + tasks.size() + " chunks");
+            }
+            return new JsonSchema(root, records);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inferring JSON schema", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.*;
+
+/**
+ * Transcodes a delimited file to newline-delimited JSON, one object per
+ * record, using the sniffed FileParameters, the header and the inferred
+ * types.
+ *
+ * Records are parsed into column batches on the calling thread, and each
+ * batch is encoded by a pool of workers with a streaming JsonGenerator,
+ * reading the primitive values of the vectors. The encoded batches are
+ * written in file order, and the batches are reused once written, so
+ * memory is bounded by the batch size and the number of batches in flight.
+ *
+ * INTEGER and NUMERIC columns are written as JSON numbers, BOOLEAN columns
+ * as JSON booleans, and other columns as strings. A TIMESTAMP is written
+ * in the column's date format, or in ISO 8601 if the column has none.
+ * Empty values are null. A value that can't be converted to the column's
+ * type, such as "N/A" in an INTEGER column, or an integer with leading
+ * zeros such as "007", is written as its original text, so that no data
+ * is lost when the types were inferred from a sample. The number of such
+ * values is given by {@link #getRejectCount()}.
+ */
+public class NdjsonTranscoder {
+
+    private static final Log log = LogFactory.getLog(NdjsonTranscoder.class);
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final String ISO_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+    private final FileParameters params;
+    private final TypesContainer types;
+
+    // field names encoded once, shared by the workers
+    private final SerializedString[] names;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = ColumnarReader.DEFAULT_BATCH_SIZE;
+    private ITypeParser<ParsedDate> dateParser;
+
+    private long rejectCount;
+
+    /**
+     * @param params sniffed file parameters
+     * @param header field names, e.g. from FileService.getHeader; a column
+     *               without a name is named column_n
+     * @param types inferred column types
+     */
+    public NdjsonTranscoder(FileParameters params, String[] header, TypesContainer types) {
+        this.params = params;
+        this.types = types;
+        int n = types.sqlTypes.length;
+        names = new SerializedString[n];
+        for (int j = 0; j < n; j++) {
+            String name = (header != null && j < header.length) ? header[j] : null;
+            names[j] = new SerializedString((name == null) ? "column_" + (j + 1) : name);
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of worker threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize number of records encoded by a worker at a time
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public ITypeParser<ParsedDate> getDateParser() {
+        return dateParser;
+    }
+
+    /**
+     * @param dateParser parser of TIMESTAMP columns without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     */
+    public void setDateParser(ITypeParser<ParsedDate> dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * @return number of values of the last transcode written as text
+     *         because they couldn't be converted to the column's type
+     */
+    public long getRejectCount() {
+        return rejectCount;
+    }
+
+    /**
+     * Transcodes all records read from the reader. The reader is closed;
+     * the output stream is flushed but not closed.
+     *
+     * @param in source of the delimited file
+     * @param out destination of the UTF-8 encoded JSON lines
+     * @return number of records written
+     * @throws IOException
+     */
+    public long transcode(Reader in, OutputStream out) throws IOException {
+        OutputStream bout = new BufferedOutputStream(out, 65536);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        int maxInFlight = parallelism * 2;
+        ArrayDeque<Future<Encoded>> inFlight = new ArrayDeque<>(maxInFlight);
+        ArrayDeque<ColumnBatch> free = new ArrayDeque<>(maxInFlight);
+        long records = 0;
+        rejectCount = 0;
+        try (ColumnarReader reader = new ColumnarReader(in, params, types, batchSize)) {
+            reader.setKeepRejects(true);
+            reader.setDateParser(dateParser);
+            ColumnBatch batch;
+            while ((batch = reader.next(free.poll())) != null) {
+                inFlight.add(executor.submit(new BatchEncoder(batch)));
+                if (inFlight.size() == maxInFlight) {
+                    records += complete(inFlight.poll(), bout, free);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                records += complete(inFlight.poll(), bout, free);
+            }
+            bout.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Transcoded " + records + " records to NDJSON with " + rejectCount +
+                    " values written as text");
+        }
+        return records;
+    }
+
+    private int complete(Future<Encoded> future, OutputStream out, ArrayDeque<ColumnBatch> free)
+            throws IOException {
+        Encoded encoded;
+        try {
+            encoded = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transcoding", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        encoded.bytes.writeTo(out);
+        for (ColumnVector column : encoded.batch.getColumns()) {
+            rejectCount += column.getConversionErrors();
+        }
+        free.push(encoded.batch);
+        return encoded.batch.getRowCount();
+    }
+
+    /**
+     * Encodes the rows of a batch as JSON lines.
+     */
+    private class BatchEncoder implements Callable<Encoded> {
+
+        private final ColumnBatch batch;
+
+        BatchEncoder(ColumnBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public Encoded call() throws IOException {
+            int rows = batch.getRowCount();
+            ColumnVector[] columns = batch.getColumns();
+            SimpleDateFormat[] dateFormats = createDateFormats(columns);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(1024, rows * columns.length * 16));
+            try (JsonGenerator gen = jsonFactory.createGenerator(bytes, JsonEncoding.UTF8)) {
+                // records are separated by line breaks rather than spaces
+                gen.setRootValueSeparator(null);
+                for (int r = 0; r < rows; r++) {
+                    gen.writeStartObject();
+                    for (int j = 0; j < columns.length; j++) {
+                        gen.writeFieldName(names[j]);
+                        writeValue(gen, columns[j], r, dateFormats[j]);
+                    }
+                    gen.writeEndObject();
+                    gen.writeRaw('\n');
+                }
+            }
+            return new Encoded(batch, bytes);
+        }
+    }
+
+    private static SimpleDateFormat[] createDateFormats(ColumnVector[] columns) {
+        SimpleDateFormat[] formats = new SimpleDateFormat[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            if (columns[j] instanceof TimestampVector) {
+                String format = ((TimestampVector) columns[j]).getFormat();
+                formats[j] = new SimpleDateFormat((format == null) ? ISO_FORMAT : format);
+            }
+        }
+        return formats;
+    }
+
+    private static void writeValue(JsonGenerator gen, ColumnVector column, int row, SimpleDateFormat dateFormat)
+            throws IOException {
+        if (column.isNull(row)) {
+            String text = column.getRejectedText(row);
+            if (text == null) {
+                gen.writeNull();
+            } else {
+                gen.writeString(text);
+            }
+        } else if (column instanceof IntegerVector) {
+            gen.writeNumber(((IntegerVector) column).getLong(row));
+        } else if (column instanceof DoubleVector) {
+            double value = ((DoubleVector) column).getDouble(row);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                // not a JSON number
+                gen.writeString(Double.toString(value));
+            } else {
+                gen.writeNumber(value);
+            }
+        } else if (column instanceof BooleanVector) {
+            gen.writeBoolean(((BooleanVector) column).getBoolean(row));
+        } else if (column instanceof TimestampVector) {
+            gen.writeString(dateFormat.format(new Date(((TimestampVector) column).getMillis(row))));
+        } else if (column instanceof StringVector) {
+            StringVector strings = (StringVector) column;
+            int code = strings.getCode(row);
+            int[] offsets = strings.getOffsets();
+            gen.writeString(strings.getArena(), offsets[code], offsets[code + 1] - offsets[code]);
+        } else {
+            gen.writeString(String.valueOf(column.getObject(row)));
+        }
+    }
+
+    private static class Encoded {
+
+        final ColumnBatch batch;
+        final ByteArrayOutputStream bytes;
+
+        Encoded(ColumnBatch batch, ByteArrayOutputStream bytes) {
+            this.batch = batch;
+            this.bytes = bytes;
+        }
+    }
+}
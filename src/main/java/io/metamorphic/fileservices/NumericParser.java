@@ -0,0 +1,23 @@
+package io.metamorphic.fileservices;
+
+import java.util.regex.Pattern;
+
+/**
+ * Accepts plain decimal numbers such as "-12.5". Exponent notation and
+ * leading zeros (other than "0.x") are not considered numeric.
+ */
+public class NumericParser implements ITypeParser<Double> {
+
+    static final Pattern NUMERIC_PATTERN = Pattern.compile("^\\s*[+-]?(0(?=\\.)|[1-9])[0-9]*(\\.[0-9]+)?\\s*$");
+
+    @Override
+    public Double parse(String value) {
+        if (value == null) return null;
+        if (!NUMERIC_PATTERN.matcher(value).matches()) return null;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
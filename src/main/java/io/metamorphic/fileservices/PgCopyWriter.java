@@ -0,0 +1,342 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.TimeZone;
+
+/**
+ * Writes typed column batches in the PostgreSQL binary COPY format, i.e.
+ * the input to <code>COPY table FROM STDIN (FORMAT binary)</code>, so that
+ * the server doesn't parse the values again.
+ *
+ * Column types default from the SQL types: INTEGER to int8, NUMERIC to
+ * numeric, TIMESTAMP to timestamp, BOOLEAN to bool, and NVARCHAR and TEXT
+ * to text. They can be changed with {@link #setPgType(int, PgType)} to
+ * match the target table. An INTEGER column narrowed to int4 is checked
+ * for values out of range before any row of a batch is written, so that
+ * a failure leaves whole tuples only.
+ *
+ * Timestamps are parsed in the default time zone, so a timestamp column
+ * holds the wall-clock time as written in the file, and a timestamptz
+ * column holds the instant.
+ */
+public class PgCopyWriter implements Closeable {
+
+    private static final Log log = LogFactory.getLog(PgCopyWriter.class);
+
+    public enum PgType {
+        INT4,
+        INT8,
+        NUMERIC,
+        FLOAT8,
+        TIMESTAMP,
+        TIMESTAMPTZ,
+        BOOL,
+        TEXT
+    }
+
+    private static final byte[] SIGNATURE = new byte[] { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+
+    // 2000-01-01 00:00:00 UTC, the PostgreSQL epoch
+    private static final long PG_EPOCH_MILLIS = 946684800000L;
+
+    private static final int NUMERIC_POS = 0x0000;
+    private static final int NUMERIC_NEG = 0x4000;
+    private static final int NUMERIC_NAN = 0xC000;
+
+    private static final BigInteger NBASE = BigInteger.valueOf(10000);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataOutputStream out;
+    private final PgType[] pgTypes;
+    private final TimeZone timeZone = TimeZone.getDefault();
+
+    private boolean started;
+    private boolean finished;
+    private long rowCount;
+
+    /**
+     * @param out destination of the COPY data
+     * @param types column types
+     */
+    public PgCopyWriter(OutputStream out, TypesContainer types) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 65536));
+        this.pgTypes = new PgType[types.sqlTypes.length];
+        for (int i = 0; i < pgTypes.length; i++) {
+            pgTypes[i] = getDefaultPgType(types.sqlTypes[i]);
+        }
+    }
+
+    public static PgType getDefaultPgType(DataTypes sqlType) {
+        switch (sqlType) {
+            case INTEGER:
+                // an inferred INTEGER may be any long
+                return PgType.INT8;
+            case NUMERIC:
+                return PgType.NUMERIC;
+            case TIMESTAMP:
+                return PgType.TIMESTAMP;
+            case BOOLEAN:
+                return PgType.BOOL;
+            default:
+                return PgType.TEXT;
+        }
+    }
+
+    public PgType getPgType(int column) {
+        return pgTypes[column];
+    }
+
+    /**
+     * Sets the type of a column in the target table. The type must suit the
+     * column's SQL type, e.g. INT8 or NUMERIC for an INTEGER column.
+     *
+     * @param column index of the column
+     * @param pgType PgType
+     */
+    public void setPgType(int column, PgType pgType) {
+        pgTypes[column] = pgType;
+    }
+
+    /**
+     * Writes every batch from the reader.
+     *
+     * @param reader ColumnarReader
+     * @return number of rows written
+     * @throws IOException
+     */
+    public long copy(ColumnarReader reader) throws IOException {
+        long rows = 0;
+        ColumnBatch batch;
+        while ((batch = reader.next()) != null) {
+            write(batch);
+            rows += batch.getRowCount();
+        }
+        return rows;
+    }
+
+    /**
+     * Writes the rows of a batch as tuples.
+     *
+     * @param batch ColumnBatch with a column for each type
+     * @throws IOException
+     */
+    public void write(ColumnBatch batch) throws IOException {
+        checkRange(batch);
+        start();
+        int n = batch.getColumnCount();
+        ColumnVector[] columns = batch.getColumns();
+        byte[][][] encoded = new byte[n][][];
+        for (int r = 0; r < batch.getRowCount(); r++) {
+            out.writeShort(n);
+            for (int j = 0; j < n; j++) {
+                ColumnVector column = columns[j];
+                if (column.isNull(r)) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                switch (pgTypes[j]) {
+                    case INT4:
+                        out.writeInt(4);
+                        out.writeInt((int) ((IntegerVector) column).getLong(r));
+                        break;
+                    case INT8:
+                        out.writeInt(8);
+                        out.writeLong(((IntegerVector) column).getLong(r));
+                        break;
+                    case NUMERIC:
+                        if (column instanceof IntegerVector) {
+                            writeNumeric(BigDecimal.valueOf(((IntegerVector) column).getLong(r)));
+                        } else {
+                            writeNumeric(((DoubleVector) column).getDouble(r));
+                        }
+                        break;
+                    case FLOAT8:
+                        out.writeInt(8);
+                        if (column instanceof IntegerVector) {
+                            out.writeDouble(((IntegerVector) column).getLong(r));
+                        } else {
+                            out.writeDouble(((DoubleVector) column).getDouble(r));
+                        }
+                        break;
+                    case TIMESTAMP:
+                        long millis = ((TimestampVector) column).getMillis(r);
+                        out.writeInt(8);
+                        out.writeLong(toMicros(millis + timeZone.getOffset(millis)));
+                        break;
+                    case TIMESTAMPTZ:
+                        out.writeInt(8);
+                        out.writeLong(toMicros(((TimestampVector) column).getMillis(r)));
+                        break;
+                    case BOOL:
+                        out.writeInt(1);
+                        out.writeByte(((BooleanVector) column).getBoolean(r) ? 1 : 0);
+                        break;
+                    default:
+                        writeText(column, r, j, encoded);
+                }
+            }
+        }
+        rowCount += batch.getRowCount();
+    }
+
+    /**
+     * Checks the values of int4 columns, which an IntegerVector holds as
+     * longs once any value is out of int range.
+     */
+    private void checkRange(ColumnBatch batch) throws IOException {
+        ColumnVector[] columns = batch.getColumns();
+        for (int j = 0; j < columns.length; j++) {
+            if (pgTypes[j] != PgType.INT4 || !((IntegerVector) columns[j]).isLong()) continue;
+            IntegerVector column = (IntegerVector) columns[j];
+            for (int r = 0; r < batch.getRowCount(); r++) {
+                if (column.isNull(r)) continue;
+                long value = column.getLong(r);
+                if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                    throw new IOException("Value " + value + " of column " + (j + 1) + " in record " +
+                            (batch.getFirstRecord() + r) + " is out of range for int4");
+                }
+            }
+        }
+    }
+
+    private void start() throws IOException {
+        if (started) return;
+        started = true;
+        out.write(SIGNATURE);
+        // flags
+        out.writeInt(0);
+        // length of the header extension
+        out.writeInt(0);
+    }
+
+    private static long toMicros(long millis) {
+        return (millis - PG_EPOCH_MILLIS) * 1000;
+    }
+
+    private void writeText(ColumnVector column, int row, int j, byte[][][] encoded) throws IOException {
+        byte[] bytes;
+        if (column instanceof StringVector) {
+            StringVector v = (StringVector) column;
+            if (v.isDictionaryEncoded()) {
+                // encode each distinct value once per batch
+                if (encoded[j] == null) {
+                    encoded[j] = new byte[v.getEntryCount()][];
+                }
+                int code = v.getCode(row);
+                bytes = encoded[j][code];
+                if (bytes == null) {
+                    bytes = v.getEntry(code).getBytes(UTF8);
+                    encoded[j][code] = bytes;
+                }
+            } else {
+                bytes = v.getString(row).getBytes(UTF8);
+            }
+        } else {
+            bytes = column.getObject(row).toString().getBytes(UTF8);
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeNumeric(double value) throws IOException {
+        if (Double.isNaN(value)) {
+            out.writeInt(8);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(NUMERIC_NAN);
+            out.writeShort(0);
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            throw new IOException("Infinity can't be written as numeric");
+        }
+        writeNumeric(BigDecimal.valueOf(value));
+    }
+
+    /**
+     * Writes a numeric as base 10000 digits, with the weight of the first
+     * digit and the display scale.
+     */
+    private void writeNumeric(BigDecimal value) throws IOException {
+        int sign = (value.signum() < 0) ? NUMERIC_NEG : NUMERIC_POS;
+        BigDecimal abs = value.abs();
+        if (abs.scale() < 0) {
+            abs = abs.setScale(0);
+        }
+        int scale = abs.scale();
+        // align the fraction to whole base 10000 digits
+        int fractionDigits = (scale + 3) / 4;
+        BigInteger unscaled = abs.unscaledValue().multiply(BigInteger.TEN.pow(fractionDigits * 4 - scale));
+        short[] digits = new short[unscaled.bitLength() / 13 + 1];
+        int ndigits = 0;
+        while (unscaled.signum() > 0) {
+            BigInteger[] qr = unscaled.divideAndRemainder(NBASE);
+            digits[ndigits++] = qr[1].shortValue();
+            unscaled = qr[0];
+        }
+        int weight = ndigits - fractionDigits - 1;
+        // trailing zero digits are implied by the weight
+        int last = 0;
+        while (last < ndigits && digits[last] == 0) {
+            last += 1;
+        }
+        int count = ndigits - last;
+        if (count == 0) {
+            sign = NUMERIC_POS;
+            weight = 0;
+        }
+        out.writeInt(8 + 2 * count);
+        out.writeShort(count);
+        out.writeShort(weight);
+        out.writeShort(sign);
+        out.writeShort(scale);
+        for (int i = ndigits - 1; i >= last; i--) {
+            out.writeShort(digits[i]);
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Writes the trailer and flushes, leaving the stream open.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        start();
+        out.writeShort(-1);
+        out.flush();
+        if (log.isDebugEnabled()) {
+            log.debug("Wrote " + rowCount + " rows in binary COPY format");
+        }
+    }
+
+    /**
+     * Writes the trailer and closes the stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+}
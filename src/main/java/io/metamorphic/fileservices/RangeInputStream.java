@@ -0,0 +1,70 @@
+package io.metamorphic.fileservices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a byte range of a file using positional reads, so that several
+ * ranges of the same channel can be read at once.
+ */
+class RangeInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final long end;
+    private final Closeable owner;
+    private long pos;
+
+    RangeInputStream(FileChannel channel, long start, long end) {
+        this(channel, start, end, null);
+    }
+
+    /**
+     * @param owner closed when the stream is closed, e.g. the file that
+     *              owns the channel
+     */
+    RangeInputStream(FileChannel channel, long start, long end, Closeable owner) {
+        this.channel = channel;
+        this.pos = start;
+        this.end = end;
+        this.owner = owner;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos >= end) return -1;
+        int n = (int) Math.min(len, end - pos);
+        int read = channel.read(ByteBuffer.wrap(b, off, n), pos);
+        if (read < 0) return -1;
+        pos += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner != null) {
+            owner.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.metamorphic.fileservices;
+
+/**
+ * An estimate of the number of records in a file, with bounds.
+ */
+public class RecordCountEstimate {
+
+    private final long recordCount;
+    private final long low;
+    private final long high;
+    private final boolean exact;
+    private final long sampledRecords;
+    private final double averageRecordLength;
+
+    public RecordCountEstimate(long recordCount, long low, long high, boolean exact,
+                               long sampledRecords, double averageRecordLength) {
+        this.recordCount = recordCount;
+        this.low = low;
+        this.high = high;
+        this.exact = exact;
+        this.sampledRecords = sampledRecords;
+        this.averageRecordLength = averageRecordLength;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return lower bound of the 95% interval
+     */
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * @return upper bound of the 95% interval
+     */
+    public long getHigh() {
+        return high;
+    }
+
+    /**
+     * @return true if the whole file was counted
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * @return number of complete records whose length was measured
+     */
+    public long getSampledRecords() {
+        return sampledRecords;
+    }
+
+    /**
+     * @return average record length in bytes, including the terminator
+     */
+    public double getAverageRecordLength() {
+        return averageRecordLength;
+    }
+
+    @Override
+    public String toString() {
+        return exact ? recordCount + " records" :
+                "~" + recordCount + " records [" + low + ", " + high + "]";
+    }
+}
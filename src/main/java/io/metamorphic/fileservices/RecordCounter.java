@@ -0,0 +1,259 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the records of a delimited file, or estimates the count from a
+ * sample, without reading any lines into memory.
+ *
+ * Unlike counting lines, a line break inside a quoted field doesn't start
+ * a new record. The header record, if any, is not counted.
+ */
+public class RecordCounter {
+
+    private static final Log log = LogFactory.getLog(RecordCounter.class);
+
+    public static final int DEFAULT_SAMPLE_BYTES = 1 << 20;
+
+    public static final int DEFAULT_SAMPLE_COUNT = 8;
+
+    // two-sided 95% quantiles of Student's t distribution by degrees of
+    // freedom from 1, the normal quantile being used beyond
+    private static final double[] T = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042
+    };
+
+    private static final double Z = 1.96;
+
+    private final FileParameters params;
+    private final Charset charset;
+
+    private int sampleBytes = DEFAULT_SAMPLE_BYTES;
+    private int sampleCount = DEFAULT_SAMPLE_COUNT;
+
+    public RecordCounter(FileParameters params, Charset charset) {
+        this.params = params;
+        this.charset = charset;
+    }
+
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * @param sampleBytes number of bytes read at each sample position
+     */
+    public void setSampleBytes(int sampleBytes) {
+        this.sampleBytes = Math.max(1, sampleBytes);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param sampleCount number of positions in the file to sample
+     */
+    public void setSampleCount(int sampleCount) {
+        this.sampleCount = Math.max(1, sampleCount);
+    }
+
+    /**
+     * Counts the records in a single quote-aware pass over the file.
+     *
+     * @param file delimited file
+     * @return number of records, not counting the header
+     * @throws IOException
+     */
+    public long count(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            RecordScanner scanner = new RecordScanner(params, charset);
+            Tally tally = new Tally(scanner, 0, params.isHeader(), true);
+            scanner.scan(channel, 0, channel.size(), 1, tally);
+            return tally.records;
+        }
+    }
+
+    /**
+     * Estimates the number of records from the average length of the
+     * records in samples taken at evenly spaced positions in the file.
+     *
+     * If the samples cover the whole file, the count is exact. Otherwise,
+     * each sample is taken from the middle of an equal part of the file,
+     * and the bounds are a 95% interval for the mean record length from
+     * the spread of the samples, so they allow for record lengths that
+     * vary through the file, as long as they vary smoothly.
+     *
+     * A sample starts at a line break, which may be inside a quoted field.
+     * The sample is scanned both from outside and from inside quotes, and
+     * the reading with the most records with the usual number of fields,
+     * less those without, is kept. Read from inside quotes, the first record is only the end of a
+     * record, so it is not measured.
+     *
+     * @param file delimited file
+     * @return RecordCountEstimate
+     * @throws IOException
+     */
+    public RecordCountEstimate estimate(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            RecordScanner scanner = new RecordScanner(params, charset);
+            if (size <= (long) sampleBytes * sampleCount) {
+                Tally tally = new Tally(scanner, 0, params.isHeader(), true);
+                scanner.scan(channel, 0, size, 1, tally);
+                return new RecordCountEstimate(tally.records, tally.records, tally.records, true,
+                        tally.records, tally.mean());
+            }
+            // the start of the file gives the header and the usual number of fields
+            Tally first = new Tally(scanner, 0, params.isHeader(), false);
+            scanner.scan(channel, 0, sampleBytes, 1, first);
+            long dataStart = first.dataStart;
+            int fields = first.usualFieldCount();
+            List<Tally> samples = new ArrayList<>(sampleCount);
+            for (int i = 0; i < sampleCount; i++) {
+                long pos = dataStart + (size - dataStart) * (2 * i + 1) / (2 * sampleCount);
+                long start = RecordScanner.nextLine(channel, pos, size);
+                if (start >= size) continue;
+                long end = Math.min(size, start + sampleBytes);
+                Tally outside = new Tally(scanner, start, false, false);
+                scanner.scan(channel, start, end, 1, false, outside);
+                // skip the end of the record the sample starts in
+                Tally inside = new Tally(scanner, start, true, false);
+                scanner.scan(channel, start, end, 1, true, inside);
+                Tally sample = (inside.score(fields) > outside.score(fields)) ? inside : outside;
+                if (sample.sampled > 0) {
+                    samples.add(sample);
+                }
+            }
+            long n = 0;
+            double sum = 0;
+            for (Tally sample : samples) {
+                n += sample.sampled;
+                sum += sample.sum;
+            }
+            if (n == 0) {
+                // a record longer than a sample
+                return new RecordCountEstimate(1, 1, Math.max(1, (size - dataStart) / sampleBytes), false, 0, 0);
+            }
+            double mean = sum / n;
+            int k = samples.size();
+            double margin = mean;
+            if (k > 1) {
+                // ratio estimator over the samples as clusters of records
+                double squares = 0;
+                for (Tally sample : samples) {
+                    double residual = sample.sum - mean * sample.sampled;
+                    squares += residual * residual;
+                }
+                double se = Math.sqrt(squares / (k - 1) / k) / ((double) n / k);
+                margin = ((k - 1 <= T.length) ? T[k - 2] : Z) * se;
+            }
+            long dataBytes = size - dataStart;
+            long estimate = Math.round(dataBytes / mean);
+            long low = (long) Math.floor(dataBytes / (mean + margin));
+            long high = (margin < mean) ? (long) Math.ceil(dataBytes / (mean - margin)) : dataBytes;
+            if (log.isDebugEnabled()) {
+                log.debug("Estimated " + estimate + " records [" + low + ", " + high + "] from " + n +
+                        " sampled records in " + file);
+            }
+            return new RecordCountEstimate(estimate, low, high, false, n, mean);
+        }
+    }
+
+    /**
+     * Counts records and the lengths of the records seen in full.
+     */
+    private static class Tally implements RecordScanner.Listener {
+
+        final RecordScanner scanner;
+        final boolean countPartial;
+
+        // number of measured records by number of fields
+        final Map<Integer, Integer> fieldCounts = new HashMap<>();
+
+        boolean header;
+        long dataStart;
+        long start;
+        long records;
+
+        long sampled;
+        double sum;
+
+        Tally(RecordScanner scanner, long start, boolean header, boolean countPartial) {
+            this.scanner = scanner;
+            this.start = start;
+            this.header = header;
+            this.countPartial = countPartial;
+        }
+
+        @Override
+        public void endRecord(long offset, long line, boolean terminated) {
+            if (header) {
+                header = false;
+                dataStart = offset;
+                start = offset;
+                return;
+            }
+            if (terminated) {
+                double length = offset - start;
+                sampled += 1;
+                sum += length;
+                records += 1;
+                int fields = scanner.getFieldCount();
+                Integer count = fieldCounts.get(fields);
+                fieldCounts.put(fields, (count == null) ? 1 : count + 1);
+            } else if (countPartial) {
+                records += 1;
+            }
+            start = offset;
+        }
+
+        /**
+         * @return number of measured records with the given number of fields
+         */
+        int count(int fields) {
+            Integer count = fieldCounts.get(fields);
+            return (count == null) ? 0 : count;
+        }
+
+        /**
+         * @return number of measured records with the given number of
+         *         fields, less the number without
+         */
+        long score(int fields) {
+            return 2L * count(fields) - sampled;
+        }
+
+        /**
+         * @return the most common number of fields, 0 if no records were measured
+         */
+        int usualFieldCount() {
+            int usual = 0;
+            for (Map.Entry<Integer, Integer> entry : fieldCounts.entrySet()) {
+                if (usual == 0 || entry.getValue() > count(usual)) {
+                    usual = entry.getKey();
+                }
+            }
+            return usual;
+        }
+
+        double mean() {
+            return (sampled == 0) ? 0 : sum / sampled;
+        }
+    }
+}
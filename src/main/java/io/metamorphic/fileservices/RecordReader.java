@@ -0,0 +1,313 @@
+package io.metamorphic.fileservices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads delimited records using the dialect described by a FileParameters.
+ *
+ * Records end at a line break ("\n", "\r\n" or "\r") outside a quoted
+ * field, or at a custom line terminator such as "&lt;ret&gt;". Inside a
+ * quoted field, two consecutive quotes are read as one quote and, when the
+ * dialect has an escape character and is not double quoted, the escape
+ * character escapes the next character. A blank line is read as a record
+ * with a single empty field.
+ *
+ * The fields of the current record are held in a buffer that is reused
+ * for the next record.
+ */
+public class RecordReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Reader reader;
+    private final char[] delimiter;
+    private final char quote;
+    private final boolean quoted;
+    private final char escape;
+    private final boolean escaped;
+    private final boolean skipInitialSpace;
+    private final char[] terminator;
+
+    private char[] buf = new char[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    // characters of the fields of the current record
+    private char[] chars = new char[1024];
+    private int length;
+
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count;
+
+    private long recordNumber = -1;
+    private long lineNumber = 1;
+    private long recordLineNumber;
+
+    public RecordReader(Reader reader, FileParameters params) {
+        this.reader = reader;
+        String del = params.getColumnDelimiter();
+        this.delimiter = (del == null) ? new char[0] : del.toCharArray();
+        String qot = params.getTextQualifier();
+        this.quoted = (qot != null && !qot.isEmpty());
+        this.quote = quoted ? qot.charAt(0) : 0;
+        Character esc = escapeCharacter(params);
+        this.escaped = (esc != null);
+        this.escape = escaped ? esc : 0;
+        this.skipInitialSpace = params.isSkipInitialSpace();
+        this.terminator = customTerminator(params.getLineTerminator());
+    }
+
+    /**
+     * @return the escape character of the dialect, or null if it has none
+     *         or is double quoted. An escape is only used if it was set by
+     *         the caller or detected by the sniffer.
+     */
+    static Character escapeCharacter(FileParameters params) {
+        Character esc = params.getEscapeCharacter();
+        if (esc == null || params.isDoubleQuoted()) return null;
+        String qot = params.getTextQualifier();
+        if (qot != null && !qot.isEmpty() && esc == qot.charAt(0)) return null;
+        return esc;
+    }
+
+    /**
+     * @return the line terminator as characters if it is not a standard
+     *         line break, otherwise null
+     */
+    static char[] customTerminator(String lineTerminator) {
+        if (lineTerminator == null || lineTerminator.isEmpty()) return null;
+        switch (lineTerminator) {
+            case "\n":
+            case "\r\n":
+            case "\r":
+            case "\\n":
+            case "\\r\\n":
+            case "\\r":
+                return null;
+            default:
+                return lineTerminator.toCharArray();
+        }
+    }
+
+    /**
+     * @return the line terminator with escaped line breaks such as "\\r\\n"
+     *         unescaped, or "\n" if none is given
+     */
+    static String lineBreak(String lineTerminator) {
+        if (lineTerminator == null || lineTerminator.isEmpty()) return "\n";
+        switch (lineTerminator) {
+            case "\\n":
+                return "\n";
+            case "\\r\\n":
+                return "\r\n";
+            case "\\r":
+                return "\r";
+            default:
+                return lineTerminator;
+        }
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of input
+     * @throws IOException
+     */
+    public boolean next() throws IOException {
+        count = 0;
+        length = 0;
+        if (!ensure(1)) return false;
+        recordNumber += 1;
+        recordLineNumber = lineNumber;
+        int fieldStart = 0;
+        boolean startOfField = true;
+        boolean afterDelimiter = false;
+        while (ensure(1)) {
+            char c = buf[pos];
+            if (startOfField) {
+                if (afterDelimiter && skipInitialSpace && c == ' ') {
+                    pos += 1;
+                    continue;
+                }
+                startOfField = false;
+                if (quoted && c == quote) {
+                    pos += 1;
+                    readQuoted();
+                    continue;
+                }
+            }
+            if (c == '\n' || c == '\r') {
+                pos += 1;
+                if (c == '\r' && ensure(1) && buf[pos] == '\n') {
+                    pos += 1;
+                }
+                lineNumber += 1;
+                addField(fieldStart);
+                return true;
+            }
+            if (terminator != null && matches(terminator)) {
+                pos += terminator.length;
+                addField(fieldStart);
+                return true;
+            }
+            if (delimiter.length > 0 && matches(delimiter)) {
+                pos += delimiter.length;
+                addField(fieldStart);
+                fieldStart = length;
+                startOfField = true;
+                afterDelimiter = true;
+                continue;
+            }
+            append(c);
+            pos += 1;
+        }
+        addField(fieldStart);
+        return true;
+    }
+
+    private void readQuoted() throws IOException {
+        while (ensure(1)) {
+            char c = buf[pos];
+            if (c == quote) {
+                if (ensure(2) && buf[pos + 1] == quote) {
+                    append(quote);
+                    pos += 2;
+                    continue;
+                }
+                pos += 1;
+                return;
+            }
+            if (escaped && c == escape && ensure(2)) {
+                append(buf[pos + 1]);
+                pos += 2;
+                continue;
+            }
+            if (c == '\n' || (c == '\r' && !(ensure(2) && buf[pos + 1] == '\n'))) {
+                lineNumber += 1;
+            }
+            append(c);
+            pos += 1;
+        }
+    }
+
+    private boolean matches(char[] seq) throws IOException {
+        if (buf[pos] != seq[0]) return false;
+        if (!ensure(seq.length)) return false;
+        for (int i = 1; i < seq.length; i++) {
+            if (buf[pos + i] != seq[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes at least n characters available from pos, unless the end of
+     * input is reached first.
+     */
+    private boolean ensure(int n) throws IOException {
+        while (limit - pos < n) {
+            if (eof) return false;
+            if (pos > 0) {
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int read = reader.read(buf, limit, buf.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return true;
+    }
+
+    private void append(char c) {
+        if (length == chars.length) {
+            char[] copy = new char[chars.length * 2];
+            System.arraycopy(chars, 0, copy, 0, length);
+            chars = copy;
+        }
+        chars[length++] = c;
+    }
+
+    private void addField(int fieldStart) {
+        if (count == starts.length) {
+            int[] s = new int[count * 2];
+            int[] e = new int[count * 2];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            starts = s;
+            ends = e;
+        }
+        starts[count] = fieldStart;
+        ends[count] = length;
+        count += 1;
+    }
+
+    public int getFieldCount() {
+        return count;
+    }
+
+    public String getField(int i) {
+        return new String(chars, starts[i], ends[i] - starts[i]);
+    }
+
+    /**
+     * The characters of the current record's fields, so that values can be
+     * converted without creating a String per field. Only valid until the
+     * next call to {@link #next()}.
+     *
+     * @return buffer holding the fields of the current record
+     */
+    public char[] getBuffer() {
+        return chars;
+    }
+
+    /**
+     * @return offset of the first character of field i in the buffer
+     */
+    public int getFieldStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * @return offset after the last character of field i in the buffer
+     */
+    public int getFieldEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * @return the fields of the current record as a new array
+     */
+    public String[] getFields() {
+        String[] fields = new String[count];
+        for (int i = 0; i < count; i++) {
+            fields[i] = getField(i);
+        }
+        return fields;
+    }
+
+    /**
+     * @return the zero-based ordinal of the current record
+     */
+    public long getRecordNumber() {
+        return recordNumber;
+    }
+
+    /**
+     * @return the one-based line number on which the current record starts
+     */
+    public long getLineNumber() {
+        return recordLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
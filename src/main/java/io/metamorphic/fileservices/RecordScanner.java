@@ -0,0 +1,227 @@
+package io.metamorphic.fileservices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Finds record boundaries in the bytes of a delimited file without
+ * decoding it, tracking quoting in the same way as RecordReader, so a line
+ * break inside a quoted field is not taken as a boundary. The file is
+ * memory-mapped a region at a time.
+ *
+ * The file must be in an encoding in which the delimiter, quote and line
+ * breaks are single ASCII bytes that don't occur within other characters,
+ * e.g. UTF-8 or ISO-8859-1. Scanning must start on a record boundary.
+ */
+class RecordScanner {
+
+    // size of the regions of the file mapped at a time
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    interface Listener {
+
+        /**
+         * @param offset byte offset after the record and its terminator
+         * @param line one-based line number on which the next record starts
+         * @param terminated false for a last record without a terminator
+         */
+        void endRecord(long offset, long line, boolean terminated);
+    }
+
+    private final byte[] delimiter;
+    private final boolean quoted;
+    private final byte quote;
+    private final boolean escaped;
+    private final byte escape;
+    private final boolean skipInitialSpace;
+    private final byte[] terminator;
+
+    private FileChannel channel;
+    private long size;
+    private ByteBuffer window;
+    private long windowStart;
+    private int pos;
+    private int limit;
+    private int fieldCount;
+
+    RecordScanner(FileParameters params, Charset charset) {
+        if ("\n".getBytes(charset).length != 1) {
+            throw new IllegalArgumentException("Files in " + charset + " can't be scanned by bytes");
+        }
+        String del = params.getColumnDelimiter();
+        this.delimiter = (del == null) ? new byte[0] : del.getBytes(charset);
+        String qot = params.getTextQualifier();
+        this.quoted = (qot != null && !qot.isEmpty());
+        this.quote = quoted ? (byte) qot.charAt(0) : 0;
+        Character esc = RecordReader.escapeCharacter(params);
+        this.escaped = (esc != null);
+        this.escape = escaped ? (byte) esc.charValue() : 0;
+        this.skipInitialSpace = params.isSkipInitialSpace();
+        char[] custom = RecordReader.customTerminator(params.getLineTerminator());
+        this.terminator = (custom == null) ? null : new String(custom).getBytes(charset);
+    }
+
+    /**
+     * Finds the start of the next line, ignoring quoting, e.g. to start
+     * scanning a sample from a position in the middle of a file.
+     *
+     * @return offset just after the first newline at or after pos, or size
+     */
+    static long nextLine(FileChannel channel, long pos, long size) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        while (pos < size) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read <= 0) break;
+            for (int i = 0; i < read; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    /**
+     * Scans from a record boundary to the end of the file.
+     *
+     * @param channel file
+     * @param start offset of a record boundary
+     * @param size end of the scan, normally the size of the file
+     * @param line line number at start
+     * @param listener receives each record boundary
+     * @throws IOException
+     */
+    void scan(FileChannel channel, long start, long size, long line, Listener listener) throws IOException {
+        scan(channel, start, size, line, false, listener);
+    }
+
+    /**
+     * Scans from a position that may be inside a quoted field, e.g. to try
+     * both ways of reading a sample that starts at an arbitrary line break.
+     * If inQuotes, the first record reported is the rest of a record.
+     *
+     * @param channel file
+     * @param start offset of a record boundary, or of a position inside a
+     *              quoted field if inQuotes
+     * @param size end of the scan, normally the size of the file
+     * @param line line number at start
+     * @param inQuotes whether start is inside a quoted field
+     * @param listener receives each record boundary
+     * @throws IOException
+     */
+    void scan(FileChannel channel, long start, long size, long line, boolean inQuotes,
+              Listener listener) throws IOException {
+        this.channel = channel;
+        this.size = size;
+        this.windowStart = start;
+        this.pos = 0;
+        this.limit = 0;
+        boolean startOfField = !inQuotes;
+        boolean afterDelimiter = false;
+        boolean inRecord = inQuotes;
+        int fields = 1;
+        while (ensure(1)) {
+            byte b = window.get(pos);
+            if (inQuotes) {
+                if (b == quote) {
+                    if (ensure(2) && window.get(pos + 1) == quote) {
+                        pos += 2;
+                    } else {
+                        pos += 1;
+                        inQuotes = false;
+                    }
+                    continue;
+                }
+                if (escaped && b == escape && ensure(2)) {
+                    pos += 2;
+                    continue;
+                }
+                if (b == '\n' || (b == '\r' && !(ensure(2) && window.get(pos + 1) == '\n'))) {
+                    line += 1;
+                }
+                pos += 1;
+                continue;
+            }
+            inRecord = true;
+            if (startOfField) {
+                if (afterDelimiter && skipInitialSpace && b == ' ') {
+                    pos += 1;
+                    continue;
+                }
+                startOfField = false;
+                if (quoted && b == quote) {
+                    pos += 1;
+                    inQuotes = true;
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                pos += 1;
+                if (b == '\r' && ensure(1) && window.get(pos) == '\n') {
+                    pos += 1;
+                }
+                line += 1;
+            } else if (terminator != null && matches(terminator)) {
+                pos += terminator.length;
+            } else if (delimiter.length > 0 && matches(delimiter)) {
+                pos += delimiter.length;
+                fields += 1;
+                startOfField = true;
+                afterDelimiter = true;
+                continue;
+            } else {
+                pos += 1;
+                continue;
+            }
+            inRecord = false;
+            startOfField = true;
+            afterDelimiter = false;
+            fieldCount = fields;
+            fields = 1;
+            listener.endRecord(windowStart + pos, line, true);
+        }
+        if (inRecord) {
+            fieldCount = fields;
+            listener.endRecord(windowStart + pos, line, false);
+        }
+        this.channel = null;
+        this.window = null;
+    }
+
+    /**
+     * @return number of fields in the record just ended, for use in
+     *         {@link Listener#endRecord}
+     */
+    int getFieldCount() {
+        return fieldCount;
+    }
+
+    private boolean matches(byte[] seq) throws IOException {
+        if (window.get(pos) != seq[0]) return false;
+        if (!ensure(seq.length)) return false;
+        for (int i = 1; i < seq.length; i++) {
+            if (window.get(pos + i) != seq[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Makes at least k bytes available from pos, mapping the next region of
+     * the file from pos if needed.
+     */
+    private boolean ensure(int k) throws IOException {
+        if (limit - pos >= k) return true;
+        long next = windowStart + pos;
+        if (window != null && windowStart + limit >= size) return false;
+        if (size - next < k) return false;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, next, Math.min(WINDOW_SIZE, size - next));
+        windowStart = next;
+        pos = 0;
+        limit = window.limit();
+        return true;
+    }
+}
@@ -0,0 +1,331 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Validates every record of a file against the inferred column types, so
+ * that values which won't load are found before the load.
+ *
+ * Records are parsed with the sniffed FileParameters on the calling
+ * thread and checked in batches by a pool of workers. Values are converted
+ * exactly as by a ColumnarReader, so dates must match the column's locked
+ * format. Empty values are valid in any column.
+ *
+ * Parsing a date is costly, so with a memo size set each worker remembers
+ * whether the repeated values of a TIMESTAMP column in its batch are valid
+ * (see {@link ValueMemo}).
+ *
+ * Memory is bounded by the batch size and the number of batches in
+ * flight. Rejected records are passed to the RejectHandler in file order.
+ */
+public class RecordValidator {
+
+    private static final Log log = LogFactory.getLog(RecordValidator.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 4096;
+
+    private final FileParameters params;
+    private final TypesContainer types;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int memoSize;
+    private RejectHandler rejectHandler;
+    private ITypeParser<ParsedDate> dateParser;
+
+    public RecordValidator(FileParameters params, TypesContainer types) {
+        this.params = params;
+        this.types = types;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of worker threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize number of records checked by a worker at a time
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public int getMemoSize() {
+        return memoSize;
+    }
+
+    /**
+     * @param memoSize maximum number of values remembered per TIMESTAMP
+     *                 column in a batch, or 0 not to remember values
+     */
+    public void setMemoSize(int memoSize) {
+        this.memoSize = Math.max(0, memoSize);
+    }
+
+    public RejectHandler getRejectHandler() {
+        return rejectHandler;
+    }
+
+    /**
+     * @param rejectHandler receives records that fail validation, or null
+     */
+    public void setRejectHandler(RejectHandler rejectHandler) {
+        this.rejectHandler = rejectHandler;
+    }
+
+    public ITypeParser<ParsedDate> getDateParser() {
+        return dateParser;
+    }
+
+    /**
+     * @param dateParser parser of TIMESTAMP columns without a date format,
+     *                   e.g. FileService.getDateParser(), or null for the
+     *                   default formats
+     */
+    public void setDateParser(ITypeParser<ParsedDate> dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * Validates all records read from the reader. The reader is closed.
+     *
+     * @param in source of the delimited file
+     * @return ValidationReport
+     * @throws IOException
+     */
+    public ValidationReport validate(Reader in) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        int maxInFlight = parallelism * 2;
+        ArrayDeque<Future<BatchResult>> inFlight = new ArrayDeque<>(maxInFlight);
+        try (RecordReader reader = new RecordReader(in, params)) {
+            String[] header = null;
+            if (params.isHeader() && reader.next()) {
+                header = reader.getFields();
+            }
+            ValidationReport report = new ValidationReport(header, types.sqlTypes.length);
+            long records = 0;
+            RecordBatch batch = new RecordBatch(batchSize, records);
+            while (reader.next()) {
+                records += 1;
+                batch.add(reader);
+                if (batch.size == batchSize) {
+                    if (inFlight.size() == maxInFlight) {
+                        complete(inFlight.poll(), report);
+                    }
+                    inFlight.add(executor.submit(new BatchCheck(batch)));
+                    batch = new RecordBatch(batchSize, records);
+                }
+            }
+            if (batch.size > 0) {
+                inFlight.add(executor.submit(new BatchCheck(batch)));
+            }
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.poll(), report);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Validated " + report);
+            }
+            return report;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void complete(Future<BatchResult> future, ValidationReport report) throws IOException {
+        BatchResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while validating", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+        report.add(result.records, result.rejects.size(), result.fieldCountErrors, result.failures);
+        if (rejectHandler != null) {
+            for (Reject reject : result.rejects) {
+                rejectHandler.reject(reject.lineNumber, reject.recordNumber, reject.fields, reject.failedColumns);
+            }
+        }
+    }
+
+    /**
+     * Checks the records of a batch by converting each column.
+     */
+    private class BatchCheck implements Callable<BatchResult> {
+
+        private final RecordBatch batch;
+
+        BatchCheck(RecordBatch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public BatchResult call() {
+            int n = types.sqlTypes.length;
+            ColumnVector[] columns = new ColumnVector[n];
+            List<ValueMemo<Boolean>> memos = new ArrayList<>(n);
+            for (int j = 0; j < n; j++) {
+                DataTypes type = types.sqlTypes[j];
+                // any value is a valid string
+                if (type != DataTypes.NVARCHAR && type != DataTypes.TEXT) {
+                    columns[j] = ColumnVector.create(type, types.types[j], batch.size, dateParser);
+                }
+                boolean remember = (memoSize > 0 && type == DataTypes.TIMESTAMP);
+                memos.add(remember ? new ValueMemo<Boolean>(memoSize, ValueMemo.DEFAULT_MAX_CHARS) : null);
+            }
+            BatchResult result = new BatchResult(n, batch.size);
+            int[] failed = new int[n];
+            for (int r = 0; r < batch.size; r++) {
+                int first = batch.recordStarts[r];
+                int count = batch.recordStarts[r + 1] - first;
+                int nfailed = 0;
+                for (int j = 0; j < n; j++) {
+                    ColumnVector column = columns[j];
+                    if (column == null) continue;
+                    if (j < count) {
+                        int start = batch.starts[first + j];
+                        int end = batch.ends[first + j];
+                        ValueMemo<Boolean> memo = memos.get(j);
+                        Boolean valid = (memo == null) ? null : memo.get(batch.chars, start, end);
+                        if (valid == null) {
+                            int errors = column.getConversionErrors();
+                            column.append(batch.chars, start, end);
+                            valid = (column.getConversionErrors() == errors);
+                            if (memo != null) {
+                                memo.put(new String(batch.chars, start, end - start), valid);
+                            }
+                        } else {
+                            // the converted value isn't used
+                            column.appendNull();
+                        }
+                        if (!valid) {
+                            result.failures[j] += 1;
+                            failed[nfailed++] = j;
+                        }
+                    } else {
+                        column.appendNull();
+                    }
+                }
+                boolean wrongCount = (count != n);
+                if (wrongCount) {
+                    result.fieldCountErrors += 1;
+                }
+                if (nfailed > 0 || wrongCount) {
+                    result.rejects.add(new Reject(batch.lineNumbers[r], batch.firstRecord + r,
+                            batch.getFields(r), Arrays.copyOf(failed, nfailed)));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Copies of the fields of a batch of records, since the RecordReader
+     * reuses its buffer.
+     */
+    private static class RecordBatch {
+
+        final long firstRecord;
+        final long[] lineNumbers;
+
+        // fields of record r are recordStarts[r] to recordStarts[r + 1]
+        final int[] recordStarts;
+        int[] starts;
+        int[] ends;
+        char[] chars;
+        int size;
+        int fieldCount;
+        int length;
+
+        RecordBatch(int capacity, long firstRecord) {
+            this.firstRecord = firstRecord;
+            lineNumbers = new long[capacity];
+            recordStarts = new int[capacity + 1];
+            starts = new int[capacity * 8];
+            ends = new int[capacity * 8];
+            chars = new char[capacity * 64];
+        }
+
+        void add(RecordReader reader) {
+            int count = reader.getFieldCount();
+            int len = reader.getFieldEnd(count - 1);
+            if (length + len > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + len));
+            }
+            System.arraycopy(reader.getBuffer(), 0, chars, length, len);
+            if (fieldCount + count > starts.length) {
+                int capacity = Math.max(starts.length * 2, fieldCount + count);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            for (int i = 0; i < count; i++) {
+                starts[fieldCount + i] = length + reader.getFieldStart(i);
+                ends[fieldCount + i] = length + reader.getFieldEnd(i);
+            }
+            lineNumbers[size] = reader.getLineNumber();
+            fieldCount += count;
+            length += len;
+            size += 1;
+            recordStarts[size] = fieldCount;
+        }
+
+        String[] getFields(int r) {
+            int first = recordStarts[r];
+            String[] fields = new String[recordStarts[r + 1] - first];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = new String(chars, starts[first + i], ends[first + i] - starts[first + i]);
+            }
+            return fields;
+        }
+    }
+
+    private static class BatchResult {
+
+        final long[] failures;
+        final List<Reject> rejects = new ArrayList<>();
+        long records;
+        long fieldCountErrors;
+
+        BatchResult(int columnCount, int records) {
+            this.failures = new long[columnCount];
+            this.records = records;
+        }
+    }
+
+    private static class Reject {
+
+        final long lineNumber;
+        final long recordNumber;
+        final String[] fields;
+        final int[] failedColumns;
+
+        Reject(long lineNumber, long recordNumber, String[] fields, int[] failedColumns) {
+            this.lineNumber = lineNumber;
+            this.recordNumber = recordNumber;
+            this.fields = fields;
+            this.failedColumns = failedColumns;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.metamorphic.fileservices;
+
+import java.io.IOException;
+
+/**
+ * Receives the records that fail validation, in file order.
+ */
+public interface RejectHandler {
+
+    /**
+     * @param lineNumber one-based line number on which the record starts
+     * @param recordNumber zero-based ordinal of the record, not counting the header
+     * @param fields fields of the record
+     * @param failedColumns indexes of the columns whose values failed to
+     *                      convert, empty if only the number of fields is wrong
+     * @throws IOException
+     */
+    void reject(long lineNumber, long recordNumber, String[] fields, int[] failedColumns) throws IOException;
+}
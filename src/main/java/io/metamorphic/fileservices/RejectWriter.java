@@ -0,0 +1,83 @@
+package io.metamorphic.fileservices;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes rejected records in the dialect of the source file, preceded by
+ * two fields: the line number on which the record starts, and the names
+ * of the columns that failed, separated by semicolons. A reject file can
+ * be read with the same FileParameters as its source.
+ */
+public class RejectWriter implements RejectHandler, Closeable {
+
+    private final Writer writer;
+    private final String delimiter;
+    private final String quote;
+    private final String lineBreak;
+    private final String[] header;
+
+    /**
+     * @param writer destination of the rejected records
+     * @param params parameters of the source file
+     * @param header column names, written as the first line if not null
+     * @throws IOException
+     */
+    public RejectWriter(Writer writer, FileParameters params, String[] header) throws IOException {
+        this.writer = writer;
+        String del = params.getColumnDelimiter();
+        this.delimiter = (del == null || del.isEmpty()) ? "," : del;
+        String qot = params.getTextQualifier();
+        this.quote = (qot == null || qot.isEmpty()) ? "\"" : qot;
+        this.lineBreak = RecordReader.lineBreak(params.getLineTerminator());
+        this.header = header;
+        if (header != null) {
+            String[] names = new String[header.length + 2];
+            names[0] = "line";
+            names[1] = "rejected_columns";
+            System.arraycopy(header, 0, names, 2, header.length);
+            writeRecord(names);
+        }
+    }
+
+    @Override
+    public void reject(long lineNumber, long recordNumber, String[] fields, int[] failedColumns) throws IOException {
+        writer.write(Long.toString(lineNumber));
+        writer.write(delimiter);
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < failedColumns.length; i++) {
+            if (i > 0) columns.append(';');
+            int c = failedColumns[i];
+            columns.append((header != null && c < header.length) ? header[c] : Integer.toString(c + 1));
+        }
+        writeField(columns.toString());
+        writer.write(delimiter);
+        writeRecord(fields);
+    }
+
+    private void writeRecord(String[] fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) writer.write(delimiter);
+            writeField(fields[i]);
+        }
+        writer.write(lineBreak);
+    }
+
+    private void writeField(String value) throws IOException {
+        if (value == null) return;
+        if (value.contains(delimiter) || value.contains(quote) || value.indexOf('\n') >= 0 ||
+                value.indexOf('\r') >= 0 || value.contains(lineBreak)) {
+            writer.write(quote);
+            writer.write(value.replace(quote, quote + quote));
+            writer.write(quote);
+        } else {
+            writer.write(value);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
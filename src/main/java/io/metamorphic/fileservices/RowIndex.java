@@ -0,0 +1,335 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sidecar index of the byte offset of every Kth record of a delimited
+ * file, so that a page of records can be read from any position with a
+ * seek and a short forward scan.
+ *
+ * The index is built with a quote-aware RecordScanner and saved next to
+ * the file. If the file has grown since, the index is extended from the
+ * last indexed record rather than rebuilt, on the assumption that the
+ * file is only appended to.
+ *
+ * Layout, little-endian: a 64 byte header ("MRI1", version, interval,
+ * flags, fingerprint of the FileParameters, record count, offset and line
+ * number after the last complete record, offset after the header record),
+ * then the offsets as longs.
+ */
+public class RowIndex {
+
+    private static final Log log = LogFactory.getLog(RowIndex.class);
+
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    static final String SUFFIX = ".idx";
+
+    private static final byte[] MAGIC = new byte[] { 'M', 'R', 'I', '1' };
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private final File source;
+    private final File file;
+    private final FileParameters params;
+    private final Charset charset;
+    private final int interval;
+    private final long fingerprint;
+
+    // offsets[i] is the offset of record i * interval
+    private long[] offsets = new long[64];
+    private int entryCount;
+    private int savedEntryCount;
+
+    // complete records, i.e. ending with a line terminator
+    private long recordCount;
+    private long scannedTo;
+    private long line = 1;
+    private long dataStart;
+
+    // the last record has no line terminator, so may still be written to
+    private boolean partial;
+
+    // the sidecar holds the index as it is
+    private boolean saved;
+
+    private RowIndex(File source, FileParameters params, Charset charset, int interval) {
+        this.source = source;
+        this.file = sidecarFile(source);
+        this.params = params;
+        this.charset = charset;
+        this.interval = interval;
+        this.fingerprint = fingerprint(params, charset);
+    }
+
+    /**
+     * @param source delimited file
+     * @return the sidecar index file for the source file
+     */
+    public static File sidecarFile(File source) {
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    public static RowIndex open(File source, FileParameters params, Charset charset) throws IOException {
+        return open(source, params, charset, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Opens the index of a file, building it if there is no usable sidecar,
+     * and extending it if the file has grown.
+     *
+     * @param source delimited file
+     * @param params file parameters
+     * @param charset encoding of the file
+     * @param interval number of records between indexed offsets
+     * @return RowIndex
+     * @throws IOException
+     */
+    public static RowIndex open(File source, FileParameters params, Charset charset, int interval) throws IOException {
+        RowIndex index = new RowIndex(source, params, charset, Math.max(1, interval));
+        if (!index.load()) {
+            index.reset();
+        }
+        index.extend();
+        return index;
+    }
+
+    private boolean load() throws IOException {
+        if (!file.exists()) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) return false;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+                // read the whole header
+            }
+            header.flip();
+            byte[] magic = new byte[4];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION || header.getInt() != interval) {
+                return false;
+            }
+            header.getInt();
+            if (header.getLong() != fingerprint) return false;
+            recordCount = header.getLong();
+            scannedTo = header.getLong();
+            line = header.getLong();
+            dataStart = header.getLong();
+            if (scannedTo > source.length()) {
+                // the file has been replaced
+                return false;
+            }
+            entryCount = (int) ((recordCount + interval - 1) / interval);
+            if (size < HEADER_SIZE + 8L * entryCount) return false;
+            offsets = new long[Math.max(64, entryCount * 2)];
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 8L * entryCount)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            buf.asLongBuffer().get(offsets, 0, entryCount);
+            savedEntryCount = entryCount;
+        }
+        saved = true;
+        return true;
+    }
+
+    private void reset() {
+        entryCount = 0;
+        savedEntryCount = 0;
+        recordCount = 0;
+        scannedTo = 0;
+        line = 1;
+        dataStart = 0;
+        partial = false;
+        saved = false;
+    }
+
+    /**
+     * Indexes any records added to the file since it was last indexed, and
+     * saves the index.
+     *
+     * @return true if the file has grown
+     * @throws IOException
+     */
+    public boolean extend() throws IOException {
+        long size = source.length();
+        if (size < scannedTo) {
+            reset();
+        } else if (size == scannedTo && saved) {
+            partial = false;
+            return false;
+        }
+        // forget a partial last record, which is scanned again
+        entryCount = (int) ((recordCount + interval - 1) / interval);
+        partial = false;
+        long records = recordCount;
+        try (RandomAccessFile raf = new RandomAccessFile(source, "r")) {
+            final boolean header = params.isHeader() && scannedTo == 0;
+            new RecordScanner(params, charset).scan(raf.getChannel(), scannedTo, size, line,
+                    new RecordScanner.Listener() {
+
+                        boolean inHeader = header;
+                        long start = scannedTo;
+
+                        @Override
+                        public void endRecord(long offset, long nextLine, boolean terminated) {
+                            if (inHeader) {
+                                inHeader = false;
+                                if (terminated) {
+                                    dataStart = offset;
+                                    scannedTo = offset;
+                                    line = nextLine;
+                                    start = offset;
+                                }
+                                return;
+                            }
+                            if (recordCount % interval == 0) {
+                                addEntry(start);
+                            }
+                            if (terminated) {
+                                recordCount += 1;
+                                scannedTo = offset;
+                                line = nextLine;
+                                start = offset;
+                            } else {
+                                partial = true;
+                            }
+                        }
+                    });
+        }
+        save();
+        if (log.isDebugEnabled()) {
+            log.debug("Indexed " + (recordCount - records) + " records of " + source);
+        }
+        return true;
+    }
+
+    private void addEntry(long offset) {
+        if (entryCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[entryCount++] = offset;
+    }
+
+    private void save() throws IOException {
+        int saved = (int) ((recordCount + interval - 1) / interval);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(interval);
+            header.putInt(0);
+            header.putLong(fingerprint);
+            header.putLong(recordCount);
+            header.putLong(scannedTo);
+            header.putLong(line);
+            header.putLong(dataStart);
+            header.clear();
+            write(channel, header, 0);
+            int from = Math.min(savedEntryCount, saved);
+            ByteBuffer buf = ByteBuffer.allocate(8 * (saved - from)).order(ByteOrder.LITTLE_ENDIAN);
+            buf.asLongBuffer().put(offsets, from, saved - from);
+            write(channel, buf, HEADER_SIZE + 8L * from);
+            channel.truncate(HEADER_SIZE + 8L * saved);
+        }
+        savedEntryCount = saved;
+        this.saved = true;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    private static long fingerprint(FileParameters params, Charset charset) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        String s = params.toMap().toString() + charset.name();
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return number of records indexed, not counting the header
+     */
+    public long getRecordCount() {
+        return partial ? recordCount + 1 : recordCount;
+    }
+
+    /**
+     * @param record zero-based ordinal of a record
+     * @return offset of the nearest indexed record at or before it
+     */
+    public long getOffset(long record) {
+        if (entryCount == 0) return dataStart;
+        return offsets[(int) Math.min(record / interval, entryCount - 1)];
+    }
+
+    /**
+     * Opens a reader positioned before the given record, by seeking to the
+     * nearest indexed record and skipping forward.
+     *
+     * @param record zero-based ordinal of a record, not counting the header
+     * @return RecordReader whose next record is the given record, if it exists
+     * @throws IOException
+     */
+    public RecordReader seek(long record) throws IOException {
+        long entry = Math.min(record / interval, Math.max(0, entryCount - 1));
+        long start = (entryCount == 0) ? dataStart : offsets[(int) entry];
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        // closing the reader closes the file
+        RangeInputStream in = new RangeInputStream(raf.getChannel(), start, raf.length(), raf);
+        RecordReader reader = new RecordReader(new InputStreamReader(in, charset), params);
+        long skip = record - entry * interval;
+        try {
+            for (long i = 0; i < skip && reader.next(); i++) {
+                // skip to the record
+            }
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    /**
+     * Reads a page of records.
+     *
+     * @param first zero-based ordinal of the first record
+     * @param count maximum number of records
+     * @return fields of each record
+     * @throws IOException
+     */
+    public List<String[]> read(long first, int count) throws IOException {
+        List<String[]> rows = new ArrayList<>(Math.min(count, 1024));
+        try (RecordReader reader = seek(first)) {
+            while (rows.size() < count && reader.next()) {
+                rows.add(reader.getFields());
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,20 @@
+package io.metamorphic.fileservices;
+
+/**
+ * A read-only sample of rows, so that the same sample can be shared by
+ * header detection, type inference and header naming without being
+ * copied or changed. See {@link Rows} for adapters.
+ */
+public interface RowSource {
+
+    /**
+     * @return number of rows
+     */
+    int size();
+
+    /**
+     * @param row index of the row
+     * @return view of the row
+     */
+    RowView get(int row);
+}
@@ -0,0 +1,19 @@
+package io.metamorphic.fileservices;
+
+/**
+ * A read-only view of the fields of a row, which may be backed by an
+ * array, a list or a buffer of parsed records.
+ */
+public interface RowView {
+
+    /**
+     * @return number of fields
+     */
+    int size();
+
+    /**
+     * @param i index of the field
+     * @return value of the field
+     */
+    String get(int i);
+}
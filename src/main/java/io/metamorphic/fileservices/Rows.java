@@ -0,0 +1,164 @@
+package io.metamorphic.fileservices;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adapters from arrays, lists and record readers to a {@link RowSource}.
+ * The arrays and lists are wrapped, not copied.
+ */
+public final class Rows {
+
+    private Rows() {
+    }
+
+    public static RowSource of(final String[][] rows) {
+        return new RowSource() {
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+
+            @Override
+            public RowView get(int row) {
+                return of(rows[row]);
+            }
+        };
+    }
+
+    public static RowView of(final String[] row) {
+        return new RowView() {
+
+            @Override
+            public int size() {
+                return row.length;
+            }
+
+            @Override
+            public String get(int i) {
+                return row[i];
+            }
+        };
+    }
+
+    public static RowSource of(final List<List<String>> rows) {
+        return new RowSource() {
+
+            @Override
+            public int size() {
+                return rows.size();
+            }
+
+            @Override
+            public RowView get(int row) {
+                final List<String> fields = rows.get(row);
+                return new RowView() {
+
+                    @Override
+                    public int size() {
+                        return fields.size();
+                    }
+
+                    @Override
+                    public String get(int i) {
+                        return fields.get(i);
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Reads up to maxRows records into a single character buffer. A field
+     * becomes a String only when it is asked for.
+     *
+     * @param reader RecordReader
+     * @param maxRows maximum number of records to read
+     * @return RowSource over the records read
+     * @throws IOException
+     */
+    public static RowSource read(RecordReader reader, int maxRows) throws IOException {
+        RecordBuffer buffer = new RecordBuffer();
+        while (buffer.size() < maxRows && reader.next()) {
+            buffer.add(reader);
+        }
+        return buffer;
+    }
+
+    /**
+     * The fields of many records in one buffer, with the start and end of
+     * each field, and the index of the first field of each record.
+     */
+    private static class RecordBuffer implements RowSource {
+
+        char[] chars = new char[4096];
+        int length;
+
+        int[] starts = new int[256];
+        int[] ends = new int[256];
+        int fieldCount;
+
+        // firstFields[r] is the index of the first field of record r
+        int[] firstFields = new int[65];
+        int rowCount;
+
+        void add(RecordReader reader) {
+            int n = reader.getFieldCount();
+            char[] buf = reader.getBuffer();
+            if (fieldCount + n > starts.length) {
+                int capacity = Math.max(starts.length * 2, fieldCount + n);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            for (int i = 0; i < n; i++) {
+                int start = reader.getFieldStart(i);
+                int len = reader.getFieldEnd(i) - start;
+                if (length + len > chars.length) {
+                    chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + len));
+                }
+                System.arraycopy(buf, start, chars, length, len);
+                starts[fieldCount] = length;
+                length += len;
+                ends[fieldCount] = length;
+                fieldCount += 1;
+            }
+            if (rowCount + 2 > firstFields.length) {
+                firstFields = Arrays.copyOf(firstFields, firstFields.length * 2);
+            }
+            rowCount += 1;
+            firstFields[rowCount] = fieldCount;
+        }
+
+        @Override
+        public int size() {
+            return rowCount;
+        }
+
+        @Override
+        public RowView get(int row) {
+            if (row < 0 || row >= rowCount) {
+                throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+            }
+            final int first = firstFields[row];
+            final int n = firstFields[row + 1] - first;
+            return new RowView() {
+
+                @Override
+                public int size() {
+                    return n;
+                }
+
+                @Override
+                public String get(int i) {
+                    if (i < 0 || i >= n) {
+                        throw new IndexOutOfBoundsException("Field " + i + " of " + n);
+                    }
+                    int f = first + i;
+                    return new String(chars, starts[f], ends[f] - starts[f]);
+                }
+            };
+        }
+    }
+}
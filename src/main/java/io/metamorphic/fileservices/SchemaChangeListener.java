@@ -0,0 +1,33 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Receives changes to the schema of a growing file, as new records are
+ * processed by an {@link IncrementalSession}.
+ */
+public interface SchemaChangeListener {
+
+    /**
+     * A record has more fields than any before it.
+     *
+     * @param oldCount previous number of columns
+     * @param newCount new number of columns
+     */
+    void columnCountChanged(int oldCount, int newCount);
+
+    /**
+     * A column's type has widened to accept new values, e.g. from INTEGER
+     * to NUMERIC, or from DATE to STRING when a date doesn't match the
+     * column's format.
+     *
+     * @param column index of the column
+     * @param oldType previous type
+     * @param newType new type
+     */
+    void typeWidened(int column, TypeInfo oldType, TypeInfo newType);
+
+    /**
+     * The file is shorter than the processed offset, so has been replaced,
+     * and will be sniffed and processed again from the start.
+     */
+    void restarted();
+}
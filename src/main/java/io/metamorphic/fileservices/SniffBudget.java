@@ -0,0 +1,71 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Limits on the work done by a single sniff. A limit of zero or less
+ * means unlimited.
+ *
+ * maxChars is the maximum number of characters of input examined. Input
+ * beyond the limit is ignored, cutting at the last line break within it.
+ *
+ * maxMillis is the maximum wall time, checked cooperatively, including
+ * while matching regular expressions over the sample.
+ *
+ * A cancellation token, if set, stops the sniff at its next checkpoint.
+ */
+public class SniffBudget {
+
+    private long maxChars;
+    private long maxMillis;
+    private CancellationToken cancellationToken;
+
+    public SniffBudget() {
+    }
+
+    public SniffBudget(long maxChars, long maxMillis) {
+        this.maxChars = maxChars;
+        this.maxMillis = maxMillis;
+    }
+
+    public long getMaxChars() {
+        return maxChars;
+    }
+
+    public void setMaxChars(long maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public void setMaxMillis(long maxMillis) {
+        this.maxMillis = maxMillis;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    /**
+     * Thrown from a checkpoint to unwind a sniff when the budget runs out.
+     */
+    static class ExhaustedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SniffResult.StopReason reason;
+
+        ExhaustedException(SniffResult.StopReason reason) {
+            super(reason.toString(), null, false, false);
+            this.reason = reason;
+        }
+
+        SniffResult.StopReason getReason() {
+            return reason;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the input to a single sniff, tokenised once and shared by the
+ * detection phases: the line-offset index for the line ending, a
+ * character histogram of the sample, and the sample rows parsed with
+ * the sniffed parameters.
+ *
+ * The sample window is bounded to the first maxSampleLines lines. The
+ * lines are indexed by the line ending given to the constructor or found
+ * by the sniffer, or, when rows are asked for with parameters, by the
+ * parameters' line terminator. Asking for lines before any of these is
+ * known throws an IllegalStateException.
+ *
+ * The input may be any CharSequence, e.g. a CharBuffer decoded from a
+ * memory-mapped file, and is read by index without being copied. Only
+ * the lines and fields asked for are materialised as Strings.
+ *
+ * If a SniffBudget is set, the detection phases call {@link #checkBudget()}
+ * at checkpoints and record the best parameters found so far, so that a
+ * sniff which runs out of budget can still return a best-effort result.
+ *
+ * A SniffContext is not thread-safe.
+ */
+public class SniffContext {
+
+    private static final Log log = LogFactory.getLog(SniffContext.class);
+
+    static final int DEFAULT_MAX_SAMPLE_LINES = 1000;
+
+    // characters in the two-byte UTF8 range are counted in the histogram
+    static final int HISTOGRAM_SIZE = 2048;
+
+    private final CharSequence data;
+    private final int maxSampleLines;
+
+    private String lineEnding;
+    private LineIndex lineIndex;
+    private String[] lines;
+    private int[] histogram;
+
+    private FileParameters rowsParams;
+    private String[][] rows;
+
+    private SniffBudget budget;
+    private long deadline;
+
+    // confidence in the parameters chosen by the last detection phase
+    private double confidence;
+
+    // best parameters found so far, for a sniff that stops early
+    private FileParameters partialResult;
+    private double partialConfidence;
+
+    public SniffContext(CharSequence data) {
+        this(data, null, DEFAULT_MAX_SAMPLE_LINES);
+    }
+
+    public SniffContext(CharSequence data, String lineEnding) {
+        this(data, lineEnding, DEFAULT_MAX_SAMPLE_LINES);
+    }
+
+    public SniffContext(CharSequence data, String lineEnding, int maxSampleLines) {
+        this.data = data;
+        this.maxSampleLines = maxSampleLines;
+        if (lineEnding != null) {
+            setLineEnding(lineEnding, indexLines(data, lineEnding));
+        }
+    }
+
+    public CharSequence getData() {
+        return data;
+    }
+
+    public String getLineEnding() {
+        return lineEnding;
+    }
+
+    void setLineEnding(String lineEnding, LineIndex lineIndex) {
+        this.lineEnding = lineEnding;
+        this.lineIndex = lineIndex;
+        this.lines = null;
+        this.histogram = null;
+        this.rows = null;
+    }
+
+    private LineIndex index() {
+        if (lineIndex == null) {
+            throw new IllegalStateException("Line ending of the sniff context is not known; give it to the " +
+                    "constructor, or sniff or read the lines first");
+        }
+        return lineIndex;
+    }
+
+    /**
+     * @return number of lines in the input
+     */
+    public int getLineCount() {
+        return index().size;
+    }
+
+    /**
+     * @return number of lines in the sample window
+     */
+    public int getSampleLineCount() {
+        return Math.min(index().size, maxSampleLines);
+    }
+
+    public int getLineStart(int i) {
+        return index().starts[i];
+    }
+
+    public int getLineEnd(int i) {
+        return index().ends[i];
+    }
+
+    public String getLine(int i) {
+        if (lines == null) {
+            lines = new String[index().size];
+        }
+        if (lines[i] == null) {
+            lines[i] = data.subSequence(lineIndex.starts[i], lineIndex.ends[i]).toString();
+        }
+        return lines[i];
+    }
+
+    /**
+     * @return all lines in the input
+     */
+    public String[] getLines() {
+        String[] ls = new String[index().size];
+        for (int i = 0; i < ls.length; i++) {
+            ls[i] = getLine(i);
+        }
+        return ls;
+    }
+
+    /**
+     * @return the sample window as a view over the input, without copying
+     */
+    public CharSequence getSample() {
+        int n = getSampleLineCount();
+        CharSequence sample = (n == lineIndex.size) ? data : CharBuffer.wrap(data, 0, lineIndex.ends[n - 1]);
+        return (budget == null) ? sample : new BudgetedCharSequence(sample, this);
+    }
+
+    /**
+     * @return occurrences of each character in the sample window, indexed
+     *         by character, for characters in the two-byte UTF8 range
+     */
+    public int[] getHistogram() {
+        if (histogram == null) {
+            int[] counts = new int[HISTOGRAM_SIZE];
+            int n = getSampleLineCount();
+            for (int r = 0; r < n; r++) {
+                for (int i = lineIndex.starts[r]; i < lineIndex.ends[r]; i++) {
+                    char c = data.charAt(i);
+                    if (c < HISTOGRAM_SIZE) counts[c] += 1;
+                }
+            }
+            histogram = counts;
+        }
+        return histogram;
+    }
+
+    /**
+     * Parses the records in the sample window. The result is cached for
+     * the given parameters. If the line ending isn't known yet, the lines
+     * are indexed by the parameters' line terminator.
+     *
+     * @param params sniffed file parameters
+     * @return rows of fields
+     */
+    public String[][] getRows(FileParameters params) {
+        if (rows != null && params == rowsParams) return rows;
+        if (lineIndex == null) {
+            String ending = RecordReader.lineBreak(params.getLineTerminator());
+            setLineEnding(ending, indexLines(data, ending));
+        }
+        int n = getSampleLineCount();
+        List<String[]> records = new ArrayList<>(n);
+        try (RecordReader reader = new RecordReader(new CharSequenceReader(data), params)) {
+            while (records.size() < n && reader.next()) {
+                checkBudget();
+                records.add(reader.getFields());
+            }
+        } catch (IOException e) {
+            // not thrown by a CharSequenceReader
+            log.warn(e.getMessage(), e);
+        }
+        rows = records.toArray(new String[records.size()][]);
+        rowsParams = params;
+        return rows;
+    }
+
+    public SniffBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Sets the budget for the sniff, starting its clock.
+     *
+     * @param budget SniffBudget
+     */
+    public void setBudget(SniffBudget budget) {
+        this.budget = budget;
+        this.deadline = (budget != null && budget.getMaxMillis() > 0) ?
+                System.nanoTime() + budget.getMaxMillis() * 1000000L : 0;
+    }
+
+    /**
+     * A checkpoint. Does nothing unless a budget is set.
+     *
+     * @throws SniffBudget.ExhaustedException if the sniff has been cancelled or is out of time
+     */
+    void checkBudget() {
+        if (budget == null) return;
+        CancellationToken token = budget.getCancellationToken();
+        if (token != null && token.isCancelled()) {
+            throw new SniffBudget.ExhaustedException(SniffResult.StopReason.CANCELLED);
+        }
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new SniffBudget.ExhaustedException(SniffResult.StopReason.TIME_LIMIT);
+        }
+    }
+
+    double getConfidence() {
+        return confidence;
+    }
+
+    void setConfidence(double confidence) {
+        this.confidence = confidence;
+    }
+
+    FileParameters getPartialResult() {
+        return partialResult;
+    }
+
+    double getPartialConfidence() {
+        return partialConfidence;
+    }
+
+    /**
+     * Records parameters found before the sniff completes, keeping the
+     * most confident.
+     */
+    void offerPartialResult(FileParameters params, double confidence) {
+        if (partialResult == null || confidence >= partialConfidence) {
+            partialResult = params;
+            partialConfidence = confidence;
+        }
+    }
+
+    /**
+     * Finds the lines of the input as split by the given line ending.
+     * Consistent with String.split, trailing empty lines are dropped.
+     *
+     * @param data input
+     * @param lineEnding line ending
+     * @return LineIndex
+     */
+    static LineIndex indexLines(CharSequence data, String lineEnding) {
+        LineIndex index = new LineIndex();
+        int start = 0;
+        int i;
+        while ((i = indexOf(data, lineEnding, start)) >= 0) {
+            index.add(start, i);
+            start = i + lineEnding.length();
+        }
+        if (index.size == 0) {
+            // no match found, so the input is a single line
+            index.add(0, data.length());
+            return index;
+        }
+        index.add(start, data.length());
+        while (index.size > 0 && index.starts[index.size - 1] == index.ends[index.size - 1]) {
+            index.size -= 1;
+        }
+        return index;
+    }
+
+    /**
+     * String.indexOf for any CharSequence.
+     */
+    static int indexOf(CharSequence data, String s, int from) {
+        if (data instanceof String) {
+            return ((String) data).indexOf(s, from);
+        }
+        char first = s.charAt(0);
+        int last = data.length() - s.length();
+        for (int i = from; i <= last; i++) {
+            if (data.charAt(i) != first) continue;
+            int j = 1;
+            while (j < s.length() && data.charAt(i + j) == s.charAt(j)) {
+                j += 1;
+            }
+            if (j == s.length()) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Checks the budget every 64K characters read, so that a regular
+     * expression over the sample can be stopped.
+     */
+    private static class BudgetedCharSequence implements CharSequence {
+
+        private final CharSequence seq;
+        private final SniffContext ctx;
+        private int reads;
+
+        BudgetedCharSequence(CharSequence seq, SniffContext ctx) {
+            this.seq = seq;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public int length() {
+            return seq.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++reads & 0xFFFF) == 0) {
+                ctx.checkBudget();
+            }
+            return seq.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BudgetedCharSequence(seq.subSequence(start, end), ctx);
+        }
+
+        @Override
+        public String toString() {
+            return seq.toString();
+        }
+    }
+
+    /**
+     * Start and end offsets of each line, excluding the line ending.
+     */
+    static class LineIndex {
+
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+        int size;
+
+        void add(int start, int end) {
+            if (size == starts.length) {
+                int[] s = new int[size * 2];
+                int[] e = new int[size * 2];
+                System.arraycopy(starts, 0, s, 0, size);
+                System.arraycopy(ends, 0, e, 0, size);
+                starts = s;
+                ends = e;
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size += 1;
+        }
+
+        int length(int i) {
+            return ends[i] - starts[i];
+        }
+    }
+}
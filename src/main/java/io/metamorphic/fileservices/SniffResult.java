@@ -0,0 +1,49 @@
+package io.metamorphic.fileservices;
+
+/**
+ * The outcome of a budgeted sniff: the best file parameters found, a
+ * confidence score between 0 and 1, and the reason the sniff stopped.
+ *
+ * Confidence is the proportion of sampled rows that agree with the chosen
+ * delimiter, discounted when the delimiter was chosen from several
+ * candidates or when the sniff stopped before finishing. It is 0 when no
+ * delimiter was found, in which case the parameters are null.
+ */
+public class SniffResult {
+
+    public enum StopReason {
+        COMPLETED,
+        CHAR_LIMIT,
+        TIME_LIMIT,
+        CANCELLED
+    }
+
+    private FileParameters fileParameters;
+    private double confidence;
+    private StopReason stopReason;
+
+    public SniffResult(FileParameters fileParameters, double confidence, StopReason stopReason) {
+        this.fileParameters = fileParameters;
+        this.confidence = confidence;
+        this.stopReason = stopReason;
+    }
+
+    public FileParameters getFileParameters() {
+        return fileParameters;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    public StopReason getStopReason() {
+        return stopReason;
+    }
+
+    /**
+     * @return true if the sniff ran to completion over the whole input
+     */
+    public boolean isComplete() {
+        return stopReason == StopReason.COMPLETED;
+    }
+}
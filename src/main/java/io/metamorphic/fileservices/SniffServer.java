@@ -0,0 +1,467 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long-running HTTP service that sniffs files with one warm, shared
+ * FileService, so that repeated sniffs don't pay for JVM start-up and
+ * cold code each time.
+ *
+ * Endpoints:
+ * <ul>
+ *     <li>GET /sniff?path=...&amp;charset=... sniffs the start of a local file</li>
+ *     <li>POST /sniff?charset=... sniffs the request body as a sample</li>
+ *     <li>GET /health</li>
+ * </ul>
+ * The response is JSON with the file parameters, header and column types.
+ *
+ * At most maxConcurrency sniffs run at a time, and up to queueCapacity
+ * more wait their turn in arrival order. Requests beyond that are
+ * refused with a 503 and a Retry-After header. A request whose handler
+ * can't be given a thread, e.g. while slow clients are sending their
+ * samples, is also refused with a 503 by a separate thread, so the thread
+ * accepting connections doesn't wait on a handler. If that thread has a
+ * backlog too, the accepting thread writes the 503 itself. The server binds to the loopback address unless given another,
+ * and only reads files under the root directory if one is set.
+ *
+ * Responses are small, so running with -Dsun.net.httpserver.nodelay=true
+ * avoids delays from Nagle's algorithm. {@link #main(String[])} sets it;
+ * an application embedding the server should set it before starting.
+ */
+public class SniffServer {
+
+    private static final Log log = LogFactory.getLog(SniffServer.class);
+
+    public static final int DEFAULT_PORT = 8765;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    public static final int DEFAULT_SAMPLE_BYTES = 1 << 20;
+
+    public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+    // requests waiting to be refused when every handler thread is busy
+    private static final int OVERLOAD_QUEUE_CAPACITY = 1024;
+
+    // seconds a refused client is asked to wait before retrying
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    // set while a handler is run by the thread that rejected it
+    private static final ThreadLocal<Boolean> refusing = new ThreadLocal<>();
+
+    private final FileServiceImpl fileService;
+    private final InetSocketAddress address;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private int maxConcurrency = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int sampleBytes = DEFAULT_SAMPLE_BYTES;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private File rootDirectory;
+
+    private HttpServer server;
+    private ThreadPoolExecutor executor;
+    private ThreadPoolExecutor overloadExecutor;
+    private Semaphore permits;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public SniffServer(FileServiceImpl fileService, int port) {
+        this(fileService, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public SniffServer(FileServiceImpl fileService, InetSocketAddress address) {
+        this.fileService = fileService;
+        this.address = address;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @param maxConcurrency number of sniffs run at a time
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @param queueCapacity number of requests that may wait for a sniff to finish
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(0, queueCapacity);
+    }
+
+    public int getSampleBytes() {
+        return sampleBytes;
+    }
+
+    /**
+     * @param sampleBytes maximum number of bytes sniffed from a file or request
+     */
+    public void setSampleBytes(int sampleBytes) {
+        this.sampleBytes = Math.max(1, sampleBytes);
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize maximum number of rows typed
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = Math.max(1, sampleSize);
+    }
+
+    public File getRootDirectory() {
+        return rootDirectory;
+    }
+
+    /**
+     * @param rootDirectory directory that requested paths must be under, or
+     *                      null to allow any readable file
+     */
+    public void setRootDirectory(File rootDirectory) {
+        this.rootDirectory = rootDirectory;
+    }
+
+    /**
+     * @return the address the server is bound to, once started
+     */
+    public InetSocketAddress getAddress() {
+        return (server == null) ? address : server.getAddress();
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already started");
+        }
+        permits = new Semaphore(maxConcurrency, true);
+        // handlers run on overload threads only refuse the request
+        overloadExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(OVERLOAD_QUEUE_CAPACITY), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new OverloadThread(r);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        // refuse from this thread, which only writes a 503
+                        log.warn("Sniff server overloaded; refusing a request on the accepting thread");
+                        refusing.set(Boolean.TRUE);
+                        try {
+                            r.run();
+                        } finally {
+                            refusing.remove();
+                        }
+                    }
+                });
+        // a thread per running or waiting request; once all are busy, the
+        // request is handed to the overload thread, which refuses it
+        executor = new ThreadPoolExecutor(0, maxConcurrency + queueCapacity, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        overloadExecutor.execute(r);
+                    }
+                });
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/sniff", new SniffHandler());
+        server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (isRefusing()) {
+                    refuse(exchange);
+                    return;
+                }
+                Map<String, Object> body = new LinkedHashMap<>();
+                body.put("status", "ok");
+                body.put("running", maxConcurrency - permits.availablePermits());
+                body.put("waiting", waiting.get());
+                respond(exchange, 200, body);
+            }
+        });
+        server.start();
+        if (log.isInfoEnabled()) {
+            log.info("Sniff server listening on " + server.getAddress());
+        }
+    }
+
+    /**
+     * Stops accepting requests, and waits up to the given delay for
+     * requests in progress to finish.
+     *
+     * @param delaySeconds maximum time to wait
+     */
+    public synchronized void stop(int delaySeconds) {
+        if (server == null) return;
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+        overloadExecutor.shutdownNow();
+        server = null;
+        executor = null;
+        overloadExecutor = null;
+    }
+
+    /**
+     * Runs the handlers of requests that are refused because every handler
+     * thread is busy.
+     */
+    private static class OverloadThread extends Thread {
+
+        OverloadThread(Runnable r) {
+            super(r, "sniff-server-overload");
+        }
+    }
+
+    private class SniffHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (isRefusing()) {
+                    refuse(exchange);
+                    return;
+                }
+                String method = exchange.getRequestMethod();
+                if (!"GET".equals(method) && !"POST".equals(method)) {
+                    error(exchange, 405, "Method not allowed: " + method);
+                    return;
+                }
+                long start = System.nanoTime();
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                Charset charset = Charset.forName(query.containsKey("charset") ? query.get("charset") : "UTF-8");
+                byte[] sample = null;
+                if ("POST".equals(method)) {
+                    // read before taking a permit, so a slow client doesn't hold one
+                    sample = readSample(exchange.getRequestBody(), true);
+                }
+                if (!acquire()) {
+                    refuse(exchange);
+                    return;
+                }
+                try {
+                    if (sample == null) {
+                        String path = query.get("path");
+                        if (path == null) {
+                            error(exchange, 400, "Missing path");
+                            return;
+                        }
+                        File file = new File(path);
+                        if (!isAllowed(file)) {
+                            error(exchange, 403, "Path not allowed: " + path);
+                            return;
+                        }
+                        if (!file.isFile()) {
+                            error(exchange, 404, "No such file: " + path);
+                            return;
+                        }
+                        try (InputStream in = new FileInputStream(file)) {
+                            sample = readSample(in, false);
+                        }
+                    }
+                    Map<String, Object> body = sniff(sample, charset);
+                    if (body == null) {
+                        error(exchange, 422, "Could not determine file parameters");
+                        return;
+                    }
+                    body.put("elapsedMillis", (System.nanoTime() - start) / 1000000);
+                    respond(exchange, 200, body);
+                } finally {
+                    permits.release();
+                }
+            } catch (IllegalArgumentException e) {
+                // includes an unknown charset
+                error(exchange, 400, e.getMessage());
+            } catch (RuntimeException e) {
+                log.error(e.getMessage(), e);
+                error(exchange, 500, e.toString());
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    /**
+     * Waits for a permit to sniff, unless the queue is full.
+     */
+    private boolean acquire() {
+        if (permits.tryAcquire()) return true;
+        if (waiting.incrementAndGet() > queueCapacity) {
+            waiting.decrementAndGet();
+            return false;
+        }
+        try {
+            permits.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private boolean isAllowed(File file) throws IOException {
+        if (rootDirectory == null) return true;
+        String root = rootDirectory.getCanonicalPath() + File.separator;
+        return file.getCanonicalPath().startsWith(root);
+    }
+
+    /**
+     * Reads up to the sample size, dropping a last line that may be cut.
+     */
+    private byte[] readSample(InputStream in, boolean drain) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(sampleBytes, 65536));
+        byte[] buf = new byte[8192];
+        int n;
+        boolean truncated = false;
+        while ((n = in.read(buf)) >= 0) {
+            int k = Math.min(n, sampleBytes - out.size());
+            out.write(buf, 0, k);
+            if (out.size() == sampleBytes) {
+                truncated = (k < n) || in.read() >= 0;
+                break;
+            }
+        }
+        if (drain && truncated) {
+            // read the rest of the request, so the connection can be reused
+            while (in.read(buf) >= 0) {
+                // discard
+            }
+        }
+        byte[] bytes = out.toByteArray();
+        if (!truncated) return bytes;
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n' && bytes[end - 1] != '\r') {
+            end -= 1;
+        }
+        return (end == 0) ? bytes : Arrays.copyOf(bytes, end);
+    }
+
+    private Map<String, Object> sniff(byte[] sample, Charset charset) {
+        SniffContext ctx = new SniffContext(new String(sample, charset));
+        FileParameters params = fileService.sniff(ctx);
+        if (params == null) return null;
+        TypesContainer types = fileService.getTypes(ctx, params, sampleSize);
+        String[] header = fileService.getHeader(Rows.of(ctx.getRows(params)), types.types, params.isHeader());
+        List<Map<String, Object>> columns = new ArrayList<>(types.types.length);
+        for (int i = 0; i < types.types.length; i++) {
+            Map<String, Object> column = new LinkedHashMap<>();
+            column.put("name", (i < header.length) ? header[i] : null);
+            column.put("type", types.types[i].getType().name());
+            column.put("sqlType", types.sqlTypes[i].name());
+            Object format = types.types[i].getValue("format");
+            column.put("format", (format == null) ? null : format.toString());
+            columns.add(column);
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("parameters", params.toMap());
+        body.put("columns", columns);
+        return body;
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int i = pair.indexOf('=');
+            if (i <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, i), "UTF-8"), URLDecoder.decode(pair.substring(i + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * @return whether the current handler should only refuse its request
+     */
+    private static boolean isRefusing() {
+        return Thread.currentThread() instanceof OverloadThread || refusing.get() != null;
+    }
+
+    /**
+     * Refuses a request with a 503 and closes the exchange.
+     */
+    private void refuse(HttpExchange exchange) throws IOException {
+        try {
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+            error(exchange, 503, "Too many requests");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void error(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", message);
+        respond(exchange, status, body);
+    }
+
+    private void respond(HttpExchange exchange, int status, Map<String, Object> body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Runs a server until the JVM is stopped.
+     *
+     * @param args optional port, and optional root directory
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        final SniffServer server = new SniffServer(new FileServiceImpl(), port);
+        if (args.length > 1) {
+            server.setRootDirectory(new File(args[1]));
+        }
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            // small responses are otherwise held back by Nagle's algorithm
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(1);
+            }
+        });
+    }
+}
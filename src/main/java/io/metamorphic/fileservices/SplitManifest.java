@@ -0,0 +1,134 @@
+package io.metamorphic.fileservices;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The byte ranges into which a delimited file was split, with the file
+ * parameters needed to read them. A manifest can be written as JSON and
+ * sent to the workers that read the splits.
+ */
+public class SplitManifest {
+
+    private final String path;
+    private final long length;
+    private final String charset;
+    private final FileParameters params;
+    private final String[] header;
+    private final long recordCount;
+    private final List<FileSplit> splits;
+
+    SplitManifest(String path, long length, String charset, FileParameters params, String[] header,
+                  long recordCount, List<FileSplit> splits) {
+        this.path = path;
+        this.length = length;
+        this.charset = charset;
+        this.params = params;
+        this.header = header;
+        this.recordCount = recordCount;
+        this.splits = splits;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return length of the file when it was planned
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public Charset getCharset() {
+        return Charset.forName(charset);
+    }
+
+    public FileParameters getFileParameters() {
+        return params;
+    }
+
+    /**
+     * @return fields of the header record, or null if the file has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return number of records in the file, not counting the header
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public List<FileSplit> getSplits() {
+        return Collections.unmodifiableList(splits);
+    }
+
+    /**
+     * Opens a reader over the records of a split.
+     *
+     * @param split FileSplit from this manifest
+     * @return RecordReader positioned before the first record of the split
+     * @throws IOException
+     */
+    public RecordReader openReader(FileSplit split) throws IOException {
+        return SplitPlanner.openReader(new File(path), split, getCharset(), params);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("path", path);
+        map.put("length", length);
+        map.put("charset", charset);
+        map.put("parameters", params.toMap());
+        map.put("header", header);
+        map.put("recordCount", recordCount);
+        List<Map<String, Object>> list = new ArrayList<>(splits.size());
+        for (FileSplit split : splits) {
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("start", split.getStart());
+            s.put("end", split.getEnd());
+            s.put("firstRecord", split.getFirstRecord());
+            s.put("recordCount", split.getRecordCount());
+            s.put("firstLine", split.getFirstLine());
+            list.add(s);
+        }
+        map.put("splits", list);
+        new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(out, map);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static SplitManifest readFrom(InputStream in) throws IOException {
+        Map<String, Object> map = new ObjectMapper().readValue(in, Map.class);
+        List<Map<String, Object>> list = (List<Map<String, Object>>) map.get("splits");
+        List<FileSplit> splits = new ArrayList<>(list.size());
+        for (Map<String, Object> s : list) {
+            splits.add(new FileSplit(splits.size(),
+                    ((Number) s.get("start")).longValue(),
+                    ((Number) s.get("end")).longValue(),
+                    ((Number) s.get("firstRecord")).longValue(),
+                    ((Number) s.get("recordCount")).longValue(),
+                    ((Number) s.get("firstLine")).longValue()));
+        }
+        List<String> header = (List<String>) map.get("header");
+        return new SplitManifest((String) map.get("path"),
+                ((Number) map.get("length")).longValue(),
+                (String) map.get("charset"),
+                FileParameters.fromMap((Map<String, Object>) map.get("parameters")),
+                (header == null) ? null : header.toArray(new String[header.size()]),
+                ((Number) map.get("recordCount")).longValue(),
+                splits);
+    }
+}
@@ -0,0 +1,153 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a delimited file into byte ranges that start on record
+ * boundaries, so that workers can each read a range without scanning the
+ * file from the start.
+ *
+ * Planning is a single quote-aware pass over the bytes by a RecordScanner,
+ * so a line break inside a quoted field is not taken as a boundary. As
+ * every record boundary is seen, the ordinal of the first record of each
+ * split is exact.
+ *
+ * The file must be in an encoding in which the delimiter, quote and line
+ * breaks are single ASCII bytes, e.g. UTF-8 or ISO-8859-1.
+ */
+public class SplitPlanner {
+
+    private static final Log log = LogFactory.getLog(SplitPlanner.class);
+
+    private final FileParameters params;
+    private final Charset charset;
+    private final RecordScanner scanner;
+
+    public SplitPlanner(FileParameters params, Charset charset) {
+        this.params = params;
+        this.charset = charset;
+        this.scanner = new RecordScanner(params, charset);
+    }
+
+    /**
+     * Plans the splits of a file.
+     *
+     * @param file delimited file
+     * @param n number of splits wanted; fewer are returned if the file has
+     *          fewer records
+     * @return SplitManifest
+     * @throws IOException
+     */
+    public SplitManifest plan(File file, int n) throws IOException {
+        n = Math.max(1, n);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            Scan scan = new Scan(size, n, params.isHeader());
+            scanner.scan(channel, 0, size, 1, scan);
+            String[] header = null;
+            if (params.isHeader() && scan.dataStart > 0) {
+                try (RecordReader reader = openReader(channel, 0, scan.dataStart)) {
+                    if (reader.next()) {
+                        header = reader.getFields();
+                    }
+                }
+            }
+            List<FileSplit> splits = new ArrayList<>(scan.starts.size());
+            for (int i = 0; i < scan.starts.size(); i++) {
+                long start = scan.starts.get(i);
+                long end = (i + 1 < scan.starts.size()) ? scan.starts.get(i + 1) : size;
+                long firstRecord = scan.firstRecords.get(i);
+                long nextRecord = (i + 1 < scan.starts.size()) ? scan.firstRecords.get(i + 1) : scan.records;
+                splits.add(new FileSplit(i, start, end, firstRecord, nextRecord - firstRecord, scan.firstLines.get(i)));
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Planned " + splits.size() + " splits of " + scan.records + " records in " + file);
+            }
+            return new SplitManifest(file.getAbsolutePath(), size, charset.name(), params, header,
+                    scan.records, splits);
+        }
+    }
+
+    /**
+     * Opens a reader over the records of a split.
+     *
+     * @param file delimited file
+     * @param split FileSplit
+     * @param charset encoding of the file
+     * @param params file parameters
+     * @return RecordReader positioned before the first record of the split
+     * @throws IOException
+     */
+    public static RecordReader openReader(File file, FileSplit split, Charset charset, FileParameters params)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        // closing the reader closes the file
+        RangeInputStream in = new RangeInputStream(raf.getChannel(), split.getStart(), split.getEnd(), raf);
+        return new RecordReader(new InputStreamReader(in, charset), params);
+    }
+
+    private RecordReader openReader(FileChannel channel, long start, long end) {
+        return new RecordReader(new InputStreamReader(new RangeInputStream(channel, start, end), charset), params);
+    }
+
+    /**
+     * Collects the split points from the record boundaries.
+     */
+    private static class Scan implements RecordScanner.Listener {
+
+        final long size;
+        final int n;
+
+        boolean header;
+        long records;
+        long dataStart;
+        long nextTarget;
+
+        final List<Long> starts = new ArrayList<>();
+        final List<Long> firstRecords = new ArrayList<>();
+        final List<Long> firstLines = new ArrayList<>();
+
+        Scan(long size, int n, boolean header) {
+            this.size = size;
+            this.n = n;
+            this.header = header;
+            if (!header) {
+                startSplit(0, 1);
+            }
+        }
+
+        @Override
+        public void endRecord(long offset, long line, boolean terminated) {
+            if (header) {
+                header = false;
+                dataStart = offset;
+                startSplit(offset, line);
+                return;
+            }
+            records += 1;
+            if (offset >= nextTarget && offset < size) {
+                startSplit(offset, line);
+            }
+        }
+
+        private void startSplit(long offset, long line) {
+            starts.add(offset);
+            firstRecords.add(records);
+            firstLines.add(line);
+            // aim for splits of equal size
+            int k = starts.size();
+            nextTarget = (k < n) ? dataStart + (size - dataStart) * k / n : Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package io.metamorphic.fileservices;
+
+import java.util.Arrays;
+
+/**
+ * NVARCHAR or TEXT column. The characters of each distinct value are held
+ * once in an arena, and each row holds the code of its value.
+ *
+ * Values are deduplicated until the dictionary holds more than
+ * maxDictionarySize entries, after which the column is treated as high
+ * cardinality and each new value is appended to the arena as it comes.
+ * Either way, {@link #getCode(int)} indexes {@link #getOffsets()}.
+ */
+public class StringVector extends ColumnVector {
+
+    static final int DEFAULT_MAX_DICTIONARY_SIZE = 65536;
+
+    private final DataTypes type;
+
+    private final int[] codes;
+
+    private char[] arena;
+
+    // entry i spans arena[offsets[i]] to arena[offsets[i + 1]]
+    private int[] offsets;
+    private int entryCount;
+
+    private int maxDictionarySize = DEFAULT_MAX_DICTIONARY_SIZE;
+
+    private boolean dictionaryEncoded = true;
+
+    // open addressing table of entry codes, or null once deduplication stops
+    private int[] table;
+    private int[] hashes;
+
+    StringVector(DataTypes type, int capacity) {
+        super(capacity);
+        this.type = type;
+        this.codes = new int[capacity];
+        this.arena = new char[Math.max(16, capacity * 8)];
+        this.offsets = new int[Math.max(16, Math.min(capacity, 1024)) + 1];
+        this.table = new int[64];
+        Arrays.fill(table, -1);
+        this.hashes = new int[offsets.length];
+    }
+
+    @Override
+    public DataTypes getType() {
+        return type;
+    }
+
+    public int getMaxDictionarySize() {
+        return maxDictionarySize;
+    }
+
+    public void setMaxDictionarySize(int maxDictionarySize) {
+        this.maxDictionarySize = maxDictionarySize;
+    }
+
+    /**
+     * @return true if every row with the same value shares an entry
+     */
+    public boolean isDictionaryEncoded() {
+        return dictionaryEncoded;
+    }
+
+    @Override
+    void append(char[] buf, int start, int end) {
+        if (start == end) {
+            appendNull();
+            return;
+        }
+        int code;
+        if (table != null) {
+            int hash = hash(buf, start, end);
+            int mask = table.length - 1;
+            int slot = hash & mask;
+            while ((code = table[slot]) >= 0) {
+                if (hashes[code] == hash && equalsEntry(code, buf, start, end)) break;
+                slot = (slot + 1) & mask;
+            }
+            if (code < 0) {
+                code = addEntry(buf, start, end);
+                if (entryCount > maxDictionarySize) {
+                    dictionaryEncoded = false;
+                    table = null;
+                    hashes = null;
+                } else {
+                    hashes[code] = hash;
+                    table[slot] = code;
+                    if (entryCount * 2 > table.length) {
+                        rehash();
+                    }
+                }
+            }
+        } else {
+            code = addEntry(buf, start, end);
+        }
+        codes[size] = code;
+        setValid(size);
+        size += 1;
+    }
+
+    /**
+     * Replaces the entries, e.g. with entries read from a cache. Values
+     * appended afterwards are not deduplicated.
+     */
+    void load(char[] arena, int[] offsets, int entryCount, boolean dictionaryEncoded) {
+        this.arena = arena;
+        this.offsets = offsets;
+        this.entryCount = entryCount;
+        this.dictionaryEncoded = dictionaryEncoded;
+        this.table = null;
+        this.hashes = null;
+    }
+
+    @Override
+    void reset() {
+        super.reset();
+        entryCount = 0;
+        dictionaryEncoded = true;
+        if (table == null) {
+            table = new int[64];
+            hashes = new int[offsets.length];
+        }
+        Arrays.fill(table, -1);
+    }
+
+    private int addEntry(char[] buf, int start, int end) {
+        int len = end - start;
+        int offset = offsets[entryCount];
+        if (offset + len > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, offset + len));
+        }
+        System.arraycopy(buf, start, arena, offset, len);
+        if (entryCount + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            if (hashes != null) {
+                hashes = Arrays.copyOf(hashes, offsets.length);
+            }
+        }
+        offsets[entryCount + 1] = offset + len;
+        return entryCount++;
+    }
+
+    private boolean equalsEntry(int code, char[] buf, int start, int end) {
+        int offset = offsets[code];
+        if (offsets[code + 1] - offset != end - start) return false;
+        for (int i = start; i < end; i++) {
+            if (arena[offset++] != buf[i]) return false;
+        }
+        return true;
+    }
+
+    private void rehash() {
+        int[] t = new int[table.length * 2];
+        Arrays.fill(t, -1);
+        int mask = t.length - 1;
+        for (int code = 0; code < entryCount; code++) {
+            int slot = hashes[code] & mask;
+            while (t[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            t[slot] = code;
+        }
+        table = t;
+    }
+
+    private static int hash(char[] buf, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buf[i];
+        }
+        // spread the bits, as the table is indexed by the low bits
+        return h ^ (h >>> 16);
+    }
+
+    public String getString(int row) {
+        if (isNull(row)) return null;
+        return getEntry(codes[row]);
+    }
+
+    /**
+     * @return the code of the value in the given row
+     */
+    public int getCode(int row) {
+        return codes[row];
+    }
+
+    /**
+     * @return number of entries in the arena
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public String getEntry(int code) {
+        return new String(arena, offsets[code], offsets[code + 1] - offsets[code]);
+    }
+
+    /**
+     * @return the arena holding the characters of the entries
+     */
+    public char[] getArena() {
+        return arena;
+    }
+
+    /**
+     * @return start offsets of the entries in the arena, followed by the end
+     *         of the last entry
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * @return the backing array of codes
+     */
+    public int[] getCodes() {
+        return codes;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return getString(row);
+    }
+}
@@ -0,0 +1,103 @@
+package io.metamorphic.fileservices;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * TIMESTAMP column held as milliseconds since the epoch in a long[].
+ *
+ * Values are parsed strictly with the column's locked date format, in the
+ * default time zone unless the format includes one. If no format was
+ * locked, each value is parsed with the first of the date parser's formats
+ * that matches, e.g. those set with FileService.setDateFormats.
+ */
+public class TimestampVector extends ColumnVector {
+
+    private final long[] values;
+
+    private final String format;
+
+    private SimpleDateFormat dateFormat;
+    private ITypeParser<ParsedDate> dateParser;
+    private final ParsePosition pos = new ParsePosition(0);
+
+    /**
+     * @param capacity maximum number of rows
+     * @param format locked date format, or null
+     * @param dateParser parser of values if there is no format, or null
+     *                   for the default formats
+     */
+    TimestampVector(int capacity, String format, ITypeParser<ParsedDate> dateParser) {
+        super(capacity);
+        this.values = new long[capacity];
+        this.format = format;
+        if (format != null) {
+            dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+        } else {
+            this.dateParser = (dateParser == null) ? new DateParser() : dateParser;
+        }
+    }
+
+    @Override
+    public DataTypes getType() {
+        return DataTypes.TIMESTAMP;
+    }
+
+    /**
+     * @return the date format used to parse values, or null
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    @Override
+    void append(char[] buf, int start, int end) {
+        while (start < end && Character.isWhitespace(buf[start])) start++;
+        while (end > start && Character.isWhitespace(buf[end - 1])) end--;
+        if (start == end) {
+            appendNull();
+            return;
+        }
+        String v = new String(buf, start, end - start);
+        Date dt;
+        if (dateFormat != null) {
+            pos.setIndex(0);
+            pos.setErrorIndex(-1);
+            dt = dateFormat.parse(v, pos);
+            if (pos.getIndex() != v.length()) {
+                dt = null;
+            }
+        } else {
+            ParsedDate parsed = dateParser.parse(v);
+            dt = (parsed == null) ? null : parsed.getDate();
+        }
+        if (dt == null) {
+            appendConversionError(buf, start, end);
+            return;
+        }
+        values[size] = dt.getTime();
+        setValid(size);
+        size += 1;
+    }
+
+    /**
+     * @return milliseconds since the epoch
+     */
+    public long getMillis(int row) {
+        return values[row];
+    }
+
+    /**
+     * @return the backing array
+     */
+    public long[] getMillis() {
+        return values;
+    }
+
+    @Override
+    public Object getObject(int row) {
+        return isNull(row) ? null : new Date(values[row]);
+    }
+}
@@ -14,6 +14,11 @@ public class TypeParser {
         registry.put(key, typeParser);
     }
 
+    @SuppressWarnings("unchecked")
+    public <T> ITypeParser<T> getTypeParser(Class<T> type) {
+        return (ITypeParser<T>)registry.get(type);
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T parse(String value, Class<T> type) {
         ITypeParser<T> typeParser = (ITypeParser<T>)registry.get(type);
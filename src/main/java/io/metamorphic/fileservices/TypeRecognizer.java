@@ -0,0 +1,50 @@
+package io.metamorphic.fileservices;
+
+/**
+ * Adapts an {@link ITypeParser} to a value type so that it can take part
+ * in a column's recognition pipeline (see {@link ColumnRecognizer}).
+ * A value is recognised when the parser returns a non-null result.
+ */
+public class TypeRecognizer<T> {
+
+    private final ValueTypes type;
+    private final ITypeParser<T> parser;
+
+    public TypeRecognizer(ValueTypes type, ITypeParser<T> parser) {
+        this.type = type;
+        this.parser = parser;
+    }
+
+    public ValueTypes getType() {
+        return type;
+    }
+
+    public ITypeParser<T> getParser() {
+        return parser;
+    }
+
+    /**
+     * @param value trimmed, non-empty value
+     * @return the recognised type, or null if the parser rejects the value
+     */
+    public ValueTypes recognize(String value) {
+        T parsed = parser.parse(value);
+        return (parsed == null) ? null : typeOf(parsed);
+    }
+
+    /**
+     * Allows a recognizer to refine the type based on the parsed value,
+     * e.g. an integer of 0 or 1 is a BIT.
+     */
+    protected ValueTypes typeOf(T parsed) {
+        return type;
+    }
+
+    /**
+     * Extra information about the last recognised value to be recorded
+     * in the column's {@link TypeInfo}, as alternating keys and values.
+     */
+    public Object[] getInfo() {
+        return null;
+    }
+}
@@ -0,0 +1,90 @@
+package io.metamorphic.fileservices;
+
+/**
+ * The outcome of validating a file against its inferred column types:
+ * the number of records read and rejected, and the number of values in
+ * each column that don't conform to the column's type.
+ */
+public class ValidationReport {
+
+    private final String[] header;
+    private final long[] failures;
+    private long recordCount;
+    private long rejectCount;
+    private long fieldCountErrors;
+
+    ValidationReport(String[] header, int columnCount) {
+        this.header = header;
+        this.failures = new long[columnCount];
+    }
+
+    /**
+     * @return column names, or null if the file has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return number of records validated, not counting the header
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return number of records with at least one failure
+     */
+    public long getRejectCount() {
+        return rejectCount;
+    }
+
+    /**
+     * @return number of records with a different number of fields to the
+     *         number of columns
+     */
+    public long getFieldCountErrors() {
+        return fieldCountErrors;
+    }
+
+    /**
+     * @param column index of the column
+     * @return number of values in the column that failed to convert
+     */
+    public long getFailures(int column) {
+        return failures[column];
+    }
+
+    public long[] getFailures() {
+        return failures;
+    }
+
+    public boolean isValid() {
+        return rejectCount == 0;
+    }
+
+    void add(long records, long rejects, long fieldCountErrors, long[] failures) {
+        this.recordCount += records;
+        this.rejectCount += rejects;
+        this.fieldCountErrors += fieldCountErrors;
+        for (int i = 0; i < failures.length; i++) {
+            this.failures[i] += failures[i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(recordCount).append(" records, ").append(rejectCount).append(" rejected");
+        if (fieldCountErrors > 0) {
+            sb.append(", ").append(fieldCountErrors).append(" with the wrong number of fields");
+        }
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] > 0) {
+                sb.append(", ").append((header != null && i < header.length) ? header[i] : "column " + (i + 1))
+                        .append(": ").append(failures[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
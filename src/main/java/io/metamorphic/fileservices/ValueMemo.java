@@ -0,0 +1,222 @@
+package io.metamorphic.fileservices;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the classification of recently seen values of a column, so
+ * that a repeated value, such as a status code or a flag, isn't parsed
+ * again.
+ *
+ * The memo is bounded by a number of entries and a number of characters
+ * of keys, evicting the least recently used entries. Hits are counted
+ * over windows of lookups, and if a window's hit rate is below the
+ * minimum, e.g. for a column of ids, the memo clears itself and stays off.
+ *
+ * Values may be looked up by a range of a character buffer without
+ * creating a String. A ValueMemo is not thread-safe.
+ */
+public class ValueMemo<V> {
+
+    public static final int DEFAULT_MAX_CHARS = 1 << 16;
+
+    public static final int DEFAULT_WINDOW = 1024;
+
+    public static final double DEFAULT_MIN_HIT_RATE = 0.25;
+
+    private final int maxEntries;
+    private final int maxChars;
+
+    private final LinkedHashMap<Key, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // reused to look up values without creating a key
+    private final Key probe = new Key();
+
+    private int window = DEFAULT_WINDOW;
+    private double minHitRate = DEFAULT_MIN_HIT_RATE;
+
+    private boolean enabled = true;
+    private int chars;
+    private int windowLookups;
+    private int windowHits;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries maximum number of values remembered
+     * @param maxChars maximum total length of the values remembered
+     */
+    public ValueMemo(int maxEntries, int maxChars) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxChars = Math.max(1, maxChars);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @param window number of lookups over which the hit rate is measured
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public double getMinHitRate() {
+        return minHitRate;
+    }
+
+    /**
+     * @param minHitRate fraction of lookups in a window that must hit for
+     *                   the memo to stay on
+     */
+    public void setMinHitRate(double minHitRate) {
+        this.minHitRate = minHitRate;
+    }
+
+    /**
+     * @param value value as classified
+     * @return the remembered classification, or null
+     */
+    public V get(String value) {
+        if (!enabled) return null;
+        return lookup(probe.set(value));
+    }
+
+    /**
+     * @return the remembered classification of the characters from start
+     *         to end, or null
+     */
+    public V get(char[] buf, int start, int end) {
+        if (!enabled) return null;
+        return lookup(probe.set(buf, start, end));
+    }
+
+    private V lookup(Key key) {
+        V value = entries.get(key);
+        probe.clear();
+        if (value != null) {
+            hits += 1;
+            windowHits += 1;
+        } else {
+            misses += 1;
+        }
+        if (++windowLookups == window) {
+            if (windowHits < minHitRate * window) {
+                disable();
+            }
+            windowLookups = 0;
+            windowHits = 0;
+        }
+        return value;
+    }
+
+    /**
+     * Remembers the classification of a value, evicting the least
+     * recently used values if the memo is full.
+     */
+    public void put(String value, V classification) {
+        if (!enabled || value.length() > maxChars) return;
+        if (entries.put(new Key().set(value), classification) == null) {
+            chars += value.length();
+        }
+        if (entries.size() > maxEntries || chars > maxChars) {
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext() && (entries.size() > maxEntries || chars > maxChars)) {
+                chars -= it.next().length();
+                it.remove();
+            }
+        }
+    }
+
+    private void disable() {
+        enabled = false;
+        entries.clear();
+        chars = 0;
+    }
+
+    /**
+     * @return false once the memo has turned itself off
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Characters of a String, or of a range of a buffer, comparing equal
+     * if the characters are the same. The hash is that of the String.
+     */
+    private static final class Key {
+
+        String string;
+        char[] buf;
+        int start;
+        int end;
+        int hash;
+
+        Key set(String value) {
+            string = value;
+            buf = null;
+            start = 0;
+            end = value.length();
+            hash = value.hashCode();
+            return this;
+        }
+
+        Key set(char[] buf, int start, int end) {
+            this.string = null;
+            this.buf = buf;
+            this.start = start;
+            this.end = end;
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + buf[i];
+            }
+            hash = h;
+            return this;
+        }
+
+        void clear() {
+            string = null;
+            buf = null;
+        }
+
+        int length() {
+            return end - start;
+        }
+
+        char charAt(int i) {
+            return (string != null) ? string.charAt(start + i) : buf[start + i];
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            int n = length();
+            if (hash != other.hash || n != other.length()) return false;
+            for (int i = 0; i < n; i++) {
+                if (charAt(i) != other.charAt(i)) return false;
+            }
+            return true;
+        }
+    }
+}
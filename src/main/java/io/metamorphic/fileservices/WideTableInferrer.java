@@ -0,0 +1,237 @@
+package io.metamorphic.fileservices;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Sniffs and types files with thousands of columns.
+ *
+ * The dialect is settled on the leading columns only: the lines of the
+ * sample are cut after a number of occurrences of the likeliest delimiter
+ * in the first line, and the narrowed sample is sniffed as usual. If the
+ * narrowed sniff doesn't confirm that delimiter, the whole sample is
+ * sniffed instead. Sniffing therefore costs about the same whatever the
+ * width of the file.
+ *
+ * All columns are then typed from the sample rows, held once in a shared
+ * buffer, in blocks of columns by a pool of workers. Each worker keeps
+ * the state of its own columns, and reads the rows a column at a time.
+ */
+public class WideTableInferrer {
+
+    private static final Log log = LogFactory.getLog(WideTableInferrer.class);
+
+    public static final int DEFAULT_SNIFF_COLUMNS = 100;
+
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+
+    private static final char[] candidateDelimiters = new char[] { ',', '\t', ';', '|', ' ' };
+
+    private final FileServiceImpl fileService;
+
+    private int sniffColumns = DEFAULT_SNIFF_COLUMNS;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    public WideTableInferrer(FileServiceImpl fileService) {
+        this.fileService = fileService;
+    }
+
+    public int getSniffColumns() {
+        return sniffColumns;
+    }
+
+    /**
+     * @param sniffColumns number of leading columns used to settle the dialect
+     */
+    public void setSniffColumns(int sniffColumns) {
+        this.sniffColumns = Math.max(2, sniffColumns);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize number of columns typed by a worker at a time
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of worker threads
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sniffs the file parameters from the leading columns of the sample.
+     *
+     * @param data File data
+     * @return FileParameters, or null if the delimiter could not be determined
+     */
+    public FileParameters sniff(CharSequence data) {
+        SniffContext ctx = new SniffContext(data);
+        fileService.readLines(ctx);
+        String lineEnding = ctx.getLineEnding();
+        if (lineEnding == null || ctx.getLineCount() == 0) {
+            return fileService.sniff(ctx);
+        }
+        char delimiter = likeliestDelimiter(data, ctx.getLineStart(0), ctx.getLineEnd(0));
+        if (delimiter != 0) {
+            CharSequence narrowed = narrow(ctx, delimiter, lineEnding);
+            FileParameters params = fileService.sniff(new SniffContext(narrowed, lineEnding));
+            if (params != null && String.valueOf(delimiter).equals(params.getColumnDelimiter())) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Settled the dialect on " + narrowed.length() + " of " + data.length() + " characters");
+                }
+                return params;
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Narrowed sniff didn't confirm the delimiter; sniffing the whole sample");
+        }
+        return fileService.sniff(ctx);
+    }
+
+    /**
+     * @return the most frequent candidate delimiter in the line, or 0 if
+     *         there are none
+     */
+    private static char likeliestDelimiter(CharSequence data, int start, int end) {
+        int[] counts = new int[candidateDelimiters.length];
+        for (int i = start; i < end; i++) {
+            char c = data.charAt(i);
+            for (int j = 0; j < candidateDelimiters.length; j++) {
+                if (c == candidateDelimiters[j]) {
+                    counts[j] += 1;
+                    break;
+                }
+            }
+        }
+        int best = -1;
+        for (int j = 0; j < counts.length; j++) {
+            if (counts[j] > 0 && (best < 0 || counts[j] > counts[best])) {
+                best = j;
+            }
+        }
+        return (best < 0) ? 0 : candidateDelimiters[best];
+    }
+
+    /**
+     * Cuts each line of the sample window before the occurrence of the
+     * delimiter that would start column sniffColumns + 1.
+     */
+    private CharSequence narrow(SniffContext ctx, char delimiter, String lineEnding) {
+        StringBuilder sb = new StringBuilder();
+        int n = ctx.getSampleLineCount();
+        CharSequence data = ctx.getData();
+        for (int r = 0; r < n; r++) {
+            int start = ctx.getLineStart(r);
+            int end = ctx.getLineEnd(r);
+            int seen = 0;
+            int i = start;
+            while (i < end) {
+                if (data.charAt(i) == delimiter && ++seen == sniffColumns) break;
+                i += 1;
+            }
+            sb.append(data, start, i).append(lineEnding);
+        }
+        return sb;
+    }
+
+    /**
+     * Reads the sample rows and types all of their columns.
+     *
+     * @param data File data
+     * @param params sniffed file parameters
+     * @param sampleSize maximum number of rows to sample, including any header
+     * @return TypesContainer
+     * @throws IOException
+     */
+    public TypesContainer getTypes(CharSequence data, FileParameters params, int sampleSize) throws IOException {
+        try (RecordReader reader = new RecordReader(new CharSequenceReader(data), params)) {
+            return getTypes(Rows.read(reader, sampleSize), params.isHeader());
+        }
+    }
+
+    /**
+     * Types the columns of sample rows in blocks, in parallel. The number
+     * of columns is the widest row.
+     *
+     * @param rows sample rows
+     * @param hasHeader whether the first row is a header
+     * @return TypesContainer
+     */
+    public TypesContainer getTypes(final RowSource rows, boolean hasHeader) {
+        int columnCount = 0;
+        for (int r = 0; r < rows.size(); r++) {
+            columnCount = Math.max(columnCount, rows.get(r).size());
+        }
+        final TypeInfo[] types = new TypeInfo[columnCount];
+        DataTypes[] sqlTypes = new DataTypes[columnCount];
+        final int firstRow = hasHeader ? 1 : 0;
+        int blocks = (columnCount + blockSize - 1) / blockSize;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, blocks)));
+        try {
+            List<Future<?>> futures = new ArrayList<>(blocks);
+            for (int b = 0; b < blocks; b++) {
+                final int from = b * blockSize;
+                final int to = Math.min(columnCount, from + blockSize);
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        typeBlock(rows, firstRow, from, to, types);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while inferring types", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int i = 0; i < columnCount; i++) {
+            sqlTypes[i] = fileService.getSqlType(types[i].getType());
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Typed " + columnCount + " columns in " + blocks + " blocks");
+        }
+        return new TypesContainer(types, sqlTypes);
+    }
+
+    private void typeBlock(RowSource rows, int firstRow, int from, int to, TypeInfo[] types) {
+        int n = rows.size();
+        RowView[] views = new RowView[n];
+        int[] sizes = new int[n];
+        for (int r = firstRow; r < n; r++) {
+            views[r] = rows.get(r);
+            sizes[r] = views[r].size();
+        }
+        for (int i = from; i < to; i++) {
+            ColumnRecognizer recognizer = fileService.createColumnRecognizer();
+            for (int r = firstRow; r < n; r++) {
+                recognizer.accept(i < sizes[r] ? views[r].get(i) : null);
+            }
+            types[i] = recognizer.getColumnType();
+        }
+    }
+}
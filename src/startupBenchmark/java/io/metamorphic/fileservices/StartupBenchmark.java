@@ -0,0 +1,107 @@
+package io.metamorphic.fileservices;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures the time to the first sniff in a fresh JVM, as paid by
+ * short-lived invocations.
+ *
+ * Each run starts a new JVM with the same class path, which sniffs a small
+ * sample once and reports its uptime, i.e. the time from the start of the
+ * JVM to the end of the sniff, and the time of the sniff alone. The medians
+ * of the runs are printed. If the system property startup.maxMillis is
+ * set, the benchmark fails when the median time to first sniff exceeds it.
+ *
+ * Usage: StartupBenchmark [runs]
+ */
+public class StartupBenchmark {
+
+    private static final String CHILD = "--child";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && CHILD.equals(args[0])) {
+            sniffOnce();
+            return;
+        }
+        int runs = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        List<Long> uptimes = new ArrayList<>(runs);
+        List<Long> sniffs = new ArrayList<>(runs);
+        for (int i = 0; i < runs; i++) {
+            long[] result = runChild();
+            uptimes.add(result[0]);
+            sniffs.add(result[1]);
+        }
+        long uptime = median(uptimes);
+        long sniff = median(sniffs);
+        System.out.println("Runs: " + runs);
+        System.out.println("Time to first sniff (ms): median " + uptime + ", min " + Collections.min(uptimes) +
+                ", max " + Collections.max(uptimes));
+        System.out.println("First sniff alone (ms): median " + sniff + ", min " + Collections.min(sniffs) +
+                ", max " + Collections.max(sniffs));
+        String max = System.getProperty("startup.maxMillis");
+        if (max != null && !max.isEmpty() && uptime > Long.parseLong(max)) {
+            System.err.println("Median time to first sniff " + uptime + "ms exceeds " + max + "ms");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Sniffs a sample in this JVM, and prints the uptime and the time of
+     * the sniff in milliseconds.
+     */
+    private static void sniffOnce() {
+        String sample = sample();
+        long start = System.nanoTime();
+        FileServiceImpl fileService = new FileServiceImpl();
+        FileParameters params = fileService.sniff(sample, null);
+        long sniff = (System.nanoTime() - start) / 1000000;
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        if (params == null) {
+            throw new IllegalStateException("Sniff failed");
+        }
+        System.out.println(uptime + " " + sniff);
+    }
+
+    private static String sample() {
+        StringBuilder sb = new StringBuilder("id,name,amount,created,active\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append(i).append(",\"Customer ").append(i).append("\",").append(i * 1.25).append(",2015-05-")
+                    .append(10 + i % 20).append(',').append(i % 2 == 0).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static long[] runChild() throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                StartupBenchmark.class.getName(), CHILD));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String last = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                last = line;
+            }
+        }
+        int status = process.waitFor();
+        if (status != 0 || last == null) {
+            throw new IllegalStateException("Benchmark run failed with status " + status + ": " + last);
+        }
+        String[] parts = last.trim().split(" ");
+        return new long[] { Long.parseLong(parts[0]), Long.parseLong(parts[1]) };
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
@@ -0,0 +1,61 @@
+package io.metamorphic.fileservices;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks strict parsing and the vote on a column's date format.
+ */
+public class DateParserTest {
+
+    @Test
+    public void strictParseRejectsTwoDigitYearForFourDigitPattern() {
+        DateParser parser = new DateParser();
+        assertNull(parser.parseStrict("04/07/01", "yyyy/MM/dd"));
+        assertNull(parser.parseStrict("04/07/01", "dd/MM/yyyy"));
+        assertNull(parser.parseStrict("04/07/2001", "dd/MM/yy"));
+        assertNotNull(parser.parseStrict("04/07/01", "dd/MM/yy"));
+        assertNotNull(parser.parseStrict("04/07/2001", "dd/MM/yyyy"));
+        assertNotNull(parser.parseStrict("20010704 12:08:56", "yyyyMMdd HH:mm:ss"));
+        assertNull(parser.parseStrict("010704 12:08:56", "yyyyMMdd HH:mm:ss"));
+    }
+
+    @Test
+    public void twoDigitYearColumnsVoteForTwoDigitYearFormats() {
+        DateParser parser = new DateParser();
+        assertEquals("dd/MM/yy", parser.voteFormat(Arrays.asList("13/08/02", "04/07/01")));
+        assertEquals("dd/MM/yy", parser.voteFormat(Arrays.asList("04/07/01", "05/08/02")));
+        assertEquals("MM/dd/yy", parser.voteFormat(Arrays.asList("04/07/01", "07/13/01")));
+        assertEquals("dd-MM-yy", parser.voteFormat(Arrays.asList("04-07-01", "13-08-02")));
+
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(parser.parseStrict("04/07/01", "dd/MM/yy").getDate());
+        assertEquals(2001, cal.get(Calendar.YEAR));
+    }
+
+    @Test
+    public void ambiguousDayMonthColumnsAreSettledByTheColumn() {
+        DateParser parser = new DateParser();
+        // no value settles it, so the first listed format wins
+        assertEquals("dd/MM/yyyy", parser.voteFormat(Arrays.asList("04/07/2001", "05/08/2002")));
+        assertEquals("dd/MM/yyyy", parser.voteFormat(Arrays.asList("04/07/2001", "13/07/2001")));
+        assertEquals("MM/dd/yyyy", parser.voteFormat(Arrays.asList("04/07/2001", "07/13/2001")));
+    }
+
+    @Test
+    public void twoDigitYearColumnIsTypedWithTwoDigitYearFormat() {
+        ColumnRecognizer recognizer = new FileServiceImpl().createColumnRecognizer();
+        for (String value : new String[] { "04/07/01", "05/08/02", "13/08/02" }) {
+            recognizer.accept(value);
+        }
+        TypeInfo type = recognizer.getColumnType();
+        assertEquals(ValueTypes.DATE, type.getType());
+        assertEquals("dd/MM/yy", type.getValue("format"));
+    }
+}
@@ -0,0 +1,67 @@
+package io.metamorphic.fileservices;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the types reported by a session over several polls.
+ */
+public class IncrementalSessionTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void dateFormatIsNotLockedByAnEarlyPoll() throws IOException {
+        File file = File.createTempFile("incremental", ".csv");
+        try {
+            FileParameters params = new FileParameters(",", false);
+            params.setLineTerminator("\\n");
+            IncrementalSession session = new IncrementalSession(file, UTF8, new FileServiceImpl(), params);
+            final List<String> widened = new ArrayList<>();
+            session.addListener(new SchemaChangeListener() {
+
+                @Override
+                public void columnCountChanged(int oldCount, int newCount) {
+                }
+
+                @Override
+                public void typeWidened(int column, TypeInfo oldType, TypeInfo newType) {
+                    widened.add(column + ": " + oldType + " -> " + newType);
+                }
+
+                @Override
+                public void restarted() {
+                }
+            });
+
+            append(file, "10,04/07/2001\n");
+            assertEquals(1, session.poll());
+            assertEquals(ValueTypes.DATE, session.getTypes().types[1].getType());
+
+            append(file, "11,07/13/2001\n12,12/25/2001\n");
+            assertEquals(2, session.poll());
+            TypeInfo type = session.getTypes().types[1];
+            assertTrue(widened.toString(), widened.isEmpty());
+            assertEquals(ValueTypes.DATE, type.getType());
+            assertEquals("MM/dd/yyyy", type.getValue("format"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void append(File file, String text) throws IOException {
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(text.getBytes(UTF8));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.metamorphic.fileservices;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the binary COPY encoding against bytes worked out from the
+ * PostgreSQL wire formats.
+ */
+public class PgCopyWriterTest {
+
+    private static final String GOLDEN =
+            // signature, flags, header extension length
+            "5047434f50590aff0d0a00" + "00000000" + "00000000" +
+            // tuple of 4 fields
+            "0004" +
+            // int8 1
+            "00000008" + "0000000000000001" +
+            // numeric 12345.678: ndigits 3, weight 1, positive, dscale 3,
+            // base 10000 digits 1, 2345, 6780
+            "0000000e" + "0003" + "0001" + "0000" + "0003" + "0001" + "0929" + "1a7c" +
+            // timestamp 2000-01-01 00:00:01, in microseconds since 2000-01-01
+            "00000008" + "00000000000f4240" +
+            // text "ab"
+            "00000002" + "6162" +
+            // tuple of 4 NULLs
+            "0004" + "ffffffff" + "ffffffff" + "ffffffff" + "ffffffff" +
+            // trailer
+            "ffff";
+
+    private static TypesContainer types() {
+        TypeInfo[] types = new TypeInfo[] {
+                new TypeInfo(ValueTypes.INTEGER),
+                new TypeInfo(ValueTypes.NUMERIC),
+                new TypeInfo(ValueTypes.DATE, "format", "yyyy-MM-dd HH:mm:ss"),
+                new TypeInfo(ValueTypes.STRING)
+        };
+        DataTypes[] sqlTypes = new DataTypes[] {
+                DataTypes.INTEGER, DataTypes.NUMERIC, DataTypes.TIMESTAMP, DataTypes.NVARCHAR
+        };
+        return new TypesContainer(types, sqlTypes);
+    }
+
+    private static ColumnarReader reader(String data, TypesContainer types) {
+        FileParameters params = new FileParameters(",", false);
+        params.setLineTerminator("\n");
+        return new ColumnarReader(new StringReader(data), params, types);
+    }
+
+    @Test
+    public void writesHeaderNumericTimestampAndNulls() throws IOException {
+        TypesContainer types = types();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PgCopyWriter writer = new PgCopyWriter(out, types);
+             ColumnarReader reader = reader("1,12345.678,2000-01-01 00:00:01,ab\n,,,\n", types)) {
+            assertEquals(2, writer.copy(reader));
+        }
+        assertArrayEquals(hex(GOLDEN), out.toByteArray());
+    }
+
+    @Test
+    public void integersDefaultToInt8() throws IOException {
+        TypesContainer types = types();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PgCopyWriter writer = new PgCopyWriter(out, types);
+             ColumnarReader reader = reader("3000000000,,,\n", types)) {
+            assertEquals(PgCopyWriter.PgType.INT8, writer.getPgType(0));
+            writer.copy(reader);
+        }
+        byte[] bytes = out.toByteArray();
+        // header, field count, length, then the value
+        long value = 0;
+        for (int i = 19 + 2 + 4; i < 19 + 2 + 4 + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        assertEquals(3000000000L, value);
+    }
+
+    @Test
+    public void rejectsInt4OverflowBeforeWriting() throws IOException {
+        TypesContainer types = types();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgCopyWriter writer = new PgCopyWriter(out, types);
+        writer.setPgType(0, PgCopyWriter.PgType.INT4);
+        try (ColumnarReader reader = reader("1,,,\n3000000000,,,\n", types)) {
+            writer.copy(reader);
+            fail("Expected the int4 overflow to be rejected");
+        } catch (IOException e) {
+            // expected
+        }
+        writer.finish();
+        // no tuple was written, only the header and trailer
+        assertEquals(19 + 2, out.size());
+    }
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,66 @@
+package io.metamorphic.fileservices;
+
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks record counts and estimates on a file with line breaks in
+ * quoted fields.
+ */
+public class RecordCounterTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int RECORDS = 20000;
+
+    @Test
+    public void estimateCoversCountWithQuotedLineBreaks() throws IOException {
+        File file = File.createTempFile("records", ".csv");
+        try {
+            write(file, new Random(42));
+            FileParameters params = new FileParameters("\"", true, ",", false);
+            params.setHeader(true);
+            params.setLineTerminator("\\n");
+            RecordCounter counter = new RecordCounter(params, UTF8);
+            assertEquals(RECORDS, counter.count(file));
+
+            // most samples start at a line break inside a quoted field
+            counter.setSampleBytes(16384);
+            RecordCountEstimate estimate = counter.estimate(file);
+            assertFalse(estimate.isExact());
+            assertTrue(estimate.toString(), estimate.getLow() <= RECORDS && RECORDS <= estimate.getHigh());
+            assertTrue(estimate.toString(), Math.abs(estimate.getRecordCount() - RECORDS) < RECORDS / 50);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(File file, Random random) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8))) {
+            writer.write("id,note,amount\n");
+            for (int i = 0; i < RECORDS; i++) {
+                writer.write(String.format("%06d,\"", i));
+                int lines = 1 + random.nextInt(20);
+                for (int j = 0; j < lines; j++) {
+                    if (j > 0) writer.write('\n');
+                    for (int k = random.nextInt(8); k > 0; k--) {
+                        writer.write('a' + random.nextInt(26));
+                    }
+                }
+                writer.write("\"," + random.nextInt(1000) + "\n");
+            }
+        }
+    }
+}